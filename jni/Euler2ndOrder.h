@@ -17,7 +17,7 @@ public:
 	virtual ~Euler2ndOrder();
 	void setup(int maxSize, int states, double epsilon, double max_step);
 	void init(double * migration_rates, int n, double * coalescent_rates, int lineages);
-	void initWithIndicators(double * migration_rates, int * indicators, double * coalescent_rates, int lineages);
+	void initWithIndicators(double * migration_rates, int rateCount, int * indicators, int indicatorCount, double * coalescent_rates, int lineages);
 	void calculateValues(double duration, double * p, int length);
 	void setUpDynamics(int count, double * migration_rates, double * coalescent_rates, double * next_rate_shift);
 };
@@ -42,6 +42,15 @@ Euler2ndOrderCPU::Euler2ndOrderCPU() {
 }
 
 Euler2ndOrderCPU::~Euler2ndOrderCPU() {
+	delete [] linProbs_tmpdt;
+	delete [] linProbs_tmpddt;
+	delete [] linProbs_tmpdddt;
+	delete [] sumStates;
+	delete [] tCR;
+	delete [] sumDotStates;
+	delete [] migrationRatesCache;
+	delete [] coalescentRatesCache;
+	delete [] indicatorsRatesCache;
 }
 
 
@@ -70,22 +79,12 @@ void Euler2ndOrderCPU::init(double * migration_rates, int rateCount, double * co
 //		}
 	}
 
-void Euler2ndOrderCPU::initWithIndicators(double * migration_rates, int * indicators, double * coalescent_rates, int lineages) {
-//		(*this).max_step = max_step;
-//		(*this).epsilon = epsilon;
-//		(*this).migration_rates = migration_rates;
-//		n = (int)(sqrt(migration_rates.length) + 0.5);
-//		(*this).indicators = indicators;
-//		n2 = indicators.length / 2;
-//		(*this).coalescent_rates = coalescent_rates;
-//		(*this).lineages = lineages;
-//		(*this).states = states;
-//		(*this).dimension = (*this).lineages*(*this).states;
-//		sumStates = new double[states];tCR = new double[states];
-//		hasIndicators = true;
-//		hasMultiplicator = false;
-//
-//		iterations=0;
+void Euler2ndOrderCPU::initWithIndicators(double * migration_rates, int rateCount, int * indicators, int indicatorCount, double * coalescent_rates, int lineages) {
+		init(migration_rates, rateCount, coalescent_rates, lineages);
+		// source and sink of every migration that is switched on
+		(*this).indicators = indicators;
+		n2 = indicatorCount / 2;
+		hasIndicators = true;
 	}
 
 
@@ -291,22 +290,22 @@ void Euler2ndOrderCPU::computeDerivatives (double * p, double * pDot, double * p
 		}
 
 		// Calculate the probability of a lineage changing states
-//		if (hasIndicators) {
-//			for (int j = 0; j < indicators.length/2; j++) {
-//				int source = indicators[j * n2 + 0];
-//				int sink = indicators[j * n2 + 1];
-//				double mrate = migration_rates[source * n + sink];
-//				int k = source;
-//				int m = sink;
-//				for (int i = 0; i<lineages; i++) {
-//					migrates = p[k] * mrate;
-//					pDot[m] += migrates;
-//					pDot[k] -= migrates;
-//					k += states;
-//					m += states;
-//				}
-//			}
-//		} else {
+		if (hasIndicators) {
+			for (int j = 0; j < n2; j++) {
+				int source = indicators[j * 2 + 0];
+				int sink = indicators[j * 2 + 1];
+				double mrate = migration_rates[source * n + sink];
+				int k = source;
+				int m = sink;
+				for (int i = 0; i<lineages; i++) {
+					migrates = p[k] * mrate;
+					pDot[m] += migrates;
+					pDot[k] -= migrates;
+					k += states;
+					m += states;
+				}
+			}
+		} else {
 			int u = 0;
 			for (int i = 0; i < lineages; i++) {
 				// Calculate the probability of a lineage changing states
@@ -324,7 +323,7 @@ void Euler2ndOrderCPU::computeDerivatives (double * p, double * pDot, double * p
 					u++;
 				} // j
 			} // lineages       		
-//		}
+		}
 
 		pDot[length-1] /= 2;
 
@@ -369,18 +368,18 @@ void Euler2ndOrderCPU::computeSecondDerivate (double * p, double * pDot, double
 		double migrates;
 
 						// Calculate the probability of a lineage changing states
-//		if (hasIndicators) {
-//			for (int j = 0; j < indicators.length/2; j++) {
-//				int source = indicators[j * n2 + 0];
-//				int sink = indicators[j * n2 + 1];
-//				double mrate = migration_rates[source * n + sink];
-//				for (int i = 0; i<lineages; i++) {
-//					migrates = pDot[states*i+source]*mrate;
-//					pDotDot[states*i+sink] += migrates;
-//					pDotDot[states*i+source] -= migrates;
-//				}
-//			}
-//		} else {
+		if (hasIndicators) {
+			for (int j = 0; j < n2; j++) {
+				int source = indicators[j * 2 + 0];
+				int sink = indicators[j * 2 + 1];
+				double mrate = migration_rates[source * n + sink];
+				for (int i = 0; i<lineages; i++) {
+					migrates = pDot[states*i+source]*mrate;
+					pDotDot[states*i+sink] += migrates;
+					pDotDot[states*i+source] -= migrates;
+				}
+			}
+		} else {
 			int u = 0;
 			for (int i = 0; i<lineages; i++) {
 				// Calculate the probability of a lineage changing states
@@ -400,7 +399,7 @@ void Euler2ndOrderCPU::computeSecondDerivate (double * p, double * pDot, double
 				}    			// j
 			}    			// lineages    
 
-//		}
+		}
 		pDotDot[length-1] /= 2;
 	}
 
@@ -413,18 +412,18 @@ void Euler2ndOrderCPU::approximateThirdDerivate (double * pDotDot, double * pDot
 		}
 
 		// Calculate the probability of a lineage changing states
-//		if (hasIndicators) {
-//			for (int j = 0; j < indicators.length/2; j++) {
-//				int source = indicators[j * n2 + 0];
-//				int sink = indicators[j * n2 + 1];
-//				double mrate = migration_rates[source * n + sink];
-//				for (int i = 0; i<lineages; i++) {
-//					migrates = pDotDot[states * i + source] * mrate;
-//					pDotDotDot[states * i + sink] += migrates;
-//					pDotDotDot[states * i + source] -= migrates;
-//				}
-//			}
-//		} else {
+		if (hasIndicators) {
+			for (int j = 0; j < n2; j++) {
+				int source = indicators[j * 2 + 0];
+				int sink = indicators[j * 2 + 1];
+				double mrate = migration_rates[source * n + sink];
+				for (int i = 0; i<lineages; i++) {
+					migrates = pDotDot[states * i + source] * mrate;
+					pDotDotDot[states * i + sink] += migrates;
+					pDotDotDot[states * i + source] -= migrates;
+				}
+			}
+		} else {
 		int k;
 			for (int j = 0; j < states; j++) {
 				for (k = 0; k < states; k++) {
@@ -441,7 +440,7 @@ void Euler2ndOrderCPU::approximateThirdDerivate (double * pDotDot, double * pDot
 
 				}
 			}
-//		}
+		}
 	}
 
 void Euler2ndOrderCPU::computeDerivativesWithMultiplicator(double * p, double * pDot, double * pDotDot, double * pDotDotDot, int length) {
@@ -480,18 +479,18 @@ void Euler2ndOrderCPU::computeDerivativesWithMultiplicator(double * p, double *
 		}
 
 		// Calculate the probability of a lineage changing states
-//		if (hasIndicators) {
-//			for (int j = 0; j < indicators.length/2; j++) {
-//				int source = indicators[j * n2 + 0];
-//				int sink = indicators[j * n2 + 1];
-//				double mrate = migration_rates[source * n + sink];
-//				for (int i = 0; i<lineages; i++) {
-//					migrates = p[states*i+source]*mrate;
-//					pDot[states*i+sink] += migrates;
-//					pDot[states*i+source] -= migrates;
-//				}
-//			}
-//		} else {
+		if (hasIndicators) {
+			for (int j = 0; j < n2; j++) {
+				int source = indicators[j * 2 + 0];
+				int sink = indicators[j * 2 + 1];
+				double mrate = migration_rates[source * n + sink];
+				for (int i = 0; i<lineages; i++) {
+					migrates = p[states*i+source]*mrate;
+					pDot[states*i+sink] += migrates;
+					pDot[states*i+source] -= migrates;
+				}
+			}
+		} else {
 			for (int i = 0; i<lineages; i++) {
 				int currlin = states*i;
 				// Calculate the probability of a lineage changing states
@@ -508,7 +507,7 @@ void Euler2ndOrderCPU::computeDerivativesWithMultiplicator(double * p, double *
 
 				}		// j
 			}		// lineages       		
-//		}
+		}
 
 		pDot[length-1] /= 2;
 
@@ -546,18 +545,18 @@ void Euler2ndOrderCPU::computeSecondDerivateWithMultiplicator(double * p, double
 		double migrates;
 
 				// Calculate the probability of a lineage changing states
-//		if (hasIndicators) {
-//			for (int j = 0; j < indicators.length/2; j++) {
-//				int source = indicators[j * n2 + 0];
-//				int sink = indicators[j * n2 + 1];
-//				double mrate = migration_rates[source * n + sink];
-//				for (int i = 0; i<lineages; i++) {
-//					migrates = pDot[states*i+source]*mrate;
-//					pDotDot[states*i+sink] += migrates;
-//					pDotDot[states*i+source] -= migrates;
-//				}
-//			}
-//		} else {
+		if (hasIndicators) {
+			for (int j = 0; j < n2; j++) {
+				int source = indicators[j * 2 + 0];
+				int sink = indicators[j * 2 + 1];
+				double mrate = migration_rates[source * n + sink];
+				for (int i = 0; i<lineages; i++) {
+					migrates = pDot[states*i+source]*mrate;
+					pDotDot[states*i+sink] += migrates;
+					pDotDot[states*i+source] -= migrates;
+				}
+			}
+		} else {
 			for (int i = 0; i<lineages; i++) {
 				int currlin = states*i;
 				// Calculate the probability of a lineage changing states
@@ -575,7 +574,7 @@ void Euler2ndOrderCPU::computeSecondDerivateWithMultiplicator(double * p, double
 				}		// j
 			}		// lineages    
 
-//		}
+		}
 		pDotDot[length-1] /= 2;
 	}
 
@@ -46,7 +46,7 @@ public:
 	virtual ~Euler2ndOrderCPU();
 	virtual void setup(int maxSize, int states, double epsilon, double max_step);
 	virtual void init(double * migration_rates, int n, double * coalescent_rates, int lineages);
-	virtual void initWithIndicators(double * migration_rates, int * indicators, double * coalescent_rates, int lineages);
+	virtual void initWithIndicators(double * migration_rates, int rateCount, int * indicators, int indicatorCount, double * coalescent_rates, int lineages);
 	virtual void calculateValues(double duration, double * p, int length);
 	virtual void setUpDynamics(int count, double * migration_rates, double * coalescent_rates, double * next_rate_shift);
 
@@ -71,7 +71,7 @@ public: X();\
 virtual ~X();\
 void setup(int maxSize, int states, double epsilon, double max_step);\
 void init(double * migration_rates, int n, double * coalescent_rates, int lineages);\
-void initWithIndicators(double * migration_rates, int * indicators, double * coalescent_rates, int lineages);\
+void initWithIndicators(double * migration_rates, int rateCount, int * indicators, int indicatorCount, double * coalescent_rates, int lineages);\
 void calculateValues(double duration, double * p, int length);\
 void setUpDynamics(int count, double * migration_rates, double * coalescent_rates, double * next_rate_shift);\
 \
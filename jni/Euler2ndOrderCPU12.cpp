@@ -70,22 +70,12 @@ void Euler2ndOrderCPU12::init(double * migration_rates, int rateCount, double *
 //		}
 	}
 
-void Euler2ndOrderCPU12::initWithIndicators(double * migration_rates, int * indicators, double * coalescent_rates, int lineages) {
-//		(*this).max_step = max_step;
-//		(*this).epsilon = epsilon;
-//		(*this).migration_rates = migration_rates;
-//		n = (int)(sqrt(migration_rates.length) + 0.5);
-//		(*this).indicators = indicators;
-//		n2 = indicators.length / 2;
-//		(*this).coalescent_rates = coalescent_rates;
-//		(*this).lineages = lineages;
-//		(*this).states = states;
-//		(*this).dimension = (*this).lineages*(*this).states;
-//		sumStates = new double[states];tCR = new double[states];
-//		hasIndicators = true;
-//		hasMultiplicator = false;
-//
-//		iterations=0;
+void Euler2ndOrderCPU12::initWithIndicators(double * migration_rates, int rateCount, int * indicators, int indicatorCount, double * coalescent_rates, int lineages) {
+		init(migration_rates, rateCount, coalescent_rates, lineages);
+		// source and sink of every migration that is switched on
+		(*this).indicators = indicators;
+		n2 = indicatorCount / 2;
+		hasIndicators = true;
 	}
 
 
@@ -524,22 +514,22 @@ j++;
 		}
 
 		// Calculate the probability of a lineage changing states
-//		if (hasIndicators) {
-//			for (int j = 0; j < indicators.length/2; j++) {
-//				int source = indicators[j * n2 + 0];
-//				int sink = indicators[j * n2 + 1];
-//				double mrate = migration_rates[source * n + sink];
-//				int k = source;
-//				int m = sink;
-//				for (int i = 0; i<lineages; i++) {
-//					migrates = p[k] * mrate;
-//					pDot[m] += migrates;
-//					pDot[k] -= migrates;
-//					k += states;
-//					m += states;
-//				}
-//			}
-//		} else {
+		if (hasIndicators) {
+			for (int j = 0; j < n2; j++) {
+				int source = indicators[j * 2 + 0];
+				int sink = indicators[j * 2 + 1];
+				double mrate = migration_rates[source * n + sink];
+				int k = source;
+				int m = sink;
+				for (int i = 0; i<lineages; i++) {
+					migrates = p[k] * mrate;
+					pDot[m] += migrates;
+					pDot[k] -= migrates;
+					k += states;
+					m += states;
+				}
+			}
+		} else {
 			int u = 0;
 			for (int i = 0; i < lineages; i++) {
 				// Calculate the probability of a lineage changing states
@@ -712,7 +702,7 @@ j++;
 					u++;
 				} // j
 			} // lineages       		
-//		}
+		}
 
 		pDot[length-1] /= 2;
 
@@ -902,18 +892,18 @@ j++;
 		double migrates;
 
 						// Calculate the probability of a lineage changing states
-//		if (hasIndicators) {
-//			for (int j = 0; j < indicators.length/2; j++) {
-//				int source = indicators[j * n2 + 0];
-//				int sink = indicators[j * n2 + 1];
-//				double mrate = migration_rates[source * n + sink];
-//				for (int i = 0; i<lineages; i++) {
-//					migrates = pDot[states*i+source]*mrate;
-//					pDotDot[states*i+sink] += migrates;
-//					pDotDot[states*i+source] -= migrates;
-//				}
-//			}
-//		} else {
+		if (hasIndicators) {
+			for (int j = 0; j < n2; j++) {
+				int source = indicators[j * 2 + 0];
+				int sink = indicators[j * 2 + 1];
+				double mrate = migration_rates[source * n + sink];
+				for (int i = 0; i<lineages; i++) {
+					migrates = pDot[states*i+source]*mrate;
+					pDotDot[states*i+sink] += migrates;
+					pDotDot[states*i+source] -= migrates;
+				}
+			}
+		} else {
 			int u = 0;
 			for (int i = 0; i<lineages; i++) {
 				// Calculate the probability of a lineage changing states
@@ -1099,7 +1089,7 @@ j++;
 				}    			// j
 			}    			// lineages    
 
-//		}
+		}
 		pDotDot[length-1] /= 2;
 	}
 
@@ -1112,18 +1102,18 @@ void Euler2ndOrderCPU12::approximateThirdDerivate (double * pDotDot, double * pD
 		}
 
 		// Calculate the probability of a lineage changing states
-//		if (hasIndicators) {
-//			for (int j = 0; j < indicators.length/2; j++) {
-//				int source = indicators[j * n2 + 0];
-//				int sink = indicators[j * n2 + 1];
-//				double mrate = migration_rates[source * n + sink];
-//				for (int i = 0; i<lineages; i++) {
-//					migrates = pDotDot[states * i + source] * mrate;
-//					pDotDotDot[states * i + sink] += migrates;
-//					pDotDotDot[states * i + source] -= migrates;
-//				}
-//			}
-//		} else {
+		if (hasIndicators) {
+			for (int j = 0; j < n2; j++) {
+				int source = indicators[j * 2 + 0];
+				int sink = indicators[j * 2 + 1];
+				double mrate = migration_rates[source * n + sink];
+				for (int i = 0; i<lineages; i++) {
+					migrates = pDotDot[states * i + source] * mrate;
+					pDotDotDot[states * i + sink] += migrates;
+					pDotDotDot[states * i + source] -= migrates;
+				}
+			}
+		} else {
 		int k;
 			for (int j = 0; j < states; j++) {
 k = 0;
@@ -1295,7 +1285,7 @@ k++;
 
 				}
 			}
-//		}
+		}
 	}
 
 void Euler2ndOrderCPU12::computeDerivativesWithMultiplicator(double * p, double * pDot, double * pDotDot, double * pDotDotDot, int length) {
@@ -1423,18 +1413,18 @@ j++;
 		}
 
 		// Calculate the probability of a lineage changing states
-//		if (hasIndicators) {
-//			for (int j = 0; j < indicators.length/2; j++) {
-//				int source = indicators[j * n2 + 0];
-//				int sink = indicators[j * n2 + 1];
-//				double mrate = migration_rates[source * n + sink];
-//				for (int i = 0; i<lineages; i++) {
-//					migrates = p[states*i+source]*mrate;
-//					pDot[states*i+sink] += migrates;
-//					pDot[states*i+source] -= migrates;
-//				}
-//			}
-//		} else {
+		if (hasIndicators) {
+			for (int j = 0; j < n2; j++) {
+				int source = indicators[j * 2 + 0];
+				int sink = indicators[j * 2 + 1];
+				double mrate = migration_rates[source * n + sink];
+				for (int i = 0; i<lineages; i++) {
+					migrates = p[states*i+source]*mrate;
+					pDot[states*i+sink] += migrates;
+					pDot[states*i+source] -= migrates;
+				}
+			}
+		} else {
 			for (int i = 0; i<lineages; i++) {
 				int currlin = states*i;
 				// Calculate the probability of a lineage changing states
@@ -1595,7 +1585,7 @@ j++;
 
 				}		// j
 			}		// lineages       		
-//		}
+		}
 
 		pDot[length-1] /= 2;
 
@@ -1633,18 +1623,18 @@ void Euler2ndOrderCPU12::computeSecondDerivateWithMultiplicator(double * p, doub
 		double migrates;
 
 				// Calculate the probability of a lineage changing states
-//		if (hasIndicators) {
-//			for (int j = 0; j < indicators.length/2; j++) {
-//				int source = indicators[j * n2 + 0];
-//				int sink = indicators[j * n2 + 1];
-//				double mrate = migration_rates[source * n + sink];
-//				for (int i = 0; i<lineages; i++) {
-//					migrates = pDot[states*i+source]*mrate;
-//					pDotDot[states*i+sink] += migrates;
-//					pDotDot[states*i+source] -= migrates;
-//				}
-//			}
-//		} else {
+		if (hasIndicators) {
+			for (int j = 0; j < n2; j++) {
+				int source = indicators[j * 2 + 0];
+				int sink = indicators[j * 2 + 1];
+				double mrate = migration_rates[source * n + sink];
+				for (int i = 0; i<lineages; i++) {
+					migrates = pDot[states*i+source]*mrate;
+					pDotDot[states*i+sink] += migrates;
+					pDotDot[states*i+source] -= migrates;
+				}
+			}
+		} else {
 			for (int i = 0; i<lineages; i++) {
 				int currlin = states*i;
 				// Calculate the probability of a lineage changing states
@@ -1806,7 +1796,7 @@ j++;
 				}		// j
 			}		// lineages    
 
-//		}
+		}
 		pDotDot[length-1] /= 2;
 	}
 
@@ -50,11 +50,12 @@ inline void SystemArraycopy(int * src, int * dest, const int count) {
 	memcpy(dest, src, count * sizeof(int));
 }
 
-Mascot::Mascot(int * nodeType, int states, double epsilon, double max_step, int sampleCount, int nodeCount, int intervalCount, bool useCache) {
+Mascot::Mascot(int * nodeType, int states, double epsilon, double max_step, int sampleCount, int nodeCount, int intervalCount, bool useCache, int checkpointSpacing) {
 	(*this).nodeCount = nodeCount;
     	(*this).states = states;
     	(*this).nodeType = nodeType;
     	(*this).useCache = useCache;
+    	(*this).checkpointSpacing = checkpointSpacing > 0 ? checkpointSpacing : (int) ceil(sqrt(intervalCount));
 
     	fprintf(stderr, "nodeCount=%d states=%d sampleCount=%d intervalCount=%d useCache=%d\n", nodeCount, states, sampleCount, intervalCount, useCache);
     nrSamples = sampleCount + 1;
@@ -63,8 +64,14 @@ Mascot::Mascot(int * nodeType, int states, double epsilon, double max_step, int
 
     	// initialize storing arrays and ArrayLists
     	storedLineagesAdded = new int[intervalCount];
-    	coalLinProbs = new double[intervalCount * intervalCount * states];
-    	storeLinProbs = new double[intervalCount * intervalCount * states];
+    	// there are never more active lineages than samples
+    	long cacheSize = useCache ? (long) (intervalCount / (*this).checkpointSpacing + 1) * nrSamples * states : 0;
+    	coalLinProbs = new double[cacheSize];
+    	storeLinProbs = new double[cacheSize];
+    	if (useCache) {
+    		fprintf(stderr, "Mascot cache: checkpoint every %d intervals, %.1fMB for cached lineage probabilities\n",
+    				(*this).checkpointSpacing, 2.0 * 8 * cacheSize / (1024 * 1024));
+    	}
     	coalLinProbsLengths = new int[intervalCount];
     	storedCoalLinProbsLengths = new int[intervalCount];
     	coalLogP = new double[intervalCount];
@@ -78,11 +85,11 @@ Mascot::Mascot(int * nodeType, int states, double epsilon, double max_step, int
 
     	activeLineages = new int[nodeCount + 1];
     	activeLineagesCount = 0;
+    	rowOfNode = new int[nodeCount + 1];
 
     	int MAX_SIZE = intervalCount * states;
     	linProbs_tmp = new double[MAX_SIZE];
     	linProbs = new double[MAX_SIZE];
-    	linProbsNew = new double[MAX_SIZE];
 
     	switch (states) {
     	case 2: euler = new Euler2ndOrderCPU2();break;
@@ -110,20 +117,23 @@ Mascot::Mascot(int * nodeType, int states, double epsilon, double max_step, int
     	coalescentRatesCache = 0;
     	//currentCoalescentRates = 0;
     	indicatorsCache = 0;
+    	indicatorCounts = 0;
 
     	coalescentRates = 0; // == current Coalescent Rates
 
     	nrLineages = 0;
     	rateShiftCount = 0;
-    	intervals = new double[intervalCount];
+    	// intervals, parents and lineagesRemoved point to the caller's buffers during calculateLogP
+    	intervals = NULL;
     	lineagesAdded = new int[intervalCount];
-    	parents = new int[intervalCount];
-    	lineagesRemoved = new int[intervalCount*2];
+    	parents = NULL;
+    	lineagesRemoved = NULL;
     	linProbsLength = 0;
     	(*this).intervalCount = intervalCount;
     	logP = 0;
 
     	first = true;
+    	firstChangedInterval = 0;
     	debug = false;
     	callCount = 0;
 
@@ -132,10 +142,11 @@ Mascot::Mascot(int * nodeType, int states, double epsilon, double max_step, int
 
 
 double Mascot::calculateLogP(bool dynamicsIsDirty, int firstDirtyInterval, int* lineagesAddedIn, int* lineagesRemovedIn, double* intervalsIn, int* parentsIn) {
+	// lineagesAdded is kept to compare with the stored one, the rest is read in place
 	SystemArraycopyI(lineagesAddedIn, 0, lineagesAdded, 0, intervalCount);
-	SystemArraycopyI(lineagesRemovedIn, 0, lineagesRemoved, 0, intervalCount * 2);
-	SystemArraycopy(intervalsIn, 0, intervals, 0, intervalCount);
-	SystemArraycopyI(parentsIn, 0, parents, 0, nodeCount);
+	lineagesRemoved = lineagesRemovedIn;
+	intervals = intervalsIn;
+	parents = parentsIn;
 
 	//fprintf(stderr,"callCount = %d\n", callCount);
 	//if (callCount == 244) {
@@ -159,48 +170,26 @@ double Mascot::calculateLogP(bool dynamicsIsDirty, int firstDirtyInterval, int*
 
       if (useCache && !first && !dynamicsIsDirty && firstDirtyInterval > 2) {
         // restore the likelihood to last known good place
-    	  int pos0 = -1, pos1 = -1;
     	  do {
 
-        	nextEventTime = nextTreeEvent;
-
     		// Check if the last interval was reached
     		if (treeInterval == intervalCount){
     			logP = coalLogP[intervalCount - 1];
     			return logP;
     		}
 
-    		bool isDirty;
+    		int newLineage;
     		if (lineagesRemoved[treeInterval*2] >= 0) { // == IntervalType.COALESCENT) {
- 	           	int coalLines0 = lineagesRemoved[treeInterval * 2 + 0];
- 	           	int coalLines1 = lineagesRemoved[treeInterval * 2 + 1];
- 	           	pos0 = indexOf(coalLines0);
- 	           	pos1 = indexOf(coalLines1);
- 	           	if (pos0 < 0 || pos1 < 0) {
- 	           		std::cerr << coalLines0 <<  " " << coalLines1 <<  " " <<activeLineages << std::endl;
- 	           		std::cerr << "daughter lineages at coalescent event not found" << std::endl;
- 	           		std::cerr << "coalesceX went wrong at 1"<< std::endl;
- 	           		exit(1);
- 	           	}
- 	           	if (pos0 > pos1) {
- 	           		removeActiveLineageAt(pos0);
- 	           		removeActiveLineageAt(pos1);
- 	           	} else {
- 	           		removeActiveLineageAt(pos1);
- 	           		removeActiveLineageAt(pos0);
- 	           	}
- 	            int newLineage = parents[coalLines0];
- 	            addActiveLineages(newLineage);
- 	            isDirty = storedLineagesAdded[treeInterval] != newLineage;
+ 	            newLineage = parents[lineagesRemoved[treeInterval * 2 + 0]];
         	} else { // == IntervalType.SAMPLE) {
-       			int incomingLines = lineagesAdded[treeInterval];
-       			addActiveLineages(incomingLines);
-       			isDirty = storedLineagesAdded[treeInterval] != incomingLines;
+       			newLineage = lineagesAdded[treeInterval];
        		}
-
+    		bool isDirty = storedLineagesAdded[treeInterval] != newLineage;
 
     		if (isDirty || treeInterval+1 == firstDirtyInterval) {
-    			if (treeInterval <= 2) {
+    			// linProbs are only cached at checkpoints, the intervals after it are recalculated
+    			const int checkpoint = (treeInterval / checkpointSpacing) * checkpointSpacing - 1;
+    			if (checkpoint < 2) {
         			treeInterval = 0;
         			ratesInterval = 0;
         	        activeLineagesCount = 0;
@@ -211,35 +200,16 @@ double Mascot::calculateLogP(bool dynamicsIsDirty, int firstDirtyInterval, int*
         			break;
     			}
 
-
-	 	        activeLineagesCount--;
-        		if (lineagesRemoved[treeInterval*2] > 0) { // == IntervalType.COALESCENT) {
-	 	           	int coalLines0 = lineagesRemoved[treeInterval * 2 + 0];
-	 	           	int coalLines1 = lineagesRemoved[treeInterval * 2 + 1];
-	 	           	if (pos0 > pos1) {
-	 	           		addActiveLineages(pos1, coalLines1);
-	 	           		addActiveLineages(pos0, coalLines0);
-	 	           	} else {
-	 	           		addActiveLineages(pos0, coalLines0);
-	 	           		addActiveLineages(pos1, coalLines1);
-	 	           	}
-	       		}
-
-    			treeInterval++;
-    			ratesInterval = restoreNode(treeInterval-2);
-    			nextTreeEvent = nextTreeEvents[treeInterval-1];
-    			nextRateShift = nextRateShifts[treeInterval-1];
-    			treeInterval--;
+    			replayActiveLineages(checkpoint);
+    			ratesInterval = restoreNode(checkpoint);
+    			// continue as if the event at the checkpoint was just calculated
+    			nextRateShift = nextRateShifts[checkpoint] - nextTreeEvents[checkpoint];
+    			treeInterval = checkpoint + 1;
+    			nextTreeEvent = intervals[treeInterval];
     			break;
     		}
        		treeInterval++;
-    		nextRateShift -= nextTreeEvent;
-    		if (treeInterval == intervalCount) {
-    			break;
-    		}
-    		nextTreeEvent = intervals[treeInterval];
-
-        } while (nextTreeEvent <= INFINITY);
+        } while (treeInterval <= intervalCount);
     }
 
 
@@ -288,31 +258,53 @@ double Mascot::calculateLogP(bool dynamicsIsDirty, int firstDirtyInterval, int*
     }
 
 
-	void Mascot::addActiveLineages(const int pos1, const int coalLines1) {
-		SystemArraycopyI(activeLineages, pos1, activeLineages, pos1 + 1, activeLineagesCount - pos1);
-		activeLineages[pos1] = coalLines1;
-		activeLineagesCount++;
-		//printArray(activeLineages, activeLineagesCount);
+	// sets the active lineages to those after the given interval, in the row order calculateLogP leaves them
+	void Mascot::replayActiveLineages(int lastInterval) {
+		activeLineagesCount = 0;
+		for (int i = 0; i <= lastInterval; i++) {
+			if (lineagesRemoved[i*2] >= 0) {
+				const int coalLines0 = lineagesRemoved[i * 2 + 0];
+				const int coalLines1 = lineagesRemoved[i * 2 + 1];
+				const int pos0 = indexOf(coalLines0);
+				const int pos1 = indexOf(coalLines1);
+				if (pos0 < 0 || pos1 < 0) {
+					std::cerr << coalLines0 <<  " " << coalLines1 <<  " " <<activeLineages << std::endl;
+					std::cerr << "daughter lineages at coalescent event not found" << std::endl;
+					std::cerr << "coalesceX went wrong at 1"<< std::endl;
+					exit(1);
+				}
+				// same row moves as in coalesce()
+				setActiveLineage(pos0 < pos1 ? pos0 : pos1, parents[coalLines0]);
+				removeActiveLineageAt(pos0 < pos1 ? pos1 : pos0);
+			} else {
+				addActiveLineages(lineagesAdded[i]);
+			}
+		}
 	}
 
 	void Mascot::addActiveLineages(int newLineage) {
-		activeLineages[activeLineagesCount++] = newLineage;
+		setActiveLineage(activeLineagesCount++, newLineage);
 		//printArray(activeLineages, activeLineagesCount);
 	}
 
-	void  Mascot::removeActiveLineageAt(int pos0) {
-		SystemArraycopyI(activeLineages, pos0 + 1, activeLineages, pos0, activeLineagesCount - pos0);
-		activeLineagesCount--;
+	void Mascot::setActiveLineage(int row, int lineage) {
+		activeLineages[row] = lineage;
+		rowOfNode[lineage] = row;
+	}
+
+	// removes a row by moving the last row into its place, returns the index the moved row had
+	int Mascot::removeActiveLineageAt(int row) {
+		const int last = --activeLineagesCount;
+		if (row != last) {
+			setActiveLineage(row, activeLineages[last]);
+		}
 		//printArray(activeLineages, activeLineagesCount);
+		return last;
 	}
 
 	int  Mascot::indexOf(int value) {
-		for (int i = 0; i < activeLineagesCount; i++) {
-			if (activeLineages[i] == value) {
-				return i;
-			}
-		}
-		return -1;
+		const int row = rowOfNode[value];
+		return row < activeLineagesCount && activeLineages[row] == value ? row : -1;
 	}
 
 	double* Mascot::getCoalescentRate(int i) {
@@ -351,6 +343,19 @@ double Mascot::calculateLogP(bool dynamicsIsDirty, int firstDirtyInterval, int*
 		SystemArraycopy(next_rate_shift, 0, nextRateShiftCache, 0, rateShiftCount);
 	}
 
+	// every epoch has room for states * (states-1) pairs of source and sink
+	void Mascot::setUpIndicators(int count, int * indicators, int * indicator_counts) {
+		const int pairs = 2 * states * (states - 1);
+		if (indicatorCounts == 0 || rateShiftCount != count) {
+			delete [] indicatorsCache;
+			delete [] indicatorCounts;
+			indicatorsCache = new int[count * pairs];
+			indicatorCounts = new int[count];
+		}
+		memcpy(indicatorsCache, indicators, count * pairs * sizeof(int));
+		memcpy(indicatorCounts, indicator_counts, count * sizeof(int));
+	}
+
 
 	double Mascot::doEuler(double nextEventTime, int ratesInterval) {
 		SystemArraycopy(linProbs,0,linProbs_tmp,0,linProbsLength);
@@ -366,10 +371,20 @@ double Mascot::calculateLogP(bool dynamicsIsDirty, int firstDirtyInterval, int*
 			fprintf(stderr,"p ");
 			printArrayF(linProbs_tmp, linProbsLength);
 		}
-		euler->init(getMigrationRates(ratesInterval),
-				states * states,
-				coalescentRates,
-				nrLineages);
+		if (indicatorCounts != 0) {
+			const int epoch = ratesInterval >= rateShiftCount ? rateShiftCount - 1 : ratesInterval;
+			euler->initWithIndicators(getMigrationRates(ratesInterval),
+					states * states,
+					indicatorsCache + epoch * 2 * states * (states - 1),
+					indicatorCounts[epoch],
+					coalescentRates,
+					nrLineages);
+		} else {
+			euler->init(getMigrationRates(ratesInterval),
+					states * states,
+					coalescentRates,
+					nrLineages);
+		}
 		euler->calculateValues(nextEventTime, linProbs_tmp, linProbsLength + 1);
 
 		SystemArraycopy(linProbs_tmp,0,linProbs,0,linProbsLength);
@@ -459,41 +474,20 @@ double Mascot::calculateLogP(bool dynamicsIsDirty, int firstDirtyInterval, int*
 //		std::cerr << "Sum is: " << sum << std::endl;
 
         int lineageToAdd = parents[coalLines0];
-        addActiveLineages(lineageToAdd);
 
-
-		int linCount = 0;
-		// add all lineages execpt the daughter lineage to the new p array
-		for (int i = 0; i <= nrLineages; i++){
-			if (i != daughterIndex1 && i != daughterIndex2){
-				for (int j = 0; j < states; j++){
-					linProbsNew[linCount*states + j] = linProbs[i*states + j];
-				}
-				linCount++;
-			}
-		}
-		// add the parent lineage
-		for (int j = 0; j < states; j++){
-			linProbsNew[linCount*states + j] = stateProbabilities[offset + j]; // pVec.get(j);
+		// the parent lineage takes the row of the first daughter, and the
+		// last row moves into the row of the second one
+		const int parentRow = daughterIndex1 < daughterIndex2 ? daughterIndex1 : daughterIndex2;
+		const int freedRow = daughterIndex1 < daughterIndex2 ? daughterIndex2 : daughterIndex1;
+		const int last = removeActiveLineageAt(freedRow);
+		if (last != freedRow) {
+			SystemArraycopy(linProbs, last * states, linProbs, freedRow * states, states);
 		}
-		// set p to pnew
-		linProbs = linProbsNew;
-		linProbsNew = linProbs;
+		setActiveLineage(parentRow, lineageToAdd);
+		SystemArraycopy(stateProbabilities, offset, linProbs, parentRow * states, states);
 		linProbsLength = linProbsLength - states;
 
 
-		//Remove daughter lineages from the line state probs
-		if (daughterIndex1>daughterIndex2){
-			// remove the daughter lineages from the active lineages
-			removeActiveLineageAt(daughterIndex1);
-			removeActiveLineageAt(daughterIndex2);
-		} else {
-			// remove the daughter lineages from the active lineages
-			removeActiveLineageAt(daughterIndex2);
-			removeActiveLineageAt(daughterIndex1);
-		}
-
-
 		double min = INFINITY;
         for (int i = 0; i < states; i++) {
 			if (stateProbabilities[offset + i] < min) {min = stateProbabilities[offset + i];}
@@ -526,6 +520,11 @@ double Mascot::calculateLogP(bool dynamicsIsDirty, int firstDirtyInterval, int*
     	}
     }
 
+    // the state probabilities of all internal nodes, nrSamples * states values
+    void Mascot::getStateProbs(double * p) {
+    	SystemArraycopy(stateProbabilities, p, nrSamples * states);
+    }
+
     void Mascot::getRootState(double * p) {
     	for (int i = 0; i < states; i++) {
     		p[i] = stateProbabilities[(nrSamples-2) * states + i];
@@ -537,13 +536,21 @@ double Mascot::calculateLogP(bool dynamicsIsDirty, int firstDirtyInterval, int*
     	if (!useCache) {
     		return;
     	}
+    	if (storingTreeInterval < firstChangedInterval) {
+    		firstChangedInterval = storingTreeInterval;
+    	}
     	coalRatesInterval[storingTreeInterval] = storingRatesInterval;
     	int offset = 0;
     	if (storingTreeInterval > 0) {
     		offset = coalLinProbsLengths[storingTreeInterval-1];
     	}
-    	SystemArraycopy(storeLinProbs, 0, coalLinProbs, offset, linProbsLength);
-    	coalLinProbsLengths[storingTreeInterval] = offset + linProbsLength;
+    	if (storingTreeInterval % checkpointSpacing != checkpointSpacing - 1) {
+    		// not a checkpoint, only the log probability and event times are kept
+    		coalLinProbsLengths[storingTreeInterval] = offset;
+    	} else {
+    		SystemArraycopy(storeLinProbs, 0, coalLinProbs, offset, linProbsLength);
+    		coalLinProbsLengths[storingTreeInterval] = offset + linProbsLength;
+    	}
     	coalLogP[storingTreeInterval] = probability;
     	nextTreeEvents[storingTreeInterval] = nextTreeEvent;
     	nextRateShifts[storingTreeInterval] = nextRateShift;
@@ -559,7 +566,7 @@ double Mascot::calculateLogP(bool dynamicsIsDirty, int firstDirtyInterval, int*
     	SystemArraycopy(coalLinProbs, offset, linProbs, 0, linProbsLength);
 
     	logP = coalLogP[restoringInterval];
-    	return coalRatesInterval[restoringInterval + 1];
+    	return coalRatesInterval[restoringInterval];
 
     }
 
@@ -567,54 +574,61 @@ double Mascot::calculateLogP(bool dynamicsIsDirty, int firstDirtyInterval, int*
     	if (!useCache) {
     		return;
     	}
-    	storeLinP();
-    	SystemArraycopy(coalLogP, 0, storeLogP, 0, intervalCount);
-    	SystemArraycopyI(coalRatesInterval, 0, storeRatesInterval, 0, intervalCount);
-
-
-    	SystemArraycopy(nextTreeEvents, 0, storedNextTreeEvents, 0, intervalCount);
-    	SystemArraycopy(nextRateShifts, 0, storedNextRateShifts, 0, intervalCount);
+    	// only the intervals from firstChangedInterval on can differ from the stored ones
+    	const int from = firstChangedInterval;
+    	const int count = intervalCount - from;
+    	if (count > 0) {
+    		storeLinP();
+    		SystemArraycopy(coalLogP, from, storeLogP, from, count);
+    		SystemArraycopyI(coalRatesInterval, from, storeRatesInterval, from, count);
+    		SystemArraycopy(nextTreeEvents, from, storedNextTreeEvents, from, count);
+    		SystemArraycopy(nextRateShifts, from, storedNextRateShifts, from, count);
+    		firstChangedInterval = intervalCount;
+    	}
 
     	SystemArraycopyI(lineagesAdded, 0, storedLineagesAdded, 0, intervalCount);
 
     }
 
     void Mascot::storeLinP() {
-    	SystemArraycopyI(coalLinProbsLengths, 0, storedCoalLinProbsLengths, 0, intervalCount);
-    	SystemArraycopy(coalLinProbs, 0, storeLinProbs, 0, coalLinProbsLengths[intervalCount - 1]);
+    	const int from = firstChangedInterval;
+    	const int offset = from > 0 ? coalLinProbsLengths[from - 1] : 0;
+    	SystemArraycopyI(coalLinProbsLengths, from, storedCoalLinProbsLengths, from, intervalCount - from);
+    	SystemArraycopy(coalLinProbs, offset, storeLinProbs, offset, maxLength(coalLinProbsLengths, from) - offset);
 	}
 
+    // end of the cached linProbs of the intervals from the given one on, which may include
+    // intervals a calculation did not get to
+    int Mascot::maxLength(int * lengths, int from) {
+    	int max = from > 0 ? lengths[from - 1] : 0;
+    	for (int i = from; i < intervalCount; i++) {
+    		if (lengths[i] > max) {
+    			max = lengths[i];
+    		}
+    	}
+    	return max;
+    }
+
 
 	void Mascot::restore(){
     	if (!useCache) {
     		return;
     	}
-    	// restore intermediate results
-    	double * tmp = storeLogP;
-    	storeLogP = coalLogP;
-    	coalLogP = tmp;
-
-    	tmp = coalLinProbs;
-    	coalLinProbs = storeLinProbs;
-    	storeLinProbs = tmp;
-
-    	int * tmp2 = coalLinProbsLengths;
-    	coalLinProbsLengths = storedCoalLinProbsLengths;
-    	storedCoalLinProbsLengths = tmp2;
-
-    	tmp2 = coalRatesInterval;
-    	coalRatesInterval = storeRatesInterval;
-    	storeRatesInterval = tmp2;
-
-		tmp = nextTreeEvents;
-		nextTreeEvents = storedNextTreeEvents;
-		storedNextTreeEvents = tmp;
-
-		tmp = nextRateShifts;
-		nextRateShifts = storedNextRateShifts;
-		storedNextRateShifts = tmp;
+    	// restore intermediate results, copying back only the intervals that were recalculated
+    	const int from = firstChangedInterval;
+    	const int count = intervalCount - from;
+    	if (count > 0) {
+    		SystemArraycopy(storeLogP, from, coalLogP, from, count);
+    		SystemArraycopyI(storeRatesInterval, from, coalRatesInterval, from, count);
+    		SystemArraycopy(storedNextTreeEvents, from, nextTreeEvents, from, count);
+    		SystemArraycopy(storedNextRateShifts, from, nextRateShifts, from, count);
+    		SystemArraycopyI(storedCoalLinProbsLengths, from, coalLinProbsLengths, from, count);
+    		const int offset = from > 0 ? coalLinProbsLengths[from - 1] : 0;
+    		SystemArraycopy(storeLinProbs, offset, coalLinProbs, offset, maxLength(coalLinProbsLengths, from) - offset);
+    		firstChangedInterval = intervalCount;
+    	}
 
-		tmp2 = lineagesAdded;
+		int * tmp2 = lineagesAdded;
 		lineagesAdded = storedLineagesAdded;
 		storedLineagesAdded = tmp2;
 
@@ -623,6 +637,31 @@ double Mascot::calculateLogP(bool dynamicsIsDirty, int firstDirtyInterval, int*
 
 
 	Mascot::~Mascot() {
-		// TODO Auto-generated destructor stub
+		delete euler;
+		delete [] nodeType;
+		delete [] stateProbabilities;
+		delete [] storedLineagesAdded;
+		delete [] coalLinProbs;
+		delete [] storeLinProbs;
+		delete [] coalLinProbsLengths;
+		delete [] storedCoalLinProbsLengths;
+		delete [] coalLogP;
+		delete [] storeLogP;
+		delete [] coalRatesInterval;
+		delete [] storeRatesInterval;
+		delete [] nextTreeEvents;
+		delete [] nextRateShifts;
+		delete [] storedNextTreeEvents;
+		delete [] storedNextRateShifts;
+		delete [] activeLineages;
+		delete [] rowOfNode;
+		delete [] linProbs_tmp;
+		delete [] linProbs;
+		delete [] lineagesAdded;
+		delete [] coalescentRatesCache;
+		delete [] migrationRatesCache;
+		delete [] nextRateShiftCache;
+		delete [] indicatorsCache;
+		delete [] indicatorCounts;
 	}
 
@@ -25,11 +25,12 @@ private:
 
 
     // Set up for lineage state probabilities
+    // node number of the lineage in each row of linProbs, and the row of each node
      int * activeLineages;
      int activeLineagesCount;
+     int * rowOfNode;
 
 	 double* linProbs;
-	 double* linProbsNew;
 	 int linProbsLength;
 
     // store the linProbs, multiplicators and logP's at coalescent points in jagged arrays from last time
@@ -48,12 +49,17 @@ private:
 	 double * storedNextTreeEvents;
 	 double * nextRateShifts;
 	 double * storedNextRateShifts;
+	 // first interval cached by calculateLogP since the last store or restore, the cache
+	 // and the stored cache are the same before it, so only the rest is copied
+	 int firstChangedInterval;
 
     // check if this is the first calculation
      bool first;
      int callCount;
      bool debug;
      bool useCache;
+     // linProbs are only cached at every checkpointSpacing-th interval
+     int checkpointSpacing;
 
 
 	// maximum integration error tolerance
@@ -73,7 +79,9 @@ private:
 
 	 double * coalescentRatesCache;
 	 double * migrationRatesCache;
-	 int ** indicatorsCache;
+	 // source and sink of the migrations that are switched on, per epoch, or null without indicators
+	 int * indicatorsCache;
+	 int * indicatorCounts;
 	 double * nextRateShiftCache;
 	 int rateShiftCount;
 
@@ -81,12 +89,13 @@ private:
 
 	 double logP;
 public:
-	Mascot(int * nodeType, int states, double epsilon, double max_step, int sampleCount, int nodeCount, int intervalCount, bool useCache);
+	Mascot(int * nodeType, int states, double epsilon, double max_step, int sampleCount, int nodeCount, int intervalCount, bool useCache, int checkpointSpacing);
 	virtual ~Mascot();
     double calculateLogP(bool dynamicsIsDirty, int firstDirtyInterval, int* lineagesAdded, int* lineagesRemoved, double* intervals, int* parents);
-    void addActiveLineages(const int pos1, const int coalLines1);
+    void replayActiveLineages(int lastInterval);
     void addActiveLineages(int newLineage);
-    void removeActiveLineageAt(int pos0);
+    void setActiveLineage(int row, int lineage);
+    int removeActiveLineageAt(int row);
     int indexOf(int value);
 
 
@@ -94,15 +103,18 @@ public:
 	double* getMigrationRates(int i) ;
 	double getRateShiftInterval(int i) ;
 	void setUpDynamics(int count, double * migration_rates, double * coalescent_rates, double * next_rate_shift);
+	void setUpIndicators(int count, int * indicators, int * indicator_counts);
 	double doEuler(double nextEventTime, int ratesInterval) ;
     void sample(int currTreeInterval, int currRatesInterval, double nextTreeEvent, double nextRateShift) ;
     double coalesce(int currTreeInterval, int currRatesInterval, double nextTreeEvent, double nextRateShift) ;
     void getStateProb(int nr, double * p) ;
+    void getStateProbs(double * p) ;
     void getRootState(double * p) ;
     void storeNode(int storingTreeInterval, int storingRatesInterval, double* storeLinProbs,double probability, double nextTreeEvent, double nextRateShift);
     int restoreNode(int restoringInterval);
 	void store() ;
     void storeLinP() ;
+    int maxLength(int * lengths, int from);
 	void restore();
 };
 
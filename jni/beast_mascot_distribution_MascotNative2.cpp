@@ -2,33 +2,74 @@
 #include "Mascot.h"
 #include <stdio.h>
 
-Mascot  * instance;
+// every MascotNative2 object owns a Mascot, its address is in the handle field of the object
+static jfieldID handleField = NULL;
+
+static Mascot * getInstance(JNIEnv * env, jobject o) {
+	if (handleField == NULL) {
+		handleField = (env)->GetFieldID((env)->GetObjectClass(o), "handle", "J");
+	}
+	Mascot * instance = (Mascot *) (env)->GetLongField(o, handleField);
+	if (instance == NULL) {
+		(env)->ThrowNew((env)->FindClass("java/lang/IllegalStateException"), "native Mascot has been released");
+	}
+	return instance;
+}
+
+/*
+ * Class:     beast_mascot_distribution_MascotNative2
+ * Method:    version
+ * Signature: ()I
+ */
+JNIEXPORT jint JNICALL Java_beast_mascot_distribution_MascotNative2_version
+  (JNIEnv * env, jclass c) {
+	// the version in the header generated from MascotNative2 when this library was built
+	return beast_mascot_distribution_MascotNative2_NATIVE_VERSION;
+}
 
 /*
  * Class:     beast_mascot_distribution_MascotNative2
  * Method:    setup
- * Signature: ([IIDDIII)V
+ * Signature: ([IIDDIIIZI)J
  */
-JNIEXPORT void JNICALL Java_beast_mascot_distribution_MascotNative2_setup
+JNIEXPORT jlong JNICALL Java_beast_mascot_distribution_MascotNative2_setup
   (JNIEnv * env, jobject o, jintArray nodeTypeArray, jint states,
-		  jdouble epsilon, jdouble max_step, jint sampleCount, jint nodeCount, jint intervalCount, jboolean useCache) {
-	jint * nodeType = (env)->GetIntArrayElements(nodeTypeArray, 0);
-	instance = new Mascot(nodeType, states, epsilon, max_step, sampleCount, nodeCount, nodeCount, useCache);
+		  jdouble epsilon, jdouble max_step, jint sampleCount, jint nodeCount, jint intervalCount, jboolean useCache, jint checkpointSpacing) {
+	// Mascot keeps the node types, so it gets its own copy
+	int length = (env)->GetArrayLength(nodeTypeArray);
+	int * nodeType = new int[length];
+	(env)->GetIntArrayRegion(nodeTypeArray, 0, length, nodeType);
+	return (jlong) new Mascot(nodeType, states, epsilon, max_step, sampleCount, nodeCount, nodeCount, useCache, checkpointSpacing);
+}
+
+/*
+ * Class:     beast_mascot_distribution_MascotNative2
+ * Method:    free
+ * Signature: (J)V
+ */
+JNIEXPORT void JNICALL Java_beast_mascot_distribution_MascotNative2_free
+  (JNIEnv * env, jclass c, jlong handle) {
+	delete (Mascot *) handle;
 }
 
 /*
  * Class:     beast_mascot_distribution_MascotNative2
  * Method:    calculateLogP
- * Signature: (ZI[I[I[D[I)D
+ * Signature: (ZILjava/nio/IntBuffer;Ljava/nio/IntBuffer;Ljava/nio/DoubleBuffer;Ljava/nio/IntBuffer;)D
  */
 JNIEXPORT jdouble JNICALL Java_beast_mascot_distribution_MascotNative2_calculateLogP
   (JNIEnv * env, jobject o, jboolean dynamicsIsDirty, jint firstDirtyInterval,
-		  jintArray lineagesAddedArray, jintArray lineagesRemovedArray, jdoubleArray intervalsArray,
-		  jintArray parentsArray) {
-	jint * lineagesAdded = (env)->GetIntArrayElements(lineagesAddedArray, 0);
-	jint * lineagesRemoved = (env)->GetIntArrayElements(lineagesRemovedArray, 0);
-	jdouble * intervals = (env)->GetDoubleArrayElements(intervalsArray, 0);
-	jint * parents = (env)->GetIntArrayElements(parentsArray, 0);
+		  jobject lineagesAddedBuffer, jobject lineagesRemovedBuffer, jobject intervalsBuffer,
+		  jobject parentsBuffer) {
+	Mascot * instance = getInstance(env, o);
+	if (instance == NULL) {
+		return 0;
+	}
+	// direct buffers, so the tree is read in place
+	jint * lineagesAdded = (jint *) (env)->GetDirectBufferAddress(lineagesAddedBuffer);
+	jint * lineagesRemoved = (jint *) (env)->GetDirectBufferAddress(lineagesRemovedBuffer);
+	jdouble * intervals = (jdouble *) (env)->GetDirectBufferAddress(intervalsBuffer);
+	jint * parents = (jint *) (env)->GetDirectBufferAddress(parentsBuffer);
 
 	jdouble logP = instance->calculateLogP(dynamicsIsDirty, firstDirtyInterval,
 			lineagesAdded, lineagesRemoved, intervals, parents);
@@ -39,40 +80,50 @@ JNIEXPORT jdouble JNICALL Java_beast_mascot_distribution_MascotNative2_calculate
 /*
  * Class:     beast_mascot_distribution_MascotNative2
  * Method:    setUpDynamics
- * Signature: ([D[D[[I[D)V
+ * Signature: (ILjava/nio/DoubleBuffer;Ljava/nio/DoubleBuffer;Ljava/nio/DoubleBuffer;)V
  */
 JNIEXPORT void JNICALL Java_beast_mascot_distribution_MascotNative2_setUpDynamics
-  (JNIEnv * env, jobject o, jdoubleArray coalescentRatesArray, jdoubleArray migrationRatesArray, jobjectArray indicatorsMatrix, jdoubleArray nextRateShiftArray) {
-	jdouble * coalescentRates = (env)->GetDoubleArrayElements(coalescentRatesArray, 0);
-	jdouble * migrationRates = (env)->GetDoubleArrayElements(migrationRatesArray, 0);
-	jdouble * nextRateShift = (env)->GetDoubleArrayElements(nextRateShiftArray, 0);
-	int rateShiftCount = env->GetArrayLength(nextRateShiftArray);
-
-//	  	fprintf(stderr, "ratesInterval %d\n", rateShiftCount);
-//	  	for (int k = 0;k < rateShiftCount; k++) {
-//	  		fprintf(stderr, "%d %f\n", k, nextRateShift[k]);
-//	  	for (int i = 0; i < 5; i++) {
-//	  		fprintf(stderr, "[");
-//	  		for (int j = 0; j < 5; j++) {
-//	  			fprintf(stderr, "%f ", migrationRates[k * 25 + i*5 + j]);
-//	  		}
-//	  		fprintf(stderr, "] %f \n", coalescentRates[k * 5 + i]);
-//	  	}
-//	  	}
+  (JNIEnv * env, jobject o, jint rateShiftCount, jobject coalescentRatesBuffer, jobject migrationRatesBuffer, jobject nextRateShiftBuffer) {
+	Mascot * instance = getInstance(env, o);
+	if (instance == NULL) {
+		return;
+	}
+	jdouble * coalescentRates = (jdouble *) (env)->GetDirectBufferAddress(coalescentRatesBuffer);
+	jdouble * migrationRates = (jdouble *) (env)->GetDirectBufferAddress(migrationRatesBuffer);
+	jdouble * nextRateShift = (jdouble *) (env)->GetDirectBufferAddress(nextRateShiftBuffer);
 
 	instance->setUpDynamics(rateShiftCount, coalescentRates, migrationRates, nextRateShift);
 }
 
 /*
  * Class:     beast_mascot_distribution_MascotNative2
- * Method:    getStateProb
- * Signature: (I[D)V
+ * Method:    setUpIndicators
+ * Signature: (ILjava/nio/IntBuffer;Ljava/nio/IntBuffer;)V
+ */
+JNIEXPORT void JNICALL Java_beast_mascot_distribution_MascotNative2_setUpIndicators
+  (JNIEnv * env, jobject o, jint rateShiftCount, jobject indicatorsBuffer, jobject indicatorCountsBuffer) {
+	Mascot * instance = getInstance(env, o);
+	if (instance == NULL) {
+		return;
+	}
+	jint * indicators = (jint *) (env)->GetDirectBufferAddress(indicatorsBuffer);
+	jint * indicatorCounts = (jint *) (env)->GetDirectBufferAddress(indicatorCountsBuffer);
+
+	instance->setUpIndicators(rateShiftCount, indicators, indicatorCounts);
+}
+
+/*
+ * Class:     beast_mascot_distribution_MascotNative2
+ * Method:    getStateProbs
+ * Signature: (Ljava/nio/DoubleBuffer;)V
  */
-JNIEXPORT void JNICALL Java_beast_mascot_distribution_MascotNative2_getStateProb
-  (JNIEnv * env, jobject o, jint nr, jdoubleArray pArray) {
-	jdouble * p = (env)->GetDoubleArrayElements(pArray, 0);
-	instance->getStateProb(nr, p);
-  	(env)->SetDoubleArrayRegion(pArray, 0, instance->states, p);
+JNIEXPORT void JNICALL Java_beast_mascot_distribution_MascotNative2_getStateProbs
+  (JNIEnv * env, jobject o, jobject stateProbabilitiesBuffer) {
+	Mascot * instance = getInstance(env, o);
+	if (instance == NULL) {
+		return;
+	}
+	instance->getStateProbs((jdouble *) (env)->GetDirectBufferAddress(stateProbabilitiesBuffer));
 }
 
 /*
@@ -82,6 +133,10 @@ JNIEXPORT void JNICALL Java_beast_mascot_distribution_MascotNative2_getStateProb
  */
 JNIEXPORT void JNICALL Java_beast_mascot_distribution_MascotNative2_storeState
   (JNIEnv * env, jobject o) {
+	Mascot * instance = getInstance(env, o);
+	if (instance == NULL) {
+		return;
+	}
 	instance->store();
 }
 
@@ -92,5 +147,9 @@ JNIEXPORT void JNICALL Java_beast_mascot_distribution_MascotNative2_storeState
  */
 JNIEXPORT void JNICALL Java_beast_mascot_distribution_MascotNative2_restoreState
   (JNIEnv * env, jobject o) {
+	Mascot * instance = getInstance(env, o);
+	if (instance == NULL) {
+		return;
+	}
 	instance->restore();
 }
@@ -7,37 +7,63 @@
 #ifdef __cplusplus
 extern "C" {
 #endif
+#undef beast_mascot_distribution_MascotNative2_NATIVE_VERSION
+#define beast_mascot_distribution_MascotNative2_NATIVE_VERSION 1L
+/*
+ * Class:     beast_mascot_distribution_MascotNative2
+ * Method:    version
+ * Signature: ()I
+ */
+JNIEXPORT jint JNICALL Java_beast_mascot_distribution_MascotNative2_version
+  (JNIEnv *, jclass);
+
 /*
  * Class:     beast_mascot_distribution_MascotNative2
  * Method:    setup
- * Signature: ([IIDDIIIZ)V
+ * Signature: ([IIDDIIIZI)J
+ */
+JNIEXPORT jlong JNICALL Java_beast_mascot_distribution_MascotNative2_setup
+  (JNIEnv *, jobject, jintArray, jint, jdouble, jdouble, jint, jint, jint, jboolean, jint);
+
+/*
+ * Class:     beast_mascot_distribution_MascotNative2
+ * Method:    free
+ * Signature: (J)V
  */
-JNIEXPORT void JNICALL Java_beast_mascot_distribution_MascotNative2_setup
-  (JNIEnv *, jobject, jintArray, jint, jdouble, jdouble, jint, jint, jint, jboolean);
+JNIEXPORT void JNICALL Java_beast_mascot_distribution_MascotNative2_free
+  (JNIEnv *, jclass, jlong);
 
 /*
  * Class:     beast_mascot_distribution_MascotNative2
  * Method:    calculateLogP
- * Signature: (ZI[I[I[D[I)D
+ * Signature: (ZILjava/nio/IntBuffer;Ljava/nio/IntBuffer;Ljava/nio/DoubleBuffer;Ljava/nio/IntBuffer;)D
  */
 JNIEXPORT jdouble JNICALL Java_beast_mascot_distribution_MascotNative2_calculateLogP
-  (JNIEnv *, jobject, jboolean, jint, jintArray, jintArray, jdoubleArray, jintArray);
+  (JNIEnv *, jobject, jboolean, jint, jobject, jobject, jobject, jobject);
 
 /*
  * Class:     beast_mascot_distribution_MascotNative2
  * Method:    setUpDynamics
- * Signature: ([D[D[[I[D)V
+ * Signature: (ILjava/nio/DoubleBuffer;Ljava/nio/DoubleBuffer;Ljava/nio/DoubleBuffer;)V
  */
 JNIEXPORT void JNICALL Java_beast_mascot_distribution_MascotNative2_setUpDynamics
-  (JNIEnv *, jobject, jdoubleArray, jdoubleArray, jobjectArray, jdoubleArray);
+  (JNIEnv *, jobject, jint, jobject, jobject, jobject);
+
+/*
+ * Class:     beast_mascot_distribution_MascotNative2
+ * Method:    setUpIndicators
+ * Signature: (ILjava/nio/IntBuffer;Ljava/nio/IntBuffer;)V
+ */
+JNIEXPORT void JNICALL Java_beast_mascot_distribution_MascotNative2_setUpIndicators
+  (JNIEnv *, jobject, jint, jobject, jobject);
 
 /*
  * Class:     beast_mascot_distribution_MascotNative2
- * Method:    getStateProb
- * Signature: (I[D)V
+ * Method:    getStateProbs
+ * Signature: (Ljava/nio/DoubleBuffer;)V
  */
-JNIEXPORT void JNICALL Java_beast_mascot_distribution_MascotNative2_getStateProb
-  (JNIEnv *, jobject, jint, jdoubleArray);
+JNIEXPORT void JNICALL Java_beast_mascot_distribution_MascotNative2_getStateProbs
+  (JNIEnv *, jobject, jobject);
 
 /*
  * Class:     beast_mascot_distribution_MascotNative2
@@ -3,16 +3,29 @@
 #include "Euler2ndOrderCPU.h"
 #include <stdio.h>
 
-Euler2ndOrderCPU * instance;
+// every Euler2ndOrderNative object owns an integrator, its address is in the handle field of the object
+static jfieldID handleField = NULL;
+
+static Euler2ndOrderCPU * getInstance(JNIEnv * env, jobject obj) {
+	if (handleField == NULL) {
+		handleField = (env)->GetFieldID((env)->GetObjectClass(obj), "handle", "J");
+	}
+	Euler2ndOrderCPU * instance = (Euler2ndOrderCPU *) (env)->GetLongField(obj, handleField);
+	if (instance == NULL) {
+		(env)->ThrowNew((env)->FindClass("java/lang/IllegalStateException"), "native integrator has not been set up or has been released");
+	}
+	return instance;
+}
 
 
 /*
  * Class:     beast_mascot_ode_Euler2ndOrderNative
- * Method:    setup
- * Signature: (I)V
+ * Method:    create
+ * Signature: (IIDD)J
  */
-JNIEXPORT void JNICALL Java_beast_mascot_ode_Euler2ndOrderNative_setup
+JNIEXPORT jlong JNICALL Java_beast_mascot_ode_Euler2ndOrderNative_create
   (JNIEnv *env, jobject obj, jint maxSize, jint states, jdouble epsilon, jdouble max_step) {
+	Euler2ndOrderCPU * instance;
 	switch (states) {
 	case 2: instance = new Euler2ndOrderCPU2();break;
 	case 3: instance = new Euler2ndOrderCPU3();break;
@@ -28,6 +41,17 @@ JNIEXPORT void JNICALL Java_beast_mascot_ode_Euler2ndOrderNative_setup
 	instance->setup(maxSize, states, epsilon, max_step);
 	printf("Java_beast_mascot_ode_Euler2ndOrderNative_setup\n");
 	printf("maxSize = %d\n", maxSize);
+	return (jlong) instance;
+}
+
+/*
+ * Class:     beast_mascot_ode_Euler2ndOrderNative
+ * Method:    free
+ * Signature: (J)V
+ */
+JNIEXPORT void JNICALL Java_beast_mascot_ode_Euler2ndOrderNative_free
+  (JNIEnv *env, jclass c, jlong handle) {
+	delete (Euler2ndOrderCPU *) handle;
 }
 
 /*
@@ -37,6 +61,10 @@ JNIEXPORT void JNICALL Java_beast_mascot_ode_Euler2ndOrderNative_setup
  */
 JNIEXPORT void JNICALL Java_beast_mascot_ode_Euler2ndOrderNative_init
   (JNIEnv *env, jobject obj, jdoubleArray migration_ratesArray, jdoubleArray coalescent_ratesArray, jint lineages) {
+	Euler2ndOrderCPU * instance = getInstance(env, obj);
+	if (instance == NULL) {
+		return;
+	}
   	jdouble * migration_rates = (env)->GetDoubleArrayElements(migration_ratesArray, 0);
   	jdouble * coalescent_rates = (env)->GetDoubleArrayElements(coalescent_ratesArray, 0);
   	int rateCount = env->GetArrayLength(migration_ratesArray);
@@ -51,6 +79,17 @@ JNIEXPORT void JNICALL Java_beast_mascot_ode_Euler2ndOrderNative_init
  */
 JNIEXPORT void JNICALL Java_beast_mascot_ode_Euler2ndOrderNative_initWithIndicators
   (JNIEnv *env, jobject obj, jdoubleArray migration_ratesArray, jintArray indicatorsArray, jdoubleArray coalescent_ratesArray, jint lineages) {
+	Euler2ndOrderCPU * instance = getInstance(env, obj);
+	if (instance == NULL) {
+		return;
+	}
+  	jdouble * migration_rates = (env)->GetDoubleArrayElements(migration_ratesArray, 0);
+  	jint * indicators = (env)->GetIntArrayElements(indicatorsArray, 0);
+  	jdouble * coalescent_rates = (env)->GetDoubleArrayElements(coalescent_ratesArray, 0);
+  	int rateCount = env->GetArrayLength(migration_ratesArray);
+  	int indicatorCount = env->GetArrayLength(indicatorsArray);
+
+	instance->initWithIndicators(migration_rates, rateCount, indicators, indicatorCount, coalescent_rates, lineages);
 }
 
 /*
@@ -60,6 +99,10 @@ JNIEXPORT void JNICALL Java_beast_mascot_ode_Euler2ndOrderNative_initWithIndicat
  */
 JNIEXPORT void JNICALL Java_beast_mascot_ode_Euler2ndOrderNative_calculateValues
   (JNIEnv *env, jobject obj, jdouble duration, jdoubleArray pArray, jint length) {
+	Euler2ndOrderCPU * instance = getInstance(env, obj);
+	if (instance == NULL) {
+		return;
+	}
   	jdouble * p = (env)->GetDoubleArrayElements(pArray, 0);
   	instance->calculateValues(duration, p, length);
   	(env)->SetDoubleArrayRegion(pArray, 0, length, p);
@@ -74,6 +117,10 @@ JNIEXPORT void JNICALL Java_beast_mascot_ode_Euler2ndOrderNative_calculateValues
 JNIEXPORT void JNICALL Java_beast_mascot_ode_Euler2ndOrderNative_initAndcalculateValues
 (JNIEnv *env, jobject obj, jdoubleArray migration_ratesArray, jdoubleArray coalescent_ratesArray, jint lineages,
 		jdouble duration, jdoubleArray pArray, jint length) {
+	Euler2ndOrderCPU * instance = getInstance(env, obj);
+	if (instance == NULL) {
+		return;
+	}
   	jdouble * migration_rates = (env)->GetDoubleArrayElements(migration_ratesArray, 0);
   	jdouble * coalescent_rates = (env)->GetDoubleArrayElements(coalescent_ratesArray, 0);
   	int rateCount = env->GetArrayLength(migration_ratesArray);
@@ -95,6 +142,10 @@ JNIEXPORT void JNICALL Java_beast_mascot_ode_Euler2ndOrderNative_initAndcalculat
 JNIEXPORT void JNICALL Java_beast_mascot_ode_Euler2ndOrderNative_initAndcalculateValues__IID_3DI
   (JNIEnv *env, jobject obj, jint ratesInterval,  jint lineages,
 			jdouble duration, jdoubleArray pArray, jint length) {
+	Euler2ndOrderCPU * instance = getInstance(env, obj);
+	if (instance == NULL) {
+		return;
+	}
 	int states = instance->states;
 	if (ratesInterval >= instance->rateShiftCount) {
 		ratesInterval = instance->rateShiftCount - 1;
@@ -129,6 +180,10 @@ JNIEXPORT void JNICALL Java_beast_mascot_ode_Euler2ndOrderNative_initAndcalculat
  */
 JNIEXPORT void JNICALL Java_beast_mascot_ode_Euler2ndOrderNative_setUpDynamics___3D_3D_3D
   (JNIEnv *env, jobject obj, jdoubleArray coalescentRatesArray, jdoubleArray migrationRatesArray, jdoubleArray nextRateShiftArry) {
+	Euler2ndOrderCPU * instance = getInstance(env, obj);
+	if (instance == NULL) {
+		return;
+	}
   	jdouble * coalescent_rates = (env)->GetDoubleArrayElements(coalescentRatesArray, 0);
  	jdouble * migration_rates = (env)->GetDoubleArrayElements(migrationRatesArray, 0);
   	jdouble * next_rate_shift = (env)->GetDoubleArrayElements(nextRateShiftArry, 0);
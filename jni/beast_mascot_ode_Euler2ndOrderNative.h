@@ -9,12 +9,20 @@ extern "C" {
 #endif
 /*
  * Class:     beast_mascot_ode_Euler2ndOrderNative
- * Method:    setup
- * Signature: (IIDD)V
+ * Method:    create
+ * Signature: (IIDD)J
  */
-JNIEXPORT void JNICALL Java_beast_mascot_ode_Euler2ndOrderNative_setup
+JNIEXPORT jlong JNICALL Java_beast_mascot_ode_Euler2ndOrderNative_create
   (JNIEnv *, jobject, jint, jint, jdouble, jdouble);
 
+/*
+ * Class:     beast_mascot_ode_Euler2ndOrderNative
+ * Method:    free
+ * Signature: (J)V
+ */
+JNIEXPORT void JNICALL Java_beast_mascot_ode_Euler2ndOrderNative_free
+  (JNIEnv *, jclass, jlong);
+
 /*
  * Class:     beast_mascot_ode_Euler2ndOrderNative
  * Method:    init
@@ -1,7 +1,7 @@
 package beast.mascot.distribution;
 
 
-import java.util.ArrayList;
+import java.util.Arrays;
 
 import org.jblas.DoubleMatrix;
 
@@ -15,7 +15,6 @@ import beast.evolution.tree.TreeInterface;
 import beast.evolution.tree.coalescent.IntervalType;
 import beast.mascot.dynamics.Dynamics;
 import beast.mascot.ode.*;
-import cern.colt.Arrays;
 
 /**
  * @author Nicola Felix Mueller
@@ -30,15 +29,26 @@ public class Mascot extends StructuredTreeDistribution {
 	public Input<Double> epsilonInput = new Input<>("epsilon", "step size for the RK4 integration",0.001);
 	public Input<Double> maxStepInput = new Input<>("maxStep", "step size for the RK4 integration", Double.POSITIVE_INFINITY);
 	
-	public Input<Boolean> cacheInput = new Input<>("useCache", "use cache to speed things up (may be fragile)", false);
+	public Input<Boolean> cacheInput = new Input<>("useCache", "use cache to speed things up, see verifyCache to check the cached results", false);
+	public Input<Integer> checkpointSpacingInput = new Input<>("checkpointSpacing", "number of intervals between cached lineage probabilities if useCache=true. "
+			+ "Memory use is proportional to number of intervals^2 / checkpointSpacing, and up to checkpointSpacing intervals are recalculated after a restore. "
+			+ "1 caches every interval, 0 uses the square root of the number of intervals", 0);
+	public Input<Integer> verifyCacheInput = new Input<>("verifyCache", "if useCache=true, recalculate the log probability from scratch every verifyCache "
+			+ "evaluations and every verifyCache stores, and stop with the first diverging interval if it differs from the cached calculation. "
+			+ "Those stores also check that they leave an identical copy of the cache, and all check that the cached rates of the dynamics "
+			+ "were not changed. 0 switches verification off", 0);
+	public Input<Boolean> collapseInput = new Input<>("collapseLineages", "integrate lineages sampled in the same state at the same time as a single weighted row "
+			+ "until they coalesce. Cannot be combined with useCache=true or the native implementation", false);
 
-	enum MascotImplementation {java, indicators, allnative};
+	enum MascotImplementation {java, indicators, allnative, simd, statemajor, rk32, split};
 	public Input<MascotImplementation> implementationInput = new Input<>("implementation", "implementation, one of " + MascotImplementation.values().toString(),
 			MascotImplementation.allnative, MascotImplementation.values());
     
 	public int samples;
 	public int nrSamples;
-	public DoubleMatrix[] stateProbabilities;
+	// unnormalised state probabilities of the internal nodes, the lambda's of their coalescent
+	// events, only normalised when a logger asks for them
+	private double[] nodeLambdas;
     
     private int nrLineages;   
 
@@ -49,31 +59,50 @@ public class Mascot extends StructuredTreeDistribution {
 
     
     // Set up for lineage state probabilities
-    private ArrayList<Integer> activeLineages;
+    // node number of the lineage in each row of linProbs, and the row of each node
+    private int[] activeLineages;
+    private int activeLineageCount;
+    private int[] rowOfNode;
 	private double[] linProbs;
-	private double[] linProbsNew;
 	private int linProbsLength;
 	private int states;
+	// if true, linProbs is stored as linProbs[state * capacity + lineage] instead of linProbs[lineage * states + state]
+	private boolean stateMajor;
+	private int capacity;
+	
+	// if true, a row of linProbs stands for multiplicator[row] identical lineages
+	private boolean collapse;
+	private int[] multiplicator;
+	// euler, if it supportsMultiplicator
+	private Euler2ndOrder collapsingEuler;
+	// node that stands for the row of a lineage in activeLineages and rowOfNode
+	private int[] representative;
+	// row of the lineages sampled in a state since the last integration step, -1 if none
+	private int[] sampleRowOfState;
 	
     // store the linProbs, multiplicators and logP's at coalescent points in jagged arrays from last time
     private double[] coalLinProbs;
     private int [] coalLinProbsLengths;
     private double[] coalLogP;
     private int[] coalRatesInterval;
-    //private ArrayList<ArrayList<Integer>> coalActiveLineages;
+    // active lineages in row order at the checkpoints, at the offset of their linProbs divided by states
+    private int[] coalActiveLineages;
     
     // deep store the things above for MCMC
     private double[] storeLinProbs;
     private int [] storedCoalLinProbsLengths;
     private double[] storeLogP;
     private int[] storeRatesInterval;
-    //private ArrayList<ArrayList<Integer>> storeActiveLineages;
+    private int[] storeActiveLineages;
 
     
 	private double [] nextTreeEvents;
 	private double [] storedNextTreeEvents;
 	private double [] nextRateShifts;
 	private double [] storedNextRateShifts;
+	// first interval cached by calculateLogP since the last store or restore, the cache 
+	// and the stored cache are the same before it, so only the rest is copied
+	private int firstChangedInterval = 0;
 	//private int [] treeIntervalNrs;
 	//private int [] storedTreeIntervalNrs;
 	//private int [] lineagesAddded;
@@ -95,6 +124,12 @@ public class Mascot extends StructuredTreeDistribution {
 
 	MascotNative2 mascotImpl = null;
 	boolean useCache;
+	int checkpointSpacing;
+	int verifyCache;
+	// number of evaluations and stores, and the cached interval log probabilities while verifying them
+	int evaluations = 0;
+	int stores = 0;
+	double [] verifyLogP;
 	
     @Override
     public void initAndValidate(){
@@ -105,16 +140,32 @@ public class Mascot extends StructuredTreeDistribution {
     	if (tree == null) {
     		tree = treeIntervals.treeInput.get();
     	}
-    	treeIntervals.calculateIntervals();       
-    	stateProbabilities = new DoubleMatrix[treeIntervals.getSampleCount()];
-        nrSamples = treeIntervals.getSampleCount() + 1;    
+    	treeIntervals.calculateIntervals();
+        nrSamples = treeIntervals.getSampleCount() + 1;
         states = dynamics.getDimension();
+    	nodeLambdas = new double[treeIntervals.getSampleCount() * states];
                 
     	int intCount = treeIntervals.getIntervalCount();
 
     	// initialize storing arrays and ArrayLists
-    	coalLinProbs = new double[intCount * intCount * states];
-    	storeLinProbs = new double[intCount * intCount * states];
+    	checkpointSpacing = checkpointSpacingInput.get();
+    	if (checkpointSpacing <= 0) {
+    		checkpointSpacing = (int) Math.ceil(Math.sqrt(intCount));
+    	}
+    	// there are never more active lineages than leafs
+    	int cacheSize = useCache ? (intCount / checkpointSpacing + 1) * tree.getLeafNodeCount() * states : 0;
+    	coalLinProbs = new double[cacheSize];
+    	storeLinProbs = new double[cacheSize];
+    	coalActiveLineages = new int[cacheSize / states];
+    	storeActiveLineages = new int[cacheSize / states];
+    	if (useCache) {
+    		Log.info.println(String.format("Mascot cache: checkpoint every %d intervals, %.1fMB for cached lineage probabilities", 
+    				checkpointSpacing, 2.0 * 8 * cacheSize / (1024 * 1024)));
+    	}
+    	verifyCache = useCache ? verifyCacheInput.get() : 0;
+    	if (verifyCache > 0) {
+    		verifyLogP = new double[intCount];
+    	}
     	coalLinProbsLengths = new int[intCount];
     	storedCoalLinProbsLengths = new int[intCount];
     	coalLogP = new double[intCount];
@@ -135,13 +186,13 @@ public class Mascot extends StructuredTreeDistribution {
     	//ArrayList<Integer> emptyList = new ArrayList<>();
     	//for (int i = 0; i <= intCount; i++) coalActiveLineages.add(emptyList);
     	
-    	activeLineages = new ArrayList<>();
+    	activeLineages = new int[tree.getNodeCount()];
+    	rowOfNode = new int[tree.getNodeCount()];
+    	lambda = new double[states];
 
     	int MAX_SIZE = intCount * states;
-    	linProbs_for_ode = new double[MAX_SIZE];
-    	linProbs_tmp = new double[MAX_SIZE];
-    	linProbs = new double[MAX_SIZE];
-    	linProbsNew = new double[MAX_SIZE];
+    	// one extra entry for the log probability the ODE is integrating
+    	linProbs = new double[MAX_SIZE + 1];
     	
 		nodeType = new int[tree.getNodeCount()];
     	if (dynamics.typeTraitInput.get() != null) {
@@ -154,13 +205,16 @@ public class Mascot extends StructuredTreeDistribution {
 				}
     		}
     	} else {
-    		// TODO: fill in nodeType another way
+    		// the state is the last part of the taxon name after a _
+    		for (int i = 0; i < tree.getLeafNodeCount(); i++) {
+    			nodeType[i] = getSampleState(i);
+    		}
     	}
 
     	MascotImplementation imp = implementationInput.get();
     	switch (imp) {
     	case allnative: if (Euler2ndOrderNative.loadLibrary()) {
-    		mascotImpl = new MascotNative2(treeIntervals, nodeType, states,epsilonInput.get(), maxStepInput.get(), useCache);
+    		mascotImpl = new MascotNative2(treeIntervals, nodeType, states,epsilonInput.get(), maxStepInput.get(), useCache, checkpointSpacing);
     		break;
     	}
     	case indicators: if (Euler2ndOrderNative.loadLibrary()) {
@@ -180,24 +234,121 @@ public class Mascot extends StructuredTreeDistribution {
     		case 8: euler = new Euler2ndOrder8(); break;
     		case 9: euler = new Euler2ndOrder9(); break;
     		case 10: euler = new Euler2ndOrder10(); break;
-    		default: euler = new Euler2ndOrder(); break;
+    		default: euler = newEuler2ndOrder(states); break;
     		}
         	euler.setup(MAX_SIZE, states, epsilonInput.get(), maxStepInput.get());
         	Log.warning("Using " + euler.getClass().getSimpleName());
+        	break;
+    	case simd:
+    		euler = new Euler2ndOrderSIMD();
+        	euler.setup(MAX_SIZE, states, epsilonInput.get(), maxStepInput.get());
+        	Log.warning("Using " + euler.getClass().getSimpleName());
+        	break;
+    	case rk32:
+    		euler = new RungeKutta32(newEuler2ndOrder(states));
+        	euler.setup(MAX_SIZE, states, epsilonInput.get(), maxStepInput.get());
+        	Log.warning("Using " + euler.getClass().getSimpleName());
+        	break;
+    	case split:
+    		euler = new StrangSplitting(newEuler2ndOrder(states));
+        	euler.setup(MAX_SIZE, states, epsilonInput.get(), maxStepInput.get());
+        	Log.warning("Using " + euler.getClass().getSimpleName());
+        	break;
+    	case statemajor:
+    		// one row of intCount lineages per state, plus the log probability at the end
+    		stateMajor = true;
+    		capacity = intCount;
+    		euler = new Euler2ndOrderStateMajor();
+        	euler.setup(MAX_SIZE, states, epsilonInput.get(), maxStepInput.get());
+        	Log.warning("Using " + euler.getClass().getSimpleName());
     	}
     	
+    	timeVarying = dynamics.isTimeVarying();
+    	if (timeVarying) {
+    		if (mascotImpl != null || euler instanceof Euler2ndOrderNative) {
+    			throw new IllegalArgumentException("time varying dynamics are not supported by the native implementation, use implementation=java");
+    		}
+    		if (!euler.supportsTimeVaryingRates()) {
+    			throw new IllegalArgumentException(euler.getClass().getSimpleName() + " does not support time varying rates, use implementation=java");
+    		}
+    		euler.setTimeVaryingRates(dynamics::getCoalescentRate);
+    		timeVaryingCoalescentRates = new double[states];
+    	}
     	
+    	collapse = collapseInput.get();
+    	if (collapse && (mascotImpl != null || useCache || !euler.supportsMultiplicator())) {
+    		throw new IllegalArgumentException("collapseLineages is not supported with " + (mascotImpl != null ? "the native implementation" : 
+    			useCache ? "useCache=true" : euler.getClass().getSimpleName()) + ", set collapseLineages=false or use implementation=java with useCache=false");
+    	}
+    	if (collapse) {
+    		collapsingEuler = (Euler2ndOrder) euler;
+    		multiplicator = new int[intCount];
+    		representative = new int[tree.getNodeCount()];
+    		sampleRowOfState = new int[states];
+    	}
     }
-    
-    double [] linProbs_for_ode;
-    double [] linProbs_tmp;
+
+    /** kernel with the loops over states unrolled, which needs a java compiler at runtime for more than 10 states **/
+    private Euler2ndOrder newEuler2ndOrder(int states) {
+    	Euler2ndOrder euler = Euler2ndOrderFactory.newInstance(states);
+    	if (!Euler2ndOrderFactory.isGenerated(euler)) {
+    		Log.warning("Could not generate an unrolled integrator for " + states + " states, using the slower generic one. "
+    				+ "Generating it requires BEAST to run on a JDK rather than a JRE.");
+    	}
+    	return euler;
+    }
+
     int [] parents;
+    // coalescent rates per epoch, as passed to the integrator
+    double [][] epochCoalescentRates;
+    double [][] epochMigrationRates;
+    int [][] epochIndicators;
+    // pairwise coalescent rate per state at a coalescent event
+    double [] lambda;
+    // true if the coalescent rates change within epochs, time is then the time of the 
+    // integration since the most recent sample
+    boolean timeVarying;
+    double time;
+    double [] timeVaryingCoalescentRates;
 
     public double calculateLogP() {
-    	// newly calculate tree intervals (already done by swap() below)
-    	treeIntervals.calculateIntervals();
-    	// correctly calculate the daughter nodes at coalescent intervals in the case of
-    	// bifurcation or in case two nodes are at the same height
+    	logP = calculateLogP(true);
+    	if (verifyCache > 0 && ++evaluations % verifyCache == 0) {
+    		verifyCachedLogP(logP);
+    	}
+    	return logP;
+    }
+
+    /** recalculates the log probability from scratch and fails if the cached calculation differs **/
+    private void verifyCachedLogP(double cachedLogP) {
+    	dynamics.verifyCachedRates();
+    	if (mascotImpl == null) {
+    		System.arraycopy(coalLogP, 0, verifyLogP, 0, coalLogP.length);
+    	}
+    	final double fullLogP = calculateLogP(false);
+    	if (sameLogP(cachedLogP, fullLogP)) {
+    		return;
+    	}
+    	String interval = "";
+    	if (mascotImpl == null) {
+    		for (int i = 0; i < treeIntervals.getIntervalCount(); i++) {
+    			if (!sameLogP(verifyLogP[i], coalLogP[i])) {
+    				interval = ", first diverging at interval " + i + " (" + verifyLogP[i] + " instead of " + coalLogP[i] + ")";
+    				break;
+    			}
+    		}
+    	}
+    	throw new RuntimeException("Cached log probability " + cachedLogP + " differs from the recalculated " + fullLogP 
+    			+ interval + ". Run with useCache=false to avoid this.");
+    }
+
+    private static boolean sameLogP(double a, double b) {
+    	return Double.compare(a, b) == 0 || Math.abs(a - b) <= 1e-8 * Math.max(1.0, Math.abs(b));
+    }
+
+    private double calculateLogP(boolean restoreFromCache) {
+    	// newly calculate tree intervals, with the daughter nodes at coalescent intervals 
+    	// correct in case two nodes are at the same height
     	treeIntervals.swap();    	
 
     	if (mascotImpl != null) {
@@ -208,7 +359,7 @@ public class Mascot extends StructuredTreeDistribution {
             if (first == 0 || !dynamics.areDynamicsKnown()) {
             	mascotImpl.setUpDynamics(dynamics);
             }
-    		logP = mascotImpl.calculateLogP(dynamics.isDirtyCalculation() || first == 0, 
+    		logP = mascotImpl.calculateLogP(!restoreFromCache || dynamics.isDirtyCalculation() || first == 0, 
     				treeIntervals.firstDirtyInterval,
     				treeIntervals.lineagesAdded,
     				treeIntervals.lineagesRemoved,
@@ -220,13 +371,17 @@ public class Mascot extends StructuredTreeDistribution {
     		return logP;
     	}
         // Set up ArrayLists for the indices of active lineages and the lineage state probabilities
-        activeLineages.clear();
+        activeLineageCount = 0;
         logP = 0;
         nrLineages = 0;
+        if (collapse) {
+        	Arrays.fill(sampleRowOfState, -1);
+        }
         //linProbs = new double[0];// initialize the tree and rates interval counter
         linProbsLength = 0;
         int treeInterval = 0, ratesInterval = 0;        
      	double nextEventTime = 0.0;
+     	time = 0.0;
         
         // Time to the next rate shift or event on the tree
         double nextTreeEvent = treeIntervals.getInterval(treeInterval);
@@ -245,102 +400,40 @@ public class Mascot extends StructuredTreeDistribution {
         if (first == 0 || !dynamics.areDynamicsKnown()) {
         	setUpDynamics();
         }
-        if (useCache && first > 0 && !dynamics.isDirtyCalculation() 
-				&& treeIntervals.firstDirtyInterval > 2) {
-        // restore the likelihood to last known good place
-    	  int pos0 = -1, pos1 = -1;
-    	  do {
-        	
-        	nextEventTime = nextTreeEvent;
-
+        // intervals in epochs before this one are not affected by a change of the dynamics
+        final int firstDirtyEpoch = dynamics.isDirtyCalculation() ? dynamics.getFirstDirtyEpoch() : Integer.MAX_VALUE;
+        if (restoreFromCache && useCache && first > 0 && firstDirtyEpoch > 0) {
+        	// restore the likelihood to last known good place, which is before the first interval 
+        	// that changed since the last store or that lies in an epoch with different dynamics
+        	int dirtyInterval = treeIntervals.getFirstChangedInterval();
+        	if (firstDirtyEpoch < Integer.MAX_VALUE) {
+        		dirtyInterval = firstIntervalInEpoch(firstDirtyEpoch, dirtyInterval);
+        	}
     		// Check if the last interval was reached
-    		if (treeInterval == treeIntervals.intervalCount){
+    		if (dirtyInterval >= treeIntervals.intervalCount){
     			// Log.warning("Restoring to the finish!");
     			logP = coalLogP[coalLogP.length-1];
     			return logP;
     		}
-    		boolean isDirty;
-    		if (treeIntervals.getCoalescentEvents(treeInterval) > 0) { // == IntervalType.COALESCENT) {        		
- 	           	Integer coalLines0 = treeIntervals.getLineagesRemoved(treeInterval, 0);
- 	           	Integer coalLines1 = treeIntervals.getLineagesRemoved(treeInterval, 1);
- 	           	pos0 = activeLineages.indexOf(coalLines0);
- 	           	pos1 = activeLineages.indexOf(coalLines1);
- 	           	if (pos0 < 0 || pos1 < 0) {
- 	           		System.out.println(coalLines0/*.getNr()*/ + " " + coalLines1/*.getNr()*/ + " " + activeLineages);
- 	           		System.out.println("daughter lineages at coalescent event not found");
- 	           		throw new RuntimeException("coalesceX went wrong at 1");
- 	           	}
- 	           	if (pos0 > pos1) {
- 	           		activeLineages.remove(pos0);
- 	           		activeLineages.remove(pos1);
- 	           	} else {
- 	           		activeLineages.remove(pos1);
- 	           		activeLineages.remove(pos0);
- 	           	}
- 	            int newLineage = tree.getNode(coalLines0).getParent().getNr();
- 	            activeLineages.add(newLineage);	 	           
- 	            isDirty = treeIntervals.storedLineagesAdded[treeInterval] != newLineage;
-        	} else { // (treeIntervals.getIntervalType(treeInterval) == IntervalType.SAMPLE) { 	       			
-       			int incomingLines = treeIntervals.getLineagesAdded(treeInterval);
-       			activeLineages.add(incomingLines);
-       			isDirty = treeIntervals.storedLineagesAdded[treeInterval] != incomingLines;
-       		}	
-       		
-       	
-    		if (isDirty || treeInterval+1 == treeIntervals.firstDirtyInterval) {
-//    				treeIntervals.intervalIsDirty(treeInterval+1) || isDirty) { 
-    			if (treeInterval <= 2) {
-        			treeInterval = 0;
-        			ratesInterval = 0;
-        	        activeLineages.clear();
-        	        logP = 0;
-        	     	nextEventTime = 0.0;
-        	        nextTreeEvent = treeIntervals.getInterval(treeInterval);
-        	        nextRateShift = dynamics.getInterval(ratesInterval);        			
-        			break; 	    				
-    			}
-    			
-// 	    			Log.warning.print("Restore I ");
-	 	        activeLineages.remove(activeLineages.size() - 1);	 	           
-        		if (treeIntervals.getCoalescentEvents(treeInterval) > 0) { // == IntervalType.COALESCENT) {        		
-	 	           	Integer coalLines0 = treeIntervals.getLineagesRemoved(treeInterval, 0);
-	 	           	Integer coalLines1 = treeIntervals.getLineagesRemoved(treeInterval, 1);
-	 	           	if (pos0 > pos1) {
-	 	           		activeLineages.add(pos1, coalLines1);
-	 	           		activeLineages.add(pos0, coalLines0);
-	 	           	} else {
-	 	           		activeLineages.add(pos0, coalLines0);
-	 	           		activeLineages.add(pos1, coalLines1);
-	 	           	}
-	       		}	
-    			
-    			treeInterval++;
-    			ratesInterval = restoreNode(treeInterval-2);
-    			nextTreeEvent = nextTreeEvents[treeInterval-1];
-    			nextRateShift = nextRateShifts[treeInterval-1];
-    			treeInterval--;
-    			break;
-    		}
-       		treeInterval++;
-    		nextRateShift -= nextTreeEvent;   
-    		try{
+			// linProbs are only cached at checkpoints, the intervals after it are recalculated
+			final int checkpoint = (dirtyInterval / checkpointSpacing) * checkpointSpacing - 1;
+			if (checkpoint >= 2) {
+    			ratesInterval = restoreNode(checkpoint);
+    			// continue as if the event at the checkpoint was just calculated
+    			nextRateShift = nextRateShifts[checkpoint] - nextTreeEvents[checkpoint];
+    			treeInterval = checkpoint + 1;
     			nextTreeEvent = treeIntervals.getInterval(treeInterval);
-    		} catch(Exception e) {
-    			break;
-    		}
-//        	} else {
-//        		ratesInterval++;
-//        		nextTreeEvent -= nextRateShift;
-// 	       		nextRateShift = dynamics.getInterval(ratesInterval);
-//        	}
-        } while(nextTreeEvent <= Double.POSITIVE_INFINITY);
-    }
+    			if (timeVarying) {
+    				time = treeIntervals.getEventTime(checkpoint);
+    			}
+			}
+        }
 
 
-		coalescentRates = dynamics.getCoalescentRate(ratesInterval);  
+		coalescentRates = getCoalescentRates(ratesInterval);
         //migrationRates = dynamics.getBackwardsMigration(ratesInterval);
 		//indicators = dynamics.getIndicators(ratesInterval);
-		nrLineages = activeLineages.size();
+		nrLineages = activeLineageCount;
 		linProbsLength = nrLineages * states;
 
         // Calculate the likelihood
@@ -354,10 +447,19 @@ public class Mascot extends StructuredTreeDistribution {
     				System.exit(0);
                 	return calculateLogP();
                 }
+        		if (timeVarying) {
+        			euler.setTime(time);
+        		}
         		logP += doEuler(nextEventTime, ratesInterval);
         	}
        	
         	if (nextTreeEvent <= nextRateShift){
+        		if (timeVarying) {
+        			// the event time of the tree, so a restore from the cache continues at the same time
+        			time = treeIntervals.getEventTime(treeInterval);
+        			dynamics.getCoalescentRate(ratesInterval, time, timeVaryingCoalescentRates);
+        			coalescentRates = timeVaryingCoalescentRates;
+        		}
  	        	if (treeIntervals.getIntervalType(treeInterval) == IntervalType.COALESCENT) {
 // 	        		System.out.print(String.format("%.3f ", nextTreeEvent));
 //	        		logP += normalizeLineages(linProbs);									// normalize all lineages before event		
@@ -370,18 +472,27 @@ public class Mascot extends StructuredTreeDistribution {
  	       			//	logP += normalizeLineages(linProbs);								// normalize all lineages before event
 	       			nrLineages++;													// sampling event increases the number of lineages by one
  	       			sample(treeInterval, ratesInterval, nextTreeEvent, nextRateShift);							// calculate the likelihood of the sampling event if sampling rate is given
+	       			// lineages sampled at the same time are added in one go
+	       			while (treeInterval + 1 < treeIntervals.getIntervalCount() && treeIntervals.getInterval(treeInterval + 1) == 0.0
+	       					&& treeIntervals.getIntervalType(treeInterval + 1) == IntervalType.SAMPLE) {
+	       				treeInterval++;
+	       				nextRateShift -= nextTreeEvent;
+	       				nextTreeEvent = 0.0;
+	       				nrLineages++;
+	       				sample(treeInterval, ratesInterval, nextTreeEvent, nextRateShift);
+	       			}
 	       		}	
  	       		
  	       		treeInterval++;
         		nextRateShift -= nextTreeEvent;   
-        		try{
-        			nextTreeEvent = treeIntervals.getInterval(treeInterval);
-        		}catch(Exception e){
+        		if (treeInterval >= treeIntervals.getIntervalCount()) {
         			break;
         		}
+        		nextTreeEvent = treeIntervals.getInterval(treeInterval);
         	} else {
+        		time += nextRateShift;
         		ratesInterval++;
-        		coalescentRates = dynamics.getCoalescentRate(ratesInterval);  
+        		coalescentRates = getCoalescentRates(ratesInterval);    
                 //migrationRates = dynamics.getBackwardsMigration(ratesInterval);
         		//indicators = dynamics.getIndicators(ratesInterval);  
         		nextTreeEvent -= nextRateShift;
@@ -402,17 +513,24 @@ public class Mascot extends StructuredTreeDistribution {
 
 	private void setUpDynamics() {
     	int n = dynamics.getEpochCount();
-    	double [][] coalescentRates = new double[n][];
-    	double [][] migrationRates = new double[n][];
-    	int [][] indicators = new int[n][];
+    	if (epochCoalescentRates == null || epochCoalescentRates.length != n) {
+    		epochCoalescentRates = new double[n][];
+    		epochMigrationRates = new double[n][];
+    		epochIndicators = new int[n][];
+    	}
     	double [] nextRateShift = dynamics.getIntervals();
     	for (int i = 0; i < n; i++) {
-    		coalescentRates[i] = dynamics.getCoalescentRate(i);  
-            migrationRates[i] = dynamics.getBackwardsMigration(i);
-    		indicators[i] = dynamics.getIndicators(i);
+    		// the cached rates of epochs that did not change are the same arrays as before
+    		epochCoalescentRates[i] = dynamics.getCachedCoalescentRate(i);  
+            epochMigrationRates[i] = dynamics.getCachedBackwardsMigration(i);
+    		epochIndicators[i] = dynamics.getCachedIndicators(i);
     	}
     	dynamics.setDynamicsKnown();
-		euler.setUpDynamics(coalescentRates, migrationRates, indicators, nextRateShift);
+		euler.setUpDynamics(epochCoalescentRates, epochMigrationRates, epochIndicators, nextRateShift);
+	}
+
+	private double [] getCoalescentRates(int ratesInterval) {
+		return epochCoalescentRates[Math.min(ratesInterval, epochCoalescentRates.length - 1)];
 	}
 
 	double [] storedMigrationRates = new double[0];
@@ -420,28 +538,38 @@ public class Mascot extends StructuredTreeDistribution {
     int storedNrLineages = -1;
     
 	private double doEuler(double nextEventTime, int ratesInterval) {
-		//for (int i = 0; i < linProbs.length; i++) linProbs_tmp[i] = linProbs[i];
-		if (linProbs_tmp.length != linProbsLength + 1) {
-			linProbs_tmp= new double[linProbsLength + 1];
+		if (collapse) {
+			// lineages sampled after this are no longer identical to earlier samples
+			Arrays.fill(sampleRowOfState, -1);
 		}
-		System.arraycopy(linProbs,0,linProbs_tmp,0,linProbsLength);
-		linProbs_tmp[linProbsLength] = 0;
-
-		linProbs[linProbsLength-1] = 0;
-		
+		if (stateMajor) {
+			// integrate in place, the log probability goes after the last row
+			final int length = capacity * states;
+			linProbs[length] = 0;
+			if (collapse) {
+				collapsingEuler.initAndcalculateValues(ratesInterval, nrLineages, multiplicator, nextEventTime, linProbs, length + 1);
+			} else {
+				euler.initAndcalculateValues(ratesInterval, nrLineages, nextEventTime, linProbs, length + 1);
+			}
+			return linProbs[length];
+		}
+		// integrate in place, the log probability goes after the last lineage
+		linProbs[linProbsLength] = 0;
 
 //		if (dynamics.hasIndicators) {
 //			euler.initWithIndicators(migrationRates, indicators, coalescentRates, nrLineages);
 //			euler.calculateValues(nextEventTime, linProbs_tmp, linProbsLength + 1);
 //		} else {
-			euler.initAndcalculateValues(ratesInterval, nrLineages, nextEventTime, linProbs_tmp, linProbsLength + 1);
+			if (collapse) {
+				collapsingEuler.initAndcalculateValues(ratesInterval, nrLineages, multiplicator, nextEventTime, linProbs, linProbsLength + 1);
+			} else {
+				euler.initAndcalculateValues(ratesInterval, nrLineages, nextEventTime, linProbs, linProbsLength + 1);
+			}
 //		}
 		
 		//		System.out.println(Arrays.toString(linProbs));		
 
-		//for (int i = 0; i < linProbs.length; i++) linProbs[i] = linProbs_tmp[i];
-		System.arraycopy(linProbs_tmp,0,linProbs,0,linProbsLength);
-		return linProbs_tmp[linProbsLength];
+		return linProbs[linProbsLength];
 	}
 
 	
@@ -489,76 +617,100 @@ public class Mascot extends StructuredTreeDistribution {
 //    
     private void sample(int currTreeInterval, int currRatesInterval, double nextTreeEvent, double nextRateShift) {
     	if (debug) {
-    		System.err.println("sample activeLineages " + currTreeInterval + " = " + activeLineages);
+    		System.err.println("sample activeLineages " + currTreeInterval + " = " + activeLineagesToString());
     	}
 		int incomingLines = treeIntervals.getLineagesAdded(currTreeInterval);
 		int newLength = linProbsLength + 1 * states;
 		
 		int currPosition = linProbsLength;
 		
-		/*
-		 * If there is no trait given as Input, the model will simply assume that
-		 * the last value of the taxon name, the last value after a _, is an integer
-		 * that gives the type of that taxon
-		 */
-		if (dynamics.typeTraitInput.get()!=null){
-			Integer l = incomingLines; {
-				activeLineages.add(l);//.getNr());
-				int sampleState = nodeType[l];//dynamics.getValue(tree.getNode(l).getID());
-				
-				if (sampleState>= dynamics.getDimension()){
-					System.err.println("sample discovered with higher state than dimension");
-//					System.exit(1);
-				}
-				
-				for (int i = 0; i < states; i++){
-					if (i == sampleState){
-						linProbs[currPosition] = 1.0;currPosition++;
-					}
-					else{
-						linProbs[currPosition] = 0.0;currPosition++;
-					}
-				}
-			}				
-		}else{
-			Integer l = incomingLines; {
-				activeLineages.add(l);//.getNr());
-				String sampleID = tree.getNode(l).getID();
-				int sampleState = 0;
-				if (states > 1){				
-					String[] splits = sampleID.split("_");
-					sampleState = Integer.parseInt(splits[splits.length-1]); //samples states (or priors) should eventually be specified in the XML
+		int sampleState = nodeType[incomingLines];
+		
+		if (collapse && sampleRowOfState[sampleState] >= 0) {
+			// same state and time as an earlier sample, so its row is identical
+			int row = sampleRowOfState[sampleState];
+			multiplicator[row]++;
+			representative[incomingLines] = activeLineages[row];
+			nrLineages--;
+			return;
+		}
+		if (collapse) {
+			representative[incomingLines] = incomingLines;
+		}
+		addActiveLineage(incomingLines);
+		
+		if (stateMajor) {
+			final int lineage = linProbsLength / states;
+			for (int i = 0; i < states; i++){
+				linProbs[i * capacity + lineage] = i == sampleState ? 1.0 : 0.0;
+			}
+		} else {
+			for (int i = 0; i < states; i++){
+				if (i == sampleState){
+					linProbs[currPosition] = 1.0;currPosition++;
 				}
-				for (int i = 0; i < states; i++){
-					if (i == sampleState){
-						linProbs[currPosition] = 1.0;currPosition++;
-					}
-					else{
-						linProbs[currPosition] = 0.0;currPosition++;
-					}
+				else{
+					linProbs[currPosition] = 0.0;currPosition++;
 				}
-			}	
+			}
+		}
+		if (collapse) {
+			int row = linProbsLength / states;
+			multiplicator[row] = 1;
+			sampleRowOfState[sampleState] = row;
 		}
 		linProbsLength = newLength;
 		// store the node
-       	storeNode(currTreeInterval, currRatesInterval, linProbs, logP, activeLineages, nextTreeEvent, nextRateShift, incomingLines);
+       	storeNode(currTreeInterval, currRatesInterval, linProbs, logP, nextTreeEvent, nextRateShift, incomingLines);
+    }
+    
+	/*
+	 * If there is no trait given as Input, the model will simply assume that
+	 * the last value of the taxon name, the last value after a _, is an integer
+	 * that gives the type of that taxon
+	 */
+    private int getSampleState(int l) {
+		if (dynamics.typeTraitInput.get()!=null){
+			int sampleState = nodeType[l];//dynamics.getValue(tree.getNode(l).getID());
+			if (sampleState>= dynamics.getDimension()){
+				System.err.println("sample discovered with higher state than dimension");
+//				System.exit(1);
+			}
+			return sampleState;
+		}
+		String sampleID = tree.getNode(l).getID();
+		int sampleState = 0;
+		if (states > 1){				
+			String[] splits = sampleID.split("_");
+			sampleState = Integer.parseInt(splits[splits.length-1]); //samples states (or priors) should eventually be specified in the XML
+		}
+		return sampleState;
     }
           
     private double coalesce(int currTreeInterval, int currRatesInterval, double nextTreeEvent, double nextRateShift) {
     	int coalLines0 = treeIntervals.getLineagesRemoved(currTreeInterval,0);
     	int coalLines1 = treeIntervals.getLineagesRemoved(currTreeInterval,1);
     	if (debug) {
-    		System.err.println("coalesce activeLineages " + currTreeInterval + " " + coalLines0 + " " + coalLines1 + " = " + activeLineages);
+    		System.err.println("coalesce activeLineages " + currTreeInterval + " " + coalLines0 + " " + coalLines1 + " = " + activeLineagesToString());
     	}
 		
-    	final int daughterIndex1 = activeLineages.indexOf(coalLines0);//.getNr());
-		final int daughterIndex2 = activeLineages.indexOf(coalLines1);//.getNr());
-		if (daughterIndex1 == -1 || daughterIndex2 == -1) {
-			System.out.println(coalLines0/*.getNr()*/ + " " + coalLines1/*.getNr()*/ + " " + activeLineages);
+    	final int row1 = indexOfActiveLineage(coalLines0);//.getNr());
+		final int row2 = indexOfActiveLineage(coalLines1);//.getNr());
+		if (row1 == -1 || row2 == -1) {
+			System.out.println(coalLines0/*.getNr()*/ + " " + coalLines1/*.getNr()*/ + " " + activeLineagesToString());
 			System.out.println("daughter lineages at coalescent event not found");
 			return Double.NaN;
 		}
-		DoubleMatrix lambda = DoubleMatrix.zeros(states);
+		// a row is only removed once all lineages it stands for have coalesced
+		boolean free1 = true, free2 = row1 != row2;
+		if (collapse) {
+			multiplicator[row1]--;
+			multiplicator[row2]--;
+			free1 = multiplicator[row1] == 0;
+			free2 = free2 && multiplicator[row2] == 0;
+			Arrays.fill(sampleRowOfState, -1);
+		}
+		final double [] lambda = this.lambda;
 		
 		/*
 		 * Calculate the overall probability for two strains to coalesce 
@@ -567,85 +719,154 @@ public class Mascot extends StructuredTreeDistribution {
 		 */
 		//double [] coalescentRates = ((Euler2ndOrder)euler).coalescentRates[Math.min(currRatesInterval, ((Euler2ndOrder)euler).coalescentRates[0].length - 1)];
         for (int k = 0; k < states; k++) { 
-        	Double pairCoalRate = coalescentRates[k] * linProbs[daughterIndex1*states + k] * linProbs[daughterIndex2*states + k];			
+        	double pairCoalRate = coalescentRates[k] * linProbs[index(row1, k)] * linProbs[index(row2, k)];
 			if (!Double.isNaN(pairCoalRate)){
-				lambda.put(k, pairCoalRate);
+				lambda[k] = pairCoalRate;
 			} else {
 				return Double.NEGATIVE_INFINITY;
 			}
         }
-        
+        double lambdaSum = 0, lambdaMin = Double.POSITIVE_INFINITY;
+        for (int k = 0; k < states; k++) {
+        	lambdaSum += lambda[k];
+        	lambdaMin = Math.min(lambdaMin, lambda[k]);
+        }
+
         int lineageToAdd = tree.getNode(coalLines0).getParent().getNr();
-        activeLineages.add(lineageToAdd);        
-        
-        // get the node state probabilities
-		DoubleMatrix pVec = new DoubleMatrix();
-		pVec.copy(lambda);
-		pVec = pVec.div(pVec.sum());
-		
-		stateProbabilities[tree.getNode(coalLines0).getParent().getNr() - nrSamples] = pVec;
-		
-		//double[] linProbsNew  = new double[linProbsLength - states];
+
+        // keep the node state probabilities for getStateProb
+        System.arraycopy(lambda, 0, nodeLambdas, (lineageToAdd - nrSamples) * states, states);
 		
-		int linCount = 0;		
-		// add all lineages execpt the daughter lineage to the new p array
-		for (int i = 0; i <= nrLineages; i++){
-			if (i != daughterIndex1 && i != daughterIndex2){
-				for (int j = 0; j < states; j++){
-					linProbsNew[linCount*states + j] = linProbs[i*states + j];
-				}
-				linCount++;
+		// the parent lineage takes the first freed row, and the last row 
+		// moves into the second one, so no other rows are touched
+		final int parentRow;
+		if (free1 && free2) {
+			parentRow = Math.min(row1, row2);
+			final int freedRow = Math.max(row1, row2);
+			final int last = removeActiveLineageAt(freedRow);
+			if (last != freedRow) {
+				moveRow(last, freedRow);
 			}
+		} else if (free1 || free2) {
+			parentRow = free1 ? row1 : row2;
+		} else {
+			parentRow = activeLineageCount++;
 		}
-		// add the parent lineage
+		if (collapse) {
+			representative[lineageToAdd] = lineageToAdd;
+			multiplicator[parentRow] = 1;
+		}
+		setActiveLineage(parentRow, lineageToAdd);
 		for (int j = 0; j < states; j++){
-			linProbsNew[linCount*states + j] = pVec.get(j);
+			linProbs[index(parentRow, j)] = lambda[j] / lambdaSum;
+		}
+		linProbsLength = activeLineageCount * states;
+		if (collapse) {
+			nrLineages = activeLineageCount;
 		}
-		// set p to pnew
-		//double [] tmp = linProbs;
-		linProbs = linProbsNew;	
-		linProbsNew = linProbs;
-		linProbsLength = linProbsLength - states;
-		
-		
-		//Remove daughter lineages from the line state probs
-		if (daughterIndex1>daughterIndex2){
-			// remove the daughter lineages from the active lineages
-			activeLineages.remove(daughterIndex1);
-			activeLineages.remove(daughterIndex2);			
-		} else {
-			// remove the daughter lineages from the active lineages
-			activeLineages.remove(daughterIndex2);
-			activeLineages.remove(daughterIndex1);			
-		}		
      
-		if (lambda.min()<0.0){
-			System.err.println("Coalescent probability is: " + lambda.min());
+		if (lambdaMin<0.0){
+			System.err.println("Coalescent probability is: " + lambdaMin);
 			return Double.NEGATIVE_INFINITY;
-		}				
-		
+		}
+
 		// store the node
-        storeNode(currTreeInterval, currRatesInterval, linProbs, logP + Math.log(lambda.sum()), activeLineages, nextTreeEvent, nextRateShift, lineageToAdd);
-		
-		if (lambda.sum()==0)
+        storeNode(currTreeInterval, currRatesInterval, linProbs, logP + Math.log(lambdaSum), nextTreeEvent, nextRateShift, lineageToAdd);
+
+		if (lambdaSum==0)
 			return Double.NEGATIVE_INFINITY;
 		else
-			return Math.log(lambda.sum());
+			return Math.log(lambdaSum);
+    }
+
+    /** first of the cached intervals before the given one that was calculated in the given epoch or later **/
+    private int firstIntervalInEpoch(int epoch, int end) {
+    	// the rates intervals of consecutive tree intervals never decrease
+    	int lo = 0, hi = Math.min(end, coalRatesInterval.length);
+    	while (lo < hi) {
+    		final int mid = (lo + hi) >>> 1;
+    		if (coalRatesInterval[mid] >= epoch) {
+    			hi = mid;
+    		} else {
+    			lo = mid + 1;
+    		}
+    	}
+    	return lo;
+    }
+
+    private void addActiveLineage(int node) {
+    	setActiveLineage(activeLineageCount++, node);
+    }
+
+    private void setActiveLineage(int row, int node) {
+    	activeLineages[row] = node;
+    	rowOfNode[node] = row;
+    }
+
+    /** removes a row by moving the last row into its place, returns the index the moved row had **/
+    private int removeActiveLineageAt(int row) {
+    	final int last = --activeLineageCount;
+    	if (row != last) {
+    		setActiveLineage(row, activeLineages[last]);
+    	}
+    	return last;
+    }
+
+    private int indexOfActiveLineage(int node) {
+    	if (collapse) {
+    		node = representative[node];
+    	}
+    	final int row = rowOfNode[node];
+    	return row < activeLineageCount && activeLineages[row] == node ? row : -1;
+    }
+
+    private void moveRow(int from, int to) {
+    	if (stateMajor) {
+    		for (int j = 0; j < states; j++) {
+    			linProbs[j * capacity + to] = linProbs[j * capacity + from];
+    		}
+    	} else {
+    		System.arraycopy(linProbs, from * states, linProbs, to * states, states);
+    	}
+    	if (collapse) {
+    		multiplicator[to] = multiplicator[from];
+    	}
+    }
+
+    private String activeLineagesToString() {
+    	return Arrays.toString(Arrays.copyOf(activeLineages, activeLineageCount));
     }
      
   
+    private int index(int lineage, int state) {
+    	return stateMajor ? state * capacity + lineage : lineage * states + state;
+    }
+
     public DoubleMatrix getStateProb(int nr){
     	if (mascotImpl != null) {
     		return mascotImpl.getStateProb(nr);
     	}
-    	return stateProbabilities[nr - nrSamples];
+    	return normalisedLambdas(nr - nrSamples);
     }    
     
+    private DoubleMatrix normalisedLambdas(int internalNode) {
+    	final int offset = internalNode * states;
+    	double sum = 0;
+    	for (int k = 0; k < states; k++) {
+    		sum += nodeLambdas[offset + k];
+    	}
+    	DoubleMatrix p = new DoubleMatrix(states);
+    	for (int k = 0; k < states; k++) {
+    		p.put(k, nodeLambdas[offset + k] / sum);
+    	}
+    	return p;
+    }
+    
     public DoubleMatrix getRootState(){
     	if (mascotImpl != null) {
     		return mascotImpl.getRootState();
     	}
-    	return stateProbabilities[stateProbabilities.length-1];
+    	return normalisedLambdas(nodeLambdas.length / states - 1);
     }
     
     public String getType(){
@@ -653,19 +874,36 @@ public class Mascot extends StructuredTreeDistribution {
     }            
     
     private void storeNode(int storingTreeInterval, int storingRatesInterval, double[] storeLinProbs,
-		double probability, ArrayList<Integer> storeActiveLineages, double nextTreeEvent, double nextRateShift,
+		double probability, double nextTreeEvent, double nextRateShift,
 		int addedLineage) {
     	if (!useCache) {
     		return;
     	}
+    	if (storingTreeInterval < firstChangedInterval) {
+    		firstChangedInterval = storingTreeInterval;
+    	}
 
     	coalRatesInterval[storingTreeInterval] = storingRatesInterval;
     	int offset = 0;
     	if (storingTreeInterval > 0) {
     		offset = coalLinProbsLengths[storingTreeInterval-1];
     	}
-    	System.arraycopy(storeLinProbs, 0, coalLinProbs, offset, linProbsLength);
-    	coalLinProbsLengths[storingTreeInterval] = offset + linProbsLength;
+    	if (storingTreeInterval % checkpointSpacing != checkpointSpacing - 1) {
+    		// not a checkpoint, only the log probability and event times are kept
+    		coalLinProbsLengths[storingTreeInterval] = offset;
+    	} else {
+	    	if (stateMajor) {
+	    		// store the active part of each state row contiguously
+	    		final int lineages = linProbsLength / states;
+	    		for (int j = 0; j < states; j++) {
+	    			System.arraycopy(storeLinProbs, j * capacity, coalLinProbs, offset + j * lineages, lineages);
+	    		}
+	    	} else {
+	    		System.arraycopy(storeLinProbs, 0, coalLinProbs, offset, linProbsLength);
+	    	}
+	    	System.arraycopy(activeLineages, 0, coalActiveLineages, offset / states, activeLineageCount);
+	    	coalLinProbsLengths[storingTreeInterval] = offset + linProbsLength;
+    	}
     	coalLogP[storingTreeInterval] = probability;
     	nextTreeEvents[storingTreeInterval] = nextTreeEvent;
     	nextRateShifts[storingTreeInterval] = nextRateShift;
@@ -678,10 +916,21 @@ public class Mascot extends StructuredTreeDistribution {
     		offset = coalLinProbsLengths[restoringInterval-1];
     	}
     	linProbsLength = coalLinProbsLengths[restoringInterval] - offset;
-    	System.arraycopy(coalLinProbs, offset, linProbs, 0, linProbsLength);
+    	if (stateMajor) {
+    		final int lineages = linProbsLength / states;
+    		for (int j = 0; j < states; j++) {
+    			System.arraycopy(coalLinProbs, offset + j * lineages, linProbs, j * capacity, lineages);
+    		}
+    	} else {
+    		System.arraycopy(coalLinProbs, offset, linProbs, 0, linProbsLength);
+    	}
+    	activeLineageCount = 0;
+    	for (int i = offset / states; i < coalLinProbsLengths[restoringInterval] / states; i++) {
+    		addActiveLineage(coalActiveLineages[i]);
+    	}
 
     	logP = coalLogP[restoringInterval];    	
-    	return coalRatesInterval[restoringInterval + 1];
+    	return coalRatesInterval[restoringInterval];
     }
     
     @Override
@@ -690,39 +939,73 @@ public class Mascot extends StructuredTreeDistribution {
     		super.store();
     		return;
     	}
+    	final boolean verify = verifyCache > 0 && ++stores % verifyCache == 0;
+    	if (verify) {
+    		// the state that is stored is the one restores go back to, so it has to be right
+    		verifyCachedLogP(logP);
+    	}
     	if (mascotImpl != null) {
     		mascotImpl.store();
     		super.store();
     		return;
     	}
 
-    	storeLinP();
-    	System.arraycopy(coalLogP, 0, storeLogP, 0, coalLogP.length);
-    	System.arraycopy(coalRatesInterval, 0, storeRatesInterval, 0, coalRatesInterval.length);
-        
-
-    	System.arraycopy(nextTreeEvents, 0, storedNextTreeEvents, 0, nextTreeEvents.length);
-    	System.arraycopy(nextRateShifts, 0, storedNextRateShifts, 0, nextRateShifts.length);
-    	
- 
+    	// only the intervals from firstChangedInterval on can differ from the stored ones
+    	final int from = firstChangedInterval;
+    	final int count = coalLogP.length - from;
+    	if (count > 0) {
+	    	storeLinP();
+	    	System.arraycopy(coalLogP, from, storeLogP, from, count);
+	    	System.arraycopy(coalRatesInterval, from, storeRatesInterval, from, count);
+	    	System.arraycopy(nextTreeEvents, from, storedNextTreeEvents, from, count);
+	    	System.arraycopy(nextRateShifts, from, storedNextRateShifts, from, count);
+	    	firstChangedInterval = coalLogP.length;
+    	}
+    	if (verify) {
+    		verifyStoredCache();
+    	}
     	super.store();
     }
+
+    /** after a store the stored cache has to be a copy of the cache, since restore only copies back what changed **/
+    private void verifyStoredCache() {
+    	for (int i = 0; i < coalLogP.length; i++) {
+    		boolean same = Double.compare(coalLogP[i], storeLogP[i]) == 0
+    				&& coalRatesInterval[i] == storeRatesInterval[i]
+    				&& Double.compare(nextTreeEvents[i], storedNextTreeEvents[i]) == 0
+    				&& Double.compare(nextRateShifts[i], storedNextRateShifts[i]) == 0
+    				&& coalLinProbsLengths[i] == storedCoalLinProbsLengths[i];
+    		for (int j = i > 0 ? coalLinProbsLengths[i-1] : 0; same && j < coalLinProbsLengths[i]; j++) {
+    			same = Double.compare(coalLinProbs[j], storeLinProbs[j]) == 0;
+    		}
+    		for (int j = i > 0 ? coalLinProbsLengths[i-1] / states : 0; same && j < coalLinProbsLengths[i] / states; j++) {
+    			same = coalActiveLineages[j] == storeActiveLineages[j];
+    		}
+    		if (!same) {
+    			throw new RuntimeException("Stored cache differs from the cache at interval " + i + ". Run with useCache=false to avoid this.");
+    		}
+    	}
+    }
         
     private void storeLinP() {
-    	System.arraycopy(coalLinProbsLengths, 0, storedCoalLinProbsLengths, 0, coalLinProbsLengths.length);
-    	System.arraycopy(coalLinProbs, 0, storeLinProbs, 0, coalLinProbsLengths[coalLinProbsLengths.length - 1]);
-//    	// store intermediate results
-//    	for (int i = 0; i < coalLinProbs.length; i++) {
-//    		double [] p = coalLinProbs[i];
-//    		double [] q = storeLinProbs[i];
-//    		if (p.length == q.length) {
-//    			System.arraycopy(p, 0, q, 0, p.length);
-//    		} else {
-//    			q= Arrays.copyOf(p, p.length);
-//    		}
-//    	}
+    	final int from = firstChangedInterval;
+    	final int offset = from > 0 ? coalLinProbsLengths[from - 1] : 0;
+    	System.arraycopy(coalLinProbsLengths, from, storedCoalLinProbsLengths, from, coalLinProbsLengths.length - from);
+    	final int end = maxLength(coalLinProbsLengths, from);
+    	System.arraycopy(coalLinProbs, offset, storeLinProbs, offset, end - offset);
+    	System.arraycopy(coalActiveLineages, offset / states, storeActiveLineages, offset / states, (end - offset) / states);
 	}
 
+    /** end of the cached linProbs of the intervals from the given one on, which may include 
+     * intervals a calculation did not get to **/
+    private static int maxLength(int [] lengths, int from) {
+    	int max = from > 0 ? lengths[from - 1] : 0;
+    	for (int i = from; i < lengths.length; i++) {
+    		max = Math.max(max, lengths[i]);
+    	}
+    	return max;
+    }
+
 
 	@Override
 	public void restore(){
@@ -737,30 +1020,21 @@ public class Mascot extends StructuredTreeDistribution {
     		return;
     	}
     	
-    	// restore intermediate results
-    	double [] tmp = storeLogP;
-    	storeLogP = coalLogP;
-    	coalLogP = tmp;
-    	
-    	tmp = coalLinProbs;
-    	coalLinProbs = storeLinProbs;
-    	storeLinProbs = tmp;
-    	
-    	int [] tmp2 = coalLinProbsLengths;
-    	coalLinProbsLengths = storedCoalLinProbsLengths;
-    	storedCoalLinProbsLengths = tmp2;
-
-    	tmp2 = coalRatesInterval;
-    	coalRatesInterval = storeRatesInterval;
-    	storeRatesInterval = tmp2;
-    	
-		tmp = nextTreeEvents;
-		nextTreeEvents = storedNextTreeEvents;
-		storedNextTreeEvents = tmp;
-		
-		tmp = nextRateShifts;
-		nextRateShifts = storedNextRateShifts;
-		storedNextRateShifts = tmp;
+    	// restore intermediate results, copying back only the intervals that were recalculated
+    	final int from = firstChangedInterval;
+    	final int count = coalLogP.length - from;
+    	if (count > 0) {
+	    	System.arraycopy(storeLogP, from, coalLogP, from, count);
+	    	System.arraycopy(storeRatesInterval, from, coalRatesInterval, from, count);
+	    	System.arraycopy(storedNextTreeEvents, from, nextTreeEvents, from, count);
+	    	System.arraycopy(storedNextRateShifts, from, nextRateShifts, from, count);
+	    	System.arraycopy(storedCoalLinProbsLengths, from, coalLinProbsLengths, from, count);
+	    	final int offset = from > 0 ? coalLinProbsLengths[from - 1] : 0;
+	    	final int end = maxLength(coalLinProbsLengths, from);
+	    	System.arraycopy(storeLinProbs, offset, coalLinProbs, offset, end - offset);
+	    	System.arraycopy(storeActiveLineages, offset / states, coalActiveLineages, offset / states, (end - offset) / states);
+	    	firstChangedInterval = coalLogP.length;
+    	}
 
     	super.restore();
     }
@@ -83,6 +83,10 @@ public class MascotCollaps extends StructuredTreeDistribution {
     @Override
     public void initAndValidate(){
     	tree = treeInput.get();
+    	if (dynamicsInput.get().isTimeVarying()) {
+    		// the rates are taken to be constant within an epoch here
+    		throw new IllegalArgumentException("time varying dynamics are not supported by MascotCollaps, use Mascot");
+    	}
     	
     	treeIntervalsInput.get().calculateIntervals();       
     	stateProbabilities = new DoubleMatrix[treeIntervalsInput.get().getSampleCount()];
@@ -114,9 +118,9 @@ public class MascotCollaps extends StructuredTreeDistribution {
         linProbs = new double[0];// initialize the tree and rates interval counter
         int treeInterval = 0, ratesInterval = 0;        
         double nextEventTime = 0.0;
-		coalescentRates = dynamicsInput.get().getCoalescentRate(ratesInterval);  
-        migrationRates = dynamicsInput.get().getBackwardsMigration(ratesInterval);
-		indicators = dynamicsInput.get().getIndicators(ratesInterval);  
+		coalescentRates = dynamicsInput.get().getCachedCoalescentRate(ratesInterval);  
+        migrationRates = dynamicsInput.get().getCachedBackwardsMigration(ratesInterval);
+		indicators = dynamicsInput.get().getCachedIndicators(ratesInterval);  
 		        
         // Time to the next rate shift or event on the tree
         double nextTreeEvent = treeIntervalsInput.get().getInterval(treeInterval);
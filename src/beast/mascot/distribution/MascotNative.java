@@ -33,11 +33,12 @@ public class MascotNative extends Distribution {
 
     
     // Set up for lineage state probabilities
+    // node number of the lineage in each row of linProbs, and the row of each node
     private int [] activeLineages;
     private int activeLineagesCount;
+    private int [] rowOfNode;
     
 	private double[] linProbs;
-	private double[] linProbsNew;
 	private int linProbsLength;
 	private int states;
 	
@@ -57,6 +58,9 @@ public class MascotNative extends Distribution {
 	private double [] storedNextTreeEvents;
 	private double [] nextRateShifts;
 	private double [] storedNextRateShifts;
+	// first interval cached by calculateLogP since the last store or restore, the cache 
+	// and the stored cache are the same before it, so only the rest is copied
+	private int firstChangedInterval = 0;
 
     // check if this is the first calculation
     private boolean first = true;
@@ -80,6 +84,8 @@ public class MascotNative extends Distribution {
 	private double [] coalescentRatesCache;
 	private double [] migrationRatesCache;
 	private int [][] indicatorsCache;
+	// versions of the rates in the caches, per epoch
+	private long [] ratesVersions;
 	private double [] nextRateShiftCache;
 	private int rateShiftCount;
 	
@@ -122,11 +128,11 @@ public class MascotNative extends Distribution {
     	
     	activeLineages = new int[nodeCount];
     	activeLineagesCount = 0;
+    	rowOfNode = new int[nodeCount];
 
     	int MAX_SIZE = intervalCount * states;
     	linProbs_tmp = new double[MAX_SIZE];
     	linProbs = new double[MAX_SIZE];
-    	linProbsNew = new double[MAX_SIZE];
 
     	euler = new Euler2ndOrderNative();
     	euler.setup(MAX_SIZE, states, epsilon, max_step);
@@ -154,7 +160,6 @@ public class MascotNative extends Distribution {
         
         if (!first && !dynamicsIsDirty && firstDirtyInterval > 2) {
         // restore the likelihood to last known good place
-    	  int pos0 = -1, pos1 = -1;
     	  do {
         	
         	nextEventTime = nextTreeEvent;
@@ -165,33 +170,18 @@ public class MascotNative extends Distribution {
     			return logP;
     		}
     		
-    		boolean isDirty;
-    		if (lineagesRemoved[treeInterval*2] >= 0) { // == IntervalType.COALESCENT) {        		
- 	           	int coalLines0 = lineagesRemoved[treeInterval * 2 + 0];
- 	           	int coalLines1 = lineagesRemoved[treeInterval * 2 + 1];
- 	           	pos0 = indexOf(coalLines0);
- 	           	pos1 = indexOf(coalLines1);
- 	           	if (pos0 < 0 || pos1 < 0) {
- 	           		System.out.println(coalLines0/*.getNr()*/ + " " + coalLines1/*.getNr()*/ + " " + activeLineages);
- 	           		System.out.println("daughter lineages at coalescent event not found");
- 	           		throw new RuntimeException("coalesceX went wrong at 1");
- 	           	}
- 	           	if (pos0 > pos1) {
- 	           		removeActiveLineageAt(pos0);
- 	           		removeActiveLineageAt(pos1);
- 	           	} else {
- 	           		removeActiveLineageAt(pos1);
- 	           		removeActiveLineageAt(pos0);
- 	           	}
- 	            int newLineage = parents[coalLines0];
- 	            addActiveLineages(newLineage);	 	           
- 	            isDirty = storedLineagesAdded[treeInterval] != newLineage;
-        	} else { // == IntervalType.SAMPLE) { 	       			
-       			int incomingLines = lineagesAdded[treeInterval];
-       			addActiveLineages(incomingLines);
-       			isDirty = storedLineagesAdded[treeInterval] != incomingLines;
-       		}	
-       		
+    		// the active lineages are only updated once the interval is known to be clean,
+    		// so they match the rows of the cached linProbs of the previous interval
+    		final boolean isCoalescent = lineagesRemoved[treeInterval*2] >= 0; // == IntervalType.COALESCENT
+    		int coalLines0 = -1, coalLines1 = -1, newLineage;
+    		if (isCoalescent) {
+ 	           	coalLines0 = lineagesRemoved[treeInterval * 2 + 0];
+ 	           	coalLines1 = lineagesRemoved[treeInterval * 2 + 1];
+ 	            newLineage = parents[coalLines0];
+        	} else { // == IntervalType.SAMPLE) {
+       			newLineage = lineagesAdded[treeInterval];
+       		}
+    		boolean isDirty = storedLineagesAdded[treeInterval] != newLineage;
        	
     		if (isDirty || treeInterval+1 == firstDirtyInterval) { 
     			if (treeInterval <= 2) {
@@ -205,20 +195,6 @@ public class MascotNative extends Distribution {
         			break; 	    				
     			}
     			
-
-	 	        activeLineagesCount--;
-        		if (lineagesRemoved[treeInterval*2] > 0) { // == IntervalType.COALESCENT) {        		
-	 	           	int coalLines0 = lineagesRemoved[treeInterval * 2 + 0];
-	 	           	int coalLines1 = lineagesRemoved[treeInterval * 2 + 1];
-	 	           	if (pos0 > pos1) {
-	 	           		addActiveLineages(pos1, coalLines1);
-	 	           		addActiveLineages(pos0, coalLines0);
-	 	           	} else {
-	 	           		addActiveLineages(pos0, coalLines0);
-	 	           		addActiveLineages(pos1, coalLines1);
-	 	           	}
-	       		}	
-    			
     			treeInterval++;
     			ratesInterval = restoreNode(treeInterval-2);
     			nextTreeEvent = nextTreeEvents[treeInterval-1];
@@ -226,6 +202,21 @@ public class MascotNative extends Distribution {
     			treeInterval--;
     			break;
     		}
+
+    		if (isCoalescent) {
+ 	           	final int pos0 = indexOf(coalLines0);
+ 	           	final int pos1 = indexOf(coalLines1);
+ 	           	if (pos0 < 0 || pos1 < 0) {
+ 	           		System.out.println(coalLines0/*.getNr()*/ + " " + coalLines1/*.getNr()*/ + " " + activeLineages);
+ 	           		System.out.println("daughter lineages at coalescent event not found");
+ 	           		throw new RuntimeException("coalesceX went wrong at 1");
+ 	           	}
+ 	           	// same row moves as in coalesce()
+ 	           	setActiveLineage(Math.min(pos0, pos1), newLineage);
+ 	           	removeActiveLineageAt(Math.max(pos0, pos1));
+    		} else {
+    			addActiveLineages(newLineage);
+    		}
        		treeInterval++;
     		nextRateShift -= nextTreeEvent;
     		if (treeInterval == intervalCount) {
@@ -278,28 +269,27 @@ public class MascotNative extends Distribution {
 		return logP;  	
     }
 
-	private void addActiveLineages(final int pos1, final int coalLines1) {
-		System.arraycopy(activeLineages, pos1, activeLineages, pos1 + 1, activeLineagesCount - pos1);
-		activeLineages[pos1] = coalLines1;
-		activeLineagesCount++;		
+	private void addActiveLineages(int newLineage) {
+		setActiveLineage(activeLineagesCount++, newLineage);
 	}
 
-	private void addActiveLineages(int newLineage) {
-		activeLineages[activeLineagesCount++] = newLineage;		
+	private void setActiveLineage(int row, int lineage) {
+		activeLineages[row] = lineage;
+		rowOfNode[lineage] = row;
 	}
 
-	private void removeActiveLineageAt(int pos0) {
-		System.arraycopy(activeLineages, pos0 + 1, activeLineages, pos0, activeLineagesCount - pos0);
-		activeLineagesCount--;		
+	/** removes a row by moving the last row into its place, returns the index the moved row had **/
+	private int removeActiveLineageAt(int row) {
+		final int last = --activeLineagesCount;
+		if (row != last) {
+			setActiveLineage(row, activeLineages[last]);
+		}
+		return last;
 	}
 
 	private int indexOf(int value) {
-		for (int i = 0; i < activeLineagesCount; i++) {
-			if (activeLineages[i] == value) {
-				return i;
-			}
-		}
-		return -1;
+		final int row = rowOfNode[value];
+		return row < activeLineagesCount && activeLineages[row] == value ? row : -1;
 	}
 
 	private double[] getCoalescentRate(int i) {
@@ -333,9 +323,16 @@ public class MascotNative extends Distribution {
         		indicatorsCache = new int[1][];
         	}
     	}
+    	if (ratesVersions == null || ratesVersions.length != rateShiftCount) {
+    		ratesVersions = new long[rateShiftCount];
+    	}
     	for (int i = 0; i < rateShiftCount; i++) {
-    		System.arraycopy(dynamics.getCoalescentRate(i), 0, coalescentRatesCache, i*states, states);
-    		System.arraycopy(dynamics.getBackwardsMigration(i), 0, migrationRatesCache, i*states*states, states*states);
+    		// only copy the epochs whose rates changed since they were last copied
+    		if (ratesVersions[i] != dynamics.getRatesVersion(i)) {
+	    		System.arraycopy(dynamics.getCachedCoalescentRate(i), 0, coalescentRatesCache, i*states, states);
+	    		System.arraycopy(dynamics.getCachedBackwardsMigration(i), 0, migrationRatesCache, i*states*states, states*states);
+	    		ratesVersions[i] = dynamics.getRatesVersion(i);
+    		}
     	}
     	if (dynamics.hasIndicators) {
         	for (int i = 0; i < rateShiftCount; i++) {
@@ -434,40 +431,19 @@ public class MascotNative extends Distribution {
         }
 
         int lineageToAdd = parents[coalLines0];
-        addActiveLineages(lineageToAdd);        
-        
 		
-		int linCount = 0;		
-		// add all lineages execpt the daughter lineage to the new p array
-		for (int i = 0; i <= nrLineages; i++){
-			if (i != daughterIndex1 && i != daughterIndex2){
-				for (int j = 0; j < states; j++){
-					linProbsNew[linCount*states + j] = linProbs[i*states + j];
-				}
-				linCount++;
-			}
-		}
-		// add the parent lineage
-		for (int j = 0; j < states; j++){
-			linProbsNew[linCount*states + j] = stateProbabilities[offset + j]; // pVec.get(j);
+		// the parent lineage takes the row of the first daughter, and the 
+		// last row moves into the row of the second one
+		final int parentRow = Math.min(daughterIndex1, daughterIndex2);
+		final int freedRow = Math.max(daughterIndex1, daughterIndex2);
+		final int last = removeActiveLineageAt(freedRow);
+		if (last != freedRow) {
+			System.arraycopy(linProbs, last * states, linProbs, freedRow * states, states);
 		}
-		// set p to pnew
-		linProbs = linProbsNew;	
-		linProbsNew = linProbs;
+		setActiveLineage(parentRow, lineageToAdd);
+		System.arraycopy(stateProbabilities, offset, linProbs, parentRow * states, states);
 		linProbsLength = linProbsLength - states;
 		
-		
-		//Remove daughter lineages from the line state probs
-		if (daughterIndex1>daughterIndex2){
-			// remove the daughter lineages from the active lineages
-			removeActiveLineageAt(daughterIndex1);
-			removeActiveLineageAt(daughterIndex2);			
-		} else {
-			// remove the daughter lineages from the active lineages
-			removeActiveLineageAt(daughterIndex2);
-			removeActiveLineageAt(daughterIndex1);			
-		}
-		
 		double min = Double.POSITIVE_INFINITY;
         for (int i = 0; i < states; i++) {
 			if (stateProbabilities[offset + i] < min) {min = stateProbabilities[offset + i];}
@@ -512,6 +488,9 @@ public class MascotNative extends Distribution {
     
     private void storeNode(int storingTreeInterval, int storingRatesInterval, double[] storeLinProbs,
     		double probability, double nextTreeEvent, double nextRateShift) {
+    	if (storingTreeInterval < firstChangedInterval) {
+    		firstChangedInterval = storingTreeInterval;
+    	}
     	coalRatesInterval[storingTreeInterval] = storingRatesInterval;
     	int offset = 0;
     	if (storingTreeInterval > 0) {
@@ -540,13 +519,17 @@ public class MascotNative extends Distribution {
     
     @Override
 	public void store() {
-    	storeLinP();
-    	System.arraycopy(coalLogP, 0, storeLogP, 0, intervalCount);
-    	System.arraycopy(coalRatesInterval, 0, storeRatesInterval, 0, intervalCount);
-        
-
-    	System.arraycopy(nextTreeEvents, 0, storedNextTreeEvents, 0, intervalCount);
-    	System.arraycopy(nextRateShifts, 0, storedNextRateShifts, 0, intervalCount);
+    	// only the intervals from firstChangedInterval on can differ from the stored ones
+    	final int from = firstChangedInterval;
+    	final int count = intervalCount - from;
+    	if (count > 0) {
+	    	storeLinP();
+	    	System.arraycopy(coalLogP, from, storeLogP, from, count);
+	    	System.arraycopy(coalRatesInterval, from, storeRatesInterval, from, count);
+	    	System.arraycopy(nextTreeEvents, from, storedNextTreeEvents, from, count);
+	    	System.arraycopy(nextRateShifts, from, storedNextRateShifts, from, count);
+	    	firstChangedInterval = intervalCount;
+    	}
     	
     	System.arraycopy(lineagesAdded, 0, storedLineagesAdded, 0, intervalCount);
     	
@@ -554,37 +537,38 @@ public class MascotNative extends Distribution {
     }
         
     private void storeLinP() {
-    	System.arraycopy(coalLinProbsLengths, 0, storedCoalLinProbsLengths, 0, intervalCount);
-    	System.arraycopy(coalLinProbs, 0, storeLinProbs, 0, coalLinProbsLengths[intervalCount - 1]);
+    	final int from = firstChangedInterval;
+    	final int offset = from > 0 ? coalLinProbsLengths[from - 1] : 0;
+    	System.arraycopy(coalLinProbsLengths, from, storedCoalLinProbsLengths, from, intervalCount - from);
+    	System.arraycopy(coalLinProbs, offset, storeLinProbs, offset, maxLength(coalLinProbsLengths, from, intervalCount) - offset);
 	}
 
+    /** end of the cached linProbs of the intervals from the given one on, which may include 
+     * intervals a calculation did not get to **/
+    private static int maxLength(int [] lengths, int from, int intervalCount) {
+    	int max = from > 0 ? lengths[from - 1] : 0;
+    	for (int i = from; i < intervalCount; i++) {
+    		max = Math.max(max, lengths[i]);
+    	}
+    	return max;
+    }
+
 
 	@Override
 	public void restore(){    	
-    	// restore intermediate results
-    	double [] tmp = storeLogP;
-    	storeLogP = coalLogP;
-    	coalLogP = tmp;
-    	
-    	tmp = coalLinProbs;
-    	coalLinProbs = storeLinProbs;
-    	storeLinProbs = tmp;
-    	
-    	int [] tmp2 = coalLinProbsLengths;
-    	coalLinProbsLengths = storedCoalLinProbsLengths;
-    	storedCoalLinProbsLengths = tmp2;
-
-    	tmp2 = coalRatesInterval;
-    	coalRatesInterval = storeRatesInterval;
-    	storeRatesInterval = tmp2;
-    	
-		tmp = nextTreeEvents;
-		nextTreeEvents = storedNextTreeEvents;
-		storedNextTreeEvents = tmp;
-		
-		tmp = nextRateShifts;
-		nextRateShifts = storedNextRateShifts;
-		storedNextRateShifts = tmp;
+    	// restore intermediate results, copying back only the intervals that were recalculated
+    	final int from = firstChangedInterval;
+    	final int count = intervalCount - from;
+    	if (count > 0) {
+	    	System.arraycopy(storeLogP, from, coalLogP, from, count);
+	    	System.arraycopy(storeRatesInterval, from, coalRatesInterval, from, count);
+	    	System.arraycopy(storedNextTreeEvents, from, nextTreeEvents, from, count);
+	    	System.arraycopy(storedNextRateShifts, from, nextRateShifts, from, count);
+	    	System.arraycopy(storedCoalLinProbsLengths, from, coalLinProbsLengths, from, count);
+	    	final int offset = from > 0 ? coalLinProbsLengths[from - 1] : 0;
+	    	System.arraycopy(storeLinProbs, offset, coalLinProbs, offset, maxLength(coalLinProbsLengths, from, intervalCount) - offset);
+	    	firstChangedInterval = intervalCount;
+    	}
 
 //      not here: lineagesAdded points to TreeIntervals 		
 //		tmp2 = lineagesAdded;
@@ -2,6 +2,11 @@ package beast.mascot.distribution;
 
 
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
 
@@ -13,6 +18,7 @@ import beast.core.State;
 import beast.evolution.tree.TreeInterface;
 import beast.mascot.dynamics.Dynamics;
 import beast.mascot.ode.Euler2ndOrderNative;
+import beast.mascot.ode.NativeHandle;
 
 
 /**
@@ -22,18 +28,35 @@ import beast.mascot.ode.Euler2ndOrderNative;
 @Description("Native Mascot implementation using JNI")
 public class MascotNative2 extends Distribution {
 	
-	private int states, nodeCount, intervalCount;
+	private int states, nodeCount, intervalCount, nrSamples;
 	
-	private double [] coalescentRatesCache;
-	private double [] migrationRatesCache;
-	private int [][] indicatorsCache;
-	private double [] nextRateShiftCache;
+	// direct buffers shared with the native side, which reads and writes them in place
+	private DoubleBuffer coalescentRatesCache;
+	private DoubleBuffer migrationRatesCache;
+	private DoubleBuffer nextRateShiftCache;
+	// versions of the rates in the caches, per epoch
+	private long [] ratesVersions;
 	private int rateShiftCount;
+	// source and sink of the migrations that are switched on, with room for all pairs in every epoch
+	private IntBuffer indicatorsCache;
+	private IntBuffer indicatorCounts;
+	// indicators in the buffers, per epoch
+	private int [][] uploadedIndicators;
 	
-	private double [] currentCoalescentRates;
+	private IntBuffer lineagesAdded;
+	private IntBuffer lineagesRemoved;
+	private DoubleBuffer intervals;
+	private IntBuffer parents;
+	// state probabilities of the internal nodes, copied in bulk when first asked for after a calculation
+	private DoubleBuffer stateProbabilities;
+	private boolean stateProbabilitiesKnown;
+	
+	// address of the native Mascot of this object, read by the native methods
+	private long handle;
+	private final NativeHandle nativeHandle = new NativeHandle(this, MascotNative2::free);
 
     public MascotNative2(StructuredTreeIntervals treeIntervals, 
-    		int [] nodeType, int states, double epsilon, double max_step, boolean useCache
+    		int [] nodeType, int states, double epsilon, double max_step, boolean useCache, int checkpointSpacing
     		) {
     	TreeInterface tree = treeIntervals.treeInput.get();
     	treeIntervals.calculateIntervals();  
@@ -41,57 +64,128 @@ public class MascotNative2 extends Distribution {
     	nodeCount = tree.getNodeCount();
     	intervalCount = treeIntervals.getIntervalCount();
     	this.states = states;
-    	setup(nodeType, states, epsilon, max_step, sampleCount, nodeCount, nodeCount, useCache);
+    	nrSamples = sampleCount + 1;
+    	lineagesAdded = intBuffer(nodeCount);
+    	lineagesRemoved = intBuffer(nodeCount * 2);
+    	intervals = doubleBuffer(nodeCount);
+    	parents = intBuffer(nodeCount);
+    	stateProbabilities = doubleBuffer(nrSamples * states);
+    	handle = setup(nodeType, states, epsilon, max_step, sampleCount, nodeCount, nodeCount, useCache, checkpointSpacing);
+    	nativeHandle.set(handle);
     }
     
-    native void setup(int [] nodeType, int states, double epsilon, double max_step, int sampleCount, int nodeCount, int intervalCount, boolean useCache);
+    /** version of the native methods, bumped whenever one of them changes. The native library returns the one it was built with from version() **/
+    public static final int NATIVE_VERSION = 1;
+
+    native public static int version();
+
+    native long setup(int [] nodeType, int states, double epsilon, double max_step, int sampleCount, int nodeCount, int intervalCount, boolean useCache, int checkpointSpacing);
+
+    native static void free(long handle);
+
+    /** frees the native state now instead of when this object is garbage collected **/
+    public void release() {
+    	handle = 0;
+    	nativeHandle.release();
+    }
+
+    private static IntBuffer intBuffer(int size) {
+    	return ByteBuffer.allocateDirect(size * 4).order(ByteOrder.nativeOrder()).asIntBuffer();
+    }
+
+    private static DoubleBuffer doubleBuffer(int size) {
+    	return ByteBuffer.allocateDirect(size * 8).order(ByteOrder.nativeOrder()).asDoubleBuffer();
+    }
 
-    native public double calculateLogP(boolean dynamicsIsDirty, int firstDirtyInterval, int[] lineagesAdded, 
-    		int[] lineagesRemoved, double[] intervals, int[] parents);
+    private static void put(IntBuffer buffer, int [] values) {
+    	buffer.clear();
+    	buffer.put(values, 0, Math.min(values.length, buffer.capacity()));
+    }
+
+    private static void put(DoubleBuffer buffer, int offset, double [] values, int length) {
+    	buffer.position(offset);
+    	buffer.put(values, 0, length);
+    }
+
+    /**
+     * The tree is passed through the buffers shared with the native side, so the
+     * native calculation reads it in place.
+     */
+    public double calculateLogP(boolean dynamicsIsDirty, int firstDirtyInterval, int[] lineagesAdded, 
+    		int[] lineagesRemoved, double[] intervals, int[] parents) {
+    	put(this.lineagesAdded, lineagesAdded);
+    	put(this.lineagesRemoved, lineagesRemoved);
+    	put(this.intervals, 0, intervals, Math.min(intervals.length, nodeCount));
+    	put(this.parents, parents);
+    	stateProbabilitiesKnown = false;
+    	return calculateLogP(dynamicsIsDirty, firstDirtyInterval, this.lineagesAdded, this.lineagesRemoved, this.intervals, this.parents);
+    }
+
+    native double calculateLogP(boolean dynamicsIsDirty, int firstDirtyInterval, IntBuffer lineagesAdded, 
+    		IntBuffer lineagesRemoved, DoubleBuffer intervals, IntBuffer parents);
 
 	void setUpDynamics(Dynamics dynamics) {
-    	rateShiftCount = dynamics.getEpochCount();
-    	if (coalescentRatesCache == null) {
-        	coalescentRatesCache = new double[rateShiftCount * states];
-        	currentCoalescentRates = new double[states];
-        	migrationRatesCache = new double[rateShiftCount * states * states];
+    	boolean indicatorsChanged = false;
+    	if (coalescentRatesCache == null || rateShiftCount != dynamics.getEpochCount()) {
+        	rateShiftCount = dynamics.getEpochCount();
+        	coalescentRatesCache = doubleBuffer(rateShiftCount * states);
+        	migrationRatesCache = doubleBuffer(rateShiftCount * states * states);
+        	nextRateShiftCache = doubleBuffer(rateShiftCount);
         	if (dynamics.hasIndicators) {
-        		indicatorsCache = new int[rateShiftCount][];
-        	} else {
-        		indicatorsCache = new int[1][];
+        		indicatorsCache = intBuffer(rateShiftCount * 2 * states * (states - 1));
+        		indicatorCounts = intBuffer(rateShiftCount);
+        		uploadedIndicators = new int[rateShiftCount][];
         	}
+    		ratesVersions = new long[rateShiftCount];
     	}
     	for (int i = 0; i < rateShiftCount; i++) {
-    		System.arraycopy(dynamics.getCoalescentRate(i), 0, coalescentRatesCache, i*states, states);
-    		System.arraycopy(dynamics.getBackwardsMigration(i), 0, migrationRatesCache, i*states*states, states*states);
-    	}
-    	if (dynamics.hasIndicators) {
-        	for (int i = 0; i < rateShiftCount; i++) {
-        		indicatorsCache = new int[rateShiftCount][];
-        	}
-    		throw new IllegalArgumentException("Indicators not implemented yet");
+    		// only copy the epochs whose rates changed since they were last copied
+    		if (ratesVersions[i] != dynamics.getRatesVersion(i)) {
+    			put(coalescentRatesCache, i*states, dynamics.getCachedCoalescentRate(i), states);
+    			put(migrationRatesCache, i*states*states, dynamics.getCachedBackwardsMigration(i), states*states);
+    			int [] indicators = dynamics.getCachedIndicators(i);
+    			// the rates change much more often than the migrations that are switched on
+    			if (dynamics.hasIndicators && !Arrays.equals(indicators, uploadedIndicators[i])) {
+    				indicatorsCache.position(i * 2 * states * (states - 1));
+    				indicatorsCache.put(indicators);
+    				indicatorCounts.put(i, indicators.length);
+    				uploadedIndicators[i] = indicators;
+    				indicatorsChanged = true;
+    			}
+	    		ratesVersions[i] = dynamics.getRatesVersion(i);
+    		}
     	}
-    	nextRateShiftCache = dynamics.getIntervals();
+    	put(nextRateShiftCache, 0, dynamics.getIntervals(), rateShiftCount);
     	dynamics.setDynamicsKnown();
-		setUpDynamics(coalescentRatesCache, migrationRatesCache, indicatorsCache, nextRateShiftCache);
+		setUpDynamics(rateShiftCount, coalescentRatesCache, migrationRatesCache, nextRateShiftCache);
+		if (indicatorsChanged) {
+			setUpIndicators(rateShiftCount, indicatorsCache, indicatorCounts);
+		}
 	}
 
     
-	native void setUpDynamics(double[] coalescentRatesCache2, double[] migrationRatesCache2, int[][] indicatorsCache2,
-			double[] nextRateShiftCache2);
+	native void setUpDynamics(int rateShiftCount, DoubleBuffer coalescentRatesCache, DoubleBuffer migrationRatesCache,
+			DoubleBuffer nextRateShiftCache);
+
+	/** indicators holds the source and sink pairs of every epoch, indicatorCounts the length of each list **/
+	native void setUpIndicators(int rateShiftCount, IntBuffer indicatorsCache, IntBuffer indicatorCounts);
 
 
     public DoubleMatrix getStateProb(int nr){
+    	if (!stateProbabilitiesKnown) {
+    		getStateProbs(stateProbabilities);
+    		stateProbabilitiesKnown = true;
+    	}
     	DoubleMatrix p = new DoubleMatrix(states);
-    	double [] stateProbabilities = new double[states];
-    	getStateProb(nr, stateProbabilities);
+    	final int offset = (nr - nrSamples) * states;
     	for (int i = 0; i < states; i++) {
-    		p.put(i, stateProbabilities[i]);
+    		p.put(i, stateProbabilities.get(offset + i));
     	}
     	return p;
     }    
     
-    native void getStateProb(int nr, double[] stateProbabilities2);
+    /** copies the state probabilities of all internal nodes into the buffer **/
+    native void getStateProbs(DoubleBuffer stateProbabilities);
 
 	public DoubleMatrix getRootState(){
     	return getStateProb(nodeCount - 1);
@@ -107,6 +201,7 @@ public class MascotNative2 extends Distribution {
 
 	@Override
 	public void restore(){    	
+		stateProbabilitiesKnown = false;
 		restoreState();
     }
 
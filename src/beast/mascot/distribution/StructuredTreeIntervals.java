@@ -2,9 +2,7 @@ package beast.mascot.distribution;
 
 
 
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Comparator;
 
 import beast.core.CalculationNode;
 import beast.core.Description;
@@ -61,6 +59,13 @@ public class StructuredTreeIntervals extends CalculationNode implements Interval
      */
     protected double[] intervals;
     protected double[] storedIntervals;
+
+    /**
+     * The time of the event of every interval since the first event, only kept up to date 
+     * if the intervals are not sorted, else the node times give it.
+     */
+    private double[] eventTimes;
+    private double[] storedEventTimes;
     
    
     /**
@@ -68,6 +73,7 @@ public class StructuredTreeIntervals extends CalculationNode implements Interval
      */
     protected boolean[] intervalIsDirty;
     int firstDirtyInterval;
+    int lastDirtyInterval;
 
     /**
      * The number of uncoalesced lineages within a particular interval.
@@ -97,6 +103,29 @@ public class StructuredTreeIntervals extends CalculationNode implements Interval
      */
     protected boolean intervalsKnown = false;
     protected double multifurcationLimit = -1.0;
+
+    // node heights, child counts and node numbers in order of height, reused by calculateIntervals
+    private double[] times;
+    private int[] childCounts;
+    private int[] indices;
+    // position of each node in indices
+    private int[] positions;
+    // orders nodes of the same height, a node comes after its daughters at the same height
+    private int[] ranks;
+    // true if interval i is the event of node indices[i], which holds unless multifurcations are merged
+    private boolean sortedIntervals = false;
+    private double[] storedTimes;
+    private int[] storedIndices;
+    private int[] storedPositions;
+    private int[] storedRanks;
+    private boolean storedSortedIntervals;
+    // intervals that can differ from the stored ones
+    private int changedFrom, changedTo;
+    // nodes that moved or changed daughters, and the range of positions updateIntervals rederives
+    private int[] changedNodes;
+    private int updateFrom, updateTo;
+    // work space for sortByHeight
+    private int[] sortBuffer;
     
     /**
      * =======================================================================
@@ -146,6 +175,10 @@ public class StructuredTreeIntervals extends CalculationNode implements Interval
         storedIntervals = intervals;
         intervals = tmp;
 
+        tmp = storedEventTimes;
+        storedEventTimes = eventTimes;
+        eventTimes = tmp;
+
         int[] tmp2 = storedLineageCounts;
         storedLineageCounts = lineageCounts;
         lineageCounts = tmp2;
@@ -162,6 +195,26 @@ public class StructuredTreeIntervals extends CalculationNode implements Interval
         storedLineagesRemoved = lineagesRemoved;
         lineagesRemoved = tmp2;
         
+        tmp = storedTimes;
+        storedTimes = times;
+        times = tmp;
+
+        tmp2 = storedIndices;
+        storedIndices = indices;
+        indices = tmp2;
+
+        tmp2 = storedPositions;
+        storedPositions = positions;
+        positions = tmp2;
+
+        tmp2 = storedRanks;
+        storedRanks = ranks;
+        ranks = tmp2;
+
+        boolean tmp4 = storedSortedIntervals;
+        storedSortedIntervals = sortedIntervals;
+        sortedIntervals = tmp4;
+        
 //    	for (int i = 0; i < intervalCount; i++) {
 //    		if (storedLineagesAdded[i] != null) {
 //    			if (lineagesAdded[i] == null) {
@@ -233,6 +286,17 @@ public class StructuredTreeIntervals extends CalculationNode implements Interval
         // Create new deep copies for storedLineagsAdded/Removed
         System.arraycopy(lineagesAdded, 0, storedLineagesAdded, 0, intervalCount);
         System.arraycopy(lineagesRemoved, 0, storedLineagesRemoved, 0, intervalCount * 2);
+        
+        System.arraycopy(times, 0, storedTimes, 0, times.length);
+        System.arraycopy(indices, 0, storedIndices, 0, indices.length);
+        System.arraycopy(positions, 0, storedPositions, 0, positions.length);
+        System.arraycopy(ranks, 0, storedRanks, 0, ranks.length);
+        if (!sortedIntervals) {
+        	System.arraycopy(eventTimes, 0, storedEventTimes, 0, intervalCount);
+        }
+        storedSortedIntervals = sortedIntervals;
+        changedFrom = intervalCount;
+        changedTo = -1;
 //    	for (int i = 0; i < intervalCount; i++) {
 //    		if (lineagesAdded[i] != null) {
 //    			if (storedLineagesAdded[i] == null) {
@@ -450,58 +514,245 @@ public class StructuredTreeIntervals extends CalculationNode implements Interval
     }    
   
     protected void setIntervalsClean(){
-        intervalIsDirty = new boolean[tree.getNodeCount()];
+        Arrays.fill(intervalIsDirty, false);
         lastIntervalDirty = false;
     }
 
     /**
-     * Recalculates all the intervals for the given beast.tree.
+     * Recalculates the intervals for the given beast.tree. Only the intervals of nodes that 
+     * moved or changed children are updated if the intervals are still in order of height.
      */
-    @SuppressWarnings("unchecked")
 	public void calculateIntervals() {
-//    	System.out.println("update intervals " + treeInput.get());
-//    	if (tree!=null);
-//    	else
 		tree = treeInput.get();
+		if (!updateIntervals()) {
+			rebuildIntervals();
+		}
+        intervalsKnown = true;
+	}
 
-		
-//		System.out.println(String.format("%.200s",tree));
-		
+    /**
+     * Moves the nodes whose height changed to their new place in indices and updates the 
+     * intervals between the first and last place that changed. Since every node is an interval 
+     * of its own, the other intervals stay the same.
+     * Returns false if all intervals need to be rebuilt.
+     */
+    private boolean updateIntervals() {
         final int nodeCount = tree.getNodeCount();
+        if (!sortedIntervals || multifurcationLimit >= 0 || times.length != nodeCount) {
+        	return false;
+        }
+        final Node[] nodes = tree.getNodesAsArray();
+        updateFrom = nodeCount;
+        updateTo = -1;
+        int changedCount = 0;
+        for (int i = 0; i < nodeCount; i++) {
+        	final Node node = nodes[i];
+        	if (node.getHeight() != times[i]) {
+        		times[i] = node.getHeight();
+        		move(i);
+        		changedNodes[changedCount++] = i;
+        	} else if (node.isDirty() > 0) {
+        		// the children may have changed
+        		updateFrom = Math.min(updateFrom, positions[i]);
+        		updateTo = Math.max(updateTo, positions[i]);
+        		changedNodes[changedCount++] = i;
+        	}
+        }
+        // the parents of changed nodes may have lost or gained a daughter at their height, 
+        // and so may the nodes above them at the same height
+        for (int c = 0; c < changedCount; c++) {
+        	Node node = nodes[changedNodes[c]];
+        	rerank(nodes, node.getNr());
+        	node = node.getParent();
+        	while (node != null) {
+        		rerank(nodes, node.getNr());
+        		final Node parent = node.getParent();
+        		if (parent == null || times[parent.getNr()] != times[node.getNr()]) {
+        			break;
+        		}
+        		node = parent;
+        	}
+        }
+        int from = updateFrom, to = updateTo;
+        
+        if (to >= 0) {
+        	// the interval after the last moved node starts at a different time
+        	to = Math.min(to + 1, nodeCount - 1);
+        	int numLines = lineageCounts[from];
+        	for (int i = from; i <= to; i++) {
+        		final int nr = indices[i];
+        		intervals[i] = i == 0 ? 0.0 : times[nr] - times[indices[i - 1]];
+        		lineageCounts[i] = numLines;
+        		lineagesAdded[i] = nr;
+        		if (childCounts[nr] == 0) {
+        			lineagesRemoved[i * 2] = -2;
+        			lineagesRemoved[i * 2 + 1] = -2;
+        			numLines++;
+        		} else {
+        			lineagesRemoved[i * 2] = nodes[nr].getLeft().getNr();
+        			lineagesRemoved[i * 2 + 1] = nodes[nr].getRight().getNr();
+        			numLines--;
+        		}
+        	}
+        	changedFrom = Math.min(changedFrom, from);
+        	changedTo = Math.max(changedTo, to);
+        }
+        
+        // outside the changed intervals nothing differs from the stored intervals
+        Arrays.fill(intervalIsDirty, false);
+        firstDirtyInterval = nodeCount;
+        lastDirtyInterval = -1;
+        for (int i = changedFrom; i <= changedTo; i++) {
+        	if (intervals[i] != storedIntervals[i] || (childCounts[indices[i]] > 0 && nodes[indices[i]].isDirty() > 0)) {
+        		intervalIsDirty[i] = true;
+        		firstDirtyInterval = Math.min(firstDirtyInterval, i);
+        		lastDirtyInterval = i;
+        	}
+        }
+        return true;
+    }
 
-        final double[] times = new double[nodeCount];
-        int[] childCounts = new int[nodeCount];
+    /**
+     * Returns the time of the event of interval i since the first event.
+     */
+    public double getEventTime(int i) {
+    	if (!intervalsKnown) {
+    		calculateIntervals();
+    	}
+    	if (sortedIntervals) {
+    		return times[indices[i]] - times[indices[0]];
+    	}
+    	return eventTimes[i];
+    }
 
-        collectTimes(tree, times, childCounts);
+    /**
+     * Returns the first interval whose event or length differs from the stored intervals, or the
+     * interval count if they are all the same. Only the intervals that changed since the last store
+     * are compared, which makes this cheap after a local change of the tree.
+     */
+    public int getFirstChangedInterval() {
+    	if (!intervalsKnown) {
+    		calculateIntervals();
+    	}
+    	if (intervalCount != storedIntervalCount) {
+    		return 0;
+    	}
+    	final int to = Math.min(changedTo, intervalCount - 1);
+    	for (int i = Math.max(changedFrom, 0); i <= to; i++) {
+    		if (lineagesAdded[i] != storedLineagesAdded[i] || intervals[i] != storedIntervals[i]
+    				|| lineagesRemoved[i * 2] != storedLineagesRemoved[i * 2]
+    				|| lineagesRemoved[i * 2 + 1] != storedLineagesRemoved[i * 2 + 1]) {
+    			return i;
+    		}
+    	}
+    	return intervalCount;
+    }
 
-        Integer [] indices = new Integer[nodeCount];        
-        for (int i = 0; i < nodeCount; i++) {
-        	indices[i] = i;
+    /** moves node nr to its place in indices and widens the range of positions to rederive **/
+    private void move(final int nr) {
+    	final int position = positions[nr];
+    	final int newPosition = reposition(nr, position);
+    	updateFrom = Math.min(updateFrom, Math.min(position, newPosition));
+    	updateTo = Math.max(updateTo, Math.max(position, newPosition));
+    }
+
+    /** moves node nr if its rank among the nodes at the same height changed **/
+    private void rerank(final Node[] nodes, final int nr) {
+    	final int rank = rank(nodes, nr);
+    	if (rank != ranks[nr]) {
+    		ranks[nr] = rank;
+    		move(nr);
+    	}
+    }
+
+    /** 0 for tips, otherwise one more than the highest rank of a daughter at the same height **/
+    private int rank(final Node[] nodes, final int nr) {
+    	if (childCounts[nr] == 0) {
+    		return 0;
+    	}
+    	int rank = 1;
+    	final Node node = nodes[nr];
+    	for (int j = 0; j < 2; j++) {
+    		final int child = (j == 0 ? node.getLeft() : node.getRight()).getNr();
+    		if (times[child] == times[nr]) {
+    			rank = Math.max(rank, rank(nodes, child) + 1);
+    		}
+    	}
+    	return rank;
+    }
+
+    /** true if node a comes before node b, by height, then rank, then node number **/
+    private boolean before(final int a, final int b) {
+    	return times[a] < times[b] || (times[a] == times[b] 
+    			&& (ranks[a] < ranks[b] || (ranks[a] == ranks[b] && a < b)));
+    }
+
+    /** moves node nr from the given position in indices to its place by height, returns the new position **/
+    private int reposition(final int nr, int position) {
+    	while (position > 0 && before(nr, indices[position - 1])) {
+    		indices[position] = indices[position - 1];
+    		positions[indices[position]] = position;
+    		position--;
+    	}
+    	while (position < indices.length - 1 && before(indices[position + 1], nr)) {
+    		indices[position] = indices[position + 1];
+    		positions[indices[position]] = position;
+    		position++;
+    	}
+    	indices[position] = nr;
+    	positions[nr] = position;
+    	return position;
+    }
+
+    /**
+     * Recalculates all the intervals for the given beast.tree.
+     */
+    private void rebuildIntervals() {
+        final int nodeCount = tree.getNodeCount();
+
+        if (times == null || times.length != nodeCount) {
+        	times = new double[nodeCount];
+        	childCounts = new int[nodeCount];
+        	indices = new int[nodeCount];
+        	positions = new int[nodeCount];
+        	ranks = new int[nodeCount];
+            for (int i = 0; i < nodeCount; i++) {
+            	indices[i] = i;
+            }
+        	storedTimes = new double[nodeCount];
+        	storedIndices = new int[nodeCount];
+        	storedPositions = new int[nodeCount];
+        	storedRanks = new int[nodeCount];
+        	changedNodes = new int[nodeCount];
+        	sortBuffer = new int[nodeCount];
         }
+        final double[] times = this.times;
+        final int[] childCounts = this.childCounts;
+        final int[] indices = this.indices;
 
-        Arrays.sort(indices, new Comparator<Integer>() {
-        	public int compare(Integer a,Integer b) {
-        	if (times[a] > times[b]) {
-        		return 1;
-        	} else if (times[a] < times[b]) {
-        		return -1;
-        	}
-        	return a.compareTo(b);
-        }});
+        collectTimes(tree, times, childCounts);
+        final Node[] nodes = tree.getNodesAsArray();
+        for (int i = 0; i < nodeCount; i++) {
+        	ranks[i] = rank(nodes, i);
+        }
+        sortByHeight(indices, sortBuffer, 0, nodeCount);
         
 
         Arrays.fill(intervalIsDirty, false);
         firstDirtyInterval = nodeCount;
+        lastDirtyInterval = -1;
 
         if (intervals == null || intervals.length != nodeCount) {
 //        	System.out.println("dfllfdlk");
         	// Initialize new Lists
         	intervals = new double[nodeCount];
+        	eventTimes = new double[nodeCount];
             lineageCounts = new int[nodeCount];
             lineagesAdded = new int[nodeCount];
             lineagesRemoved = new int[nodeCount * 2];
             
             storedIntervals = new double[nodeCount];
+            storedEventTimes = new double[nodeCount];
             storedLineageCounts = new int[nodeCount];
             storedLineagesAdded = new int[nodeCount];
             storedLineagesRemoved = new int[nodeCount * 2];
@@ -551,6 +802,7 @@ public class StructuredTreeIntervals extends CalculationNode implements Interval
                     if (parent.isDirty()>0){
                     	intervalIsDirty[intervalCount] = true;
                     	firstDirtyInterval = Math.min(firstDirtyInterval, intervalCount);
+                    	lastDirtyInterval = Math.max(lastDirtyInterval, intervalCount);
                     }else{
                     	intervalIsDirty[intervalCount] = false;                	
                     }
@@ -585,6 +837,7 @@ public class StructuredTreeIntervals extends CalculationNode implements Interval
         	if (diff != storedIntervals[intervalCount]) {
             	intervalIsDirty[intervalCount] = true;
             	firstDirtyInterval = Math.min(intervalCount, firstDirtyInterval);
+            	lastDirtyInterval = Math.max(lastDirtyInterval, intervalCount);
         	}
        		
         	
@@ -592,6 +845,7 @@ public class StructuredTreeIntervals extends CalculationNode implements Interval
 
                 if (intervalCount > 0 || ((finish - start) > multifurcationLimit)) {
                     intervals[intervalCount] = finish - start;
+                    eventTimes[intervalCount] = finish - times[indices[0]];
                     lineageCounts[intervalCount] = numLines;
                     intervalCount += 1;
                 }
@@ -605,6 +859,7 @@ public class StructuredTreeIntervals extends CalculationNode implements Interval
             if (lineagesRemoved > 0) {        		
 
                 intervals[intervalCount] = diff;
+                eventTimes[intervalCount] = finish - times[indices[0]];
                 lineageCounts[intervalCount] = numLines;
                 intervalCount += 1;
                 start = finish;
@@ -613,8 +868,37 @@ public class StructuredTreeIntervals extends CalculationNode implements Interval
             numLines -= lineagesRemoved;
         }    
         
-//        print();
-        intervalsKnown = true;
+        for (int i = 0; i < nodeCount; i++) {
+        	positions[indices[i]] = i;
+        }
+        sortedIntervals = intervalCount == nodeCount;
+        changedFrom = 0;
+        changedTo = intervalCount - 1;
+    }
+
+    /**
+     * Sorts the node numbers in indices[from, to) by height, ties broken by rank and node number.
+     * Merge sort that skips merging halves that are already in order, so it is linear if the
+     * order of the previous call still holds, and does not allocate.
+     */
+    private void sortByHeight(final int[] indices, final int[] buffer, final int from, final int to) {
+    	if (to - from < 2) {
+    		return;
+    	}
+    	final int mid = (from + to) >>> 1;
+    	sortByHeight(indices, buffer, from, mid);
+    	sortByHeight(indices, buffer, mid, to);
+    	if (!before(indices[mid], indices[mid - 1])) {
+    		return;
+    	}
+    	System.arraycopy(indices, from, buffer, from, mid - from);
+    	int i = from, j = mid, k = from;
+    	while (i < mid && j < to) {
+    		indices[k++] = before(indices[j], buffer[i]) ? indices[j++] : buffer[i++];
+    	}
+    	while (i < mid) {
+    		indices[k++] = buffer[i++];
+    	}
     }
 
     protected void addLineage(int interval, Node node) {
@@ -718,87 +1002,14 @@ public class StructuredTreeIntervals extends CalculationNode implements Interval
     }
     
     /**
-     * Added Function
+     * Makes sure the intervals are calculated. Nodes are sorted after their daughters at the 
+     * same height, so the daughter lineages of every coalescent event are there when it happens 
+     * and no events have to be reordered.
      */
     public void swap() {
-    	calculateIntervals();
-    	ArrayList<Integer> activeLineages = new ArrayList<Integer>();
-        
-        for (int i = 0; i < intervalCount; i++){
-        	if (IntervalType.SAMPLE == getIntervalType(i)) {
-        		int incomingLines = getLineagesAdded(i);
-        		activeLineages.add(incomingLines);
-//        		for (Integer l : incomingLines) {
-//        			activeLineages.add(l);//.getNr());
-//        		}
-        	}
-
-       	
-        	if (IntervalType.COALESCENT == getIntervalType(i)){
-        		//List<Integer> daughter = getLineagesRemoved(i);
-            	
-//            	if (daughter.size() > 2) {
-//            		System.err.println("Multifurcation");
-//        		}
-        		int d1 = activeLineages.indexOf(getLineagesRemoved(i,0));
-        		int d2 = activeLineages.indexOf(getLineagesRemoved(i,1));
-        		int j = i;
-        		boolean swap = false;
-        		
-        		while (d1 == -1 || d2 == -1 && j < intervalCount){										// If true the nodes are in the wrong order
-        			// Go to next event
-        			j++;
-                	if(IntervalType.COALESCENT == getIntervalType(j)){
-                		d1 = activeLineages.indexOf(getLineagesRemoved(j, 0));
-                		d2 = activeLineages.indexOf(getLineagesRemoved(j, 1));
-                	}
-            		swap = true;
-        		} 
-        		
-        		if(!swap){
-	        		if (d1 > d2){
-	        			activeLineages.remove(d1);
-	        			activeLineages.remove(d2);
-	        		}
-	        		else{
-	        			activeLineages.remove(d2);
-	        			activeLineages.remove(d1);
-	        		}
-	        		int incomingLines = getLineagesAdded(i);
-	        		activeLineages.add(incomingLines);//.getNr());
-        		}
-        		// Add parent
-        		if (j == intervalCount){
-        			break;
-        		}       		
-        		
-        		if(swap){
-        		    double inter = intervals[j];
-        		    intervals[j] = intervals[i];
-        		    intervals[i] = inter;        		    		
-        		    double storedInter = storedIntervals[j];
-        		    storedIntervals[j] = storedIntervals[i];
-        		    storedIntervals[i] = storedInter;
-        		    /**
-        		     * The number of uncoalesced lineages within a particular interval.
-        		     */
-        		    /**
-        		     * The lineages in each interval (stored by node ref).
-        		     */
-        		    int lineageAdded = lineagesAdded[j];
-        		    lineagesAdded[j] = lineagesAdded[i];
-        		    lineagesAdded[i] = lineageAdded;
-        		    int lineageRemoved = lineagesRemoved[j*2];
-        		    lineagesRemoved[j*2] = lineagesRemoved[i*2];
-        		    lineagesRemoved[i*2] = lineageRemoved;
-        		    lineageRemoved = lineagesRemoved[j*2+1];
-        		    lineagesRemoved[j*2+1] = lineagesRemoved[i*2+1];
-        		    lineagesRemoved[i*2+1] = lineageRemoved;
-        			i--;
-      			
-        		}
-        	}
-        }
+    	if (!intervalsKnown) {
+    		calculateIntervals();
+    	}
     }
 
-}
\ No newline at end of file
+}
@@ -107,23 +107,12 @@ public class Constant extends Dynamics implements Loggable  {
 
     
     public boolean intervalIsDirty(int i){
-    	boolean intervalIsDirty = false;  	    	
-    	
-    	for (int j = 0; j < dimensionInput.get(); j++)
-    		if (NeInput.get().isDirty(j))
-    			intervalIsDirty = true;  
-    
-    	if (isBackwardsMigration){
-			for (int j = 0; j < b_mInput.get().getDimension(); j++)
-				if (b_mInput.get().isDirty(j))
-					intervalIsDirty = true; 
-    	}else{
-			for (int j = 0; j < f_mInput.get().getDimension(); j++)
-				if (f_mInput.get().isDirty(j))
-					intervalIsDirty = true;    		
-    	}		
-    	return intervalIsDirty;
-
+    	if (NeInput.get().somethingIsDirty())
+    		return true;
+    	if (isBackwardsMigration)
+    		return b_mInput.get().somethingIsDirty();
+    	else
+    		return f_mInput.get().somethingIsDirty();
     }   
  
 	@Override
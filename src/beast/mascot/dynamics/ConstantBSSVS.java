@@ -104,33 +104,13 @@ public class ConstantBSSVS extends Dynamics implements Loggable  {
 	}
 
     public boolean intervalIsDirty(int i){
-    	boolean intervalIsDirty = false;  
-    	
-    	if (migrationClockInput.get().isDirty(0))
-			intervalIsDirty = true;
-
-    	
-    	for (int j = 0; j < dimensionInput.get(); j++)
-    		if (NeInput.get().isDirty(j))
-    			intervalIsDirty = true;
-    	
-    	if (isBackwardsMigration){
-			for (int j = 0; j < b_mInput.get().getDimension(); j++){
-				if (indicatorInput.get().isDirty(j))
-					intervalIsDirty = true; 
-				if (b_mInput.get().isDirty(j))
-					intervalIsDirty = true; 
-			}
-    	}else{
-			for (int j = 0; j < f_mInput.get().getDimension(); j++){
-				if (indicatorInput.get().isDirty(j))
-					intervalIsDirty = true; 
-				if (f_mInput.get().isDirty(j))
-					intervalIsDirty = true;    		
-			}
-    	}		
-    	return intervalIsDirty;
-
+    	if (migrationClockInput.get().somethingIsDirty() || NeInput.get().somethingIsDirty()
+    			|| indicatorInput.get().somethingIsDirty())
+    		return true;
+    	if (isBackwardsMigration)
+    		return b_mInput.get().somethingIsDirty();
+    	else
+    		return f_mInput.get().somethingIsDirty();
     }   
  
 	@Override
@@ -361,8 +341,8 @@ public class ConstantBSSVS extends Dynamics implements Loggable  {
 		    		for (int b = 0; b < NeInput.get().getDimension(); b++){
 		    			if (a!=b){
 		    				if (indicatorInput.get().getArrayValue(c)>0.5){
-		    					m[mi * nrTrue + 0] = a;
-		    					m[mi * nrTrue + 1] = b;
+		    					m[mi * 2 + 0] = a;
+		    					m[mi * 2 + 1] = b;
 		    					mi++;
 		    				}
 		    				c++;
@@ -374,11 +354,11 @@ public class ConstantBSSVS extends Dynamics implements Loggable  {
 		    		for (int b = a+1; b < NeInput.get().getDimension(); b++){
 		    			if (a!=b){
 		    				if (indicatorInput.get().getArrayValue(c)>0.5){
-		    					m[mi * nrTrue + 0] = a;
-		    					m[mi * nrTrue + 1] = b;
+		    					m[mi * 2 + 0] = a;
+		    					m[mi * 2 + 1] = b;
 		    					mi++;
-		    					m[mi * nrTrue + 0] = b;
-		    					m[mi * nrTrue + 1] = a;
+		    					m[mi * 2 + 0] = b;
+		    					m[mi * 2 + 1] = a;
 		    					mi++;
 		    				}
 		    				c++;
@@ -392,8 +372,8 @@ public class ConstantBSSVS extends Dynamics implements Loggable  {
 		    		for (int b = 0; b < NeInput.get().getDimension(); b++){
 		    			if (a!=b){
 		    				if (indicatorInput.get().getArrayValue(c)>0.5){
-		    					m[mi * nrTrue + 0] = a;
-		    					m[mi * nrTrue + 1] = b;
+		    					m[mi * 2 + 0] = a;
+		    					m[mi * 2 + 1] = b;
 		    					mi++;
 		    				}
 		    				c++;
@@ -405,11 +385,11 @@ public class ConstantBSSVS extends Dynamics implements Loggable  {
 		    		for (int b = a+1; b < NeInput.get().getDimension(); b++){
 		    			if (a!=b){
 		    				if (indicatorInput.get().getArrayValue(c)>0.5){
-		    					m[mi * nrTrue + 0] = a;
-		    					m[mi * nrTrue + 1] = b;
+		    					m[mi * 2 + 0] = a;
+		    					m[mi * 2 + 1] = b;
 		    					mi++;
-		    					m[mi * nrTrue + 0] = b;
-		    					m[mi * nrTrue + 1] = a;
+		    					m[mi * 2 + 0] = b;
+		    					m[mi * 2 + 1] = a;
 		    					mi++;
 		    				}
 		    				c++;
@@ -28,6 +28,17 @@ public abstract class Dynamics extends CalculationNode  {
     
     private boolean dynamicsKnown = false;
 
+    // rates of every epoch as returned by the getters below, only the epochs that are dirty are rebuilt
+    private double [][] cachedCoalescentRates, storedCoalescentRates;
+    private double [][] cachedMigrationRates, storedMigrationRates;
+    private int [][] cachedIndicators, storedIndicators;
+    // version of the rates of every epoch, a new version is never used twice
+    private long [] ratesVersion, storedRatesVersion;
+    private long lastVersion = 0;
+    // epochs whose rates were rebuilt since the last store, and if all were built since then
+    private boolean [] ratesChanged;
+    private boolean ratesBuilt = false;
+
     /**
      * recalculate the dynamics
      */
@@ -45,12 +56,28 @@ public abstract class Dynamics extends CalculationNode  {
 	public abstract boolean intervalIsDirty(int i);
 	
     /**
-     * get the effective population sizes for the next interval
+     * get the first epoch whose parameters changed, or getEpochCount() if none did.
+     * Everything before the start of that epoch can be taken from the cache.
+     */    
+	public int getFirstDirtyEpoch() {
+		final int n = getEpochCount();
+		for (int i = 0; i < n; i++) {
+			if (intervalIsDirty(i)) {
+				return i;
+			}
+		}
+		return n;
+	}
+	
+    /**
+     * get the effective population sizes for the next interval, 
+     * this has to be a new array since the rate cache keeps it
      */    
 	public abstract double[] getCoalescentRate(int i);
 	
     /**
-     * get the migration rates for the next interval
+     * get the migration rates for the next interval,
+     * this has to be a new array since the rate cache keeps it
      */    
 	public abstract double[] getBackwardsMigration(int i);
 	
@@ -60,6 +87,23 @@ public abstract class Dynamics extends CalculationNode  {
 	public abstract int getEpochCount();
 
 	
+	/**
+	 * true if the coalescent rates change continuously within epochs, in which case 
+	 * getCoalescentRate(i, time, rates) gives the rates at a time and getCoalescentRate(i)
+	 * those at the start of the epoch. Migration rates cannot vary within an epoch, 
+	 * getBackwardsMigration(i) applies to all of it.
+	 */
+	public boolean isTimeVarying() {
+		return false;
+	}
+	
+	/**
+	 * get the coalescent rates of epoch i at the given time before the most recent sample
+	 */
+	public void getCoalescentRate(int i, double time, double[] rates) {
+		System.arraycopy(getCachedCoalescentRate(i), 0, rates, 0, rates.length);
+	}
+
 	/**
 	 * get indicator variables for migration
 	 * @param i
@@ -68,6 +112,112 @@ public abstract class Dynamics extends CalculationNode  {
 	public int[] getIndicators(int i){
 		return null;
 	}
+	
+	/**
+	 * cached version of getCoalescentRate(i). The array is shared by all callers and must not be changed.
+	 * It stays the same array until the rates of the epoch change, which replaces it by a new one, 
+	 * and a restore brings back the array of the last store. Integrators keep what they derive 
+	 * from the rates of an epoch for as long as they get the same array, so a write into it is 
+	 * never seen by them. verifyCachedRates() checks that the arrays were not changed.
+	 */
+	public double[] getCachedCoalescentRate(int i) {
+		updateRates();
+		return cachedCoalescentRates[Math.min(i, cachedCoalescentRates.length - 1)];
+	}
+
+	/**
+	 * cached version of getBackwardsMigration(i), see getCachedCoalescentRate(i)
+	 */
+	public double[] getCachedBackwardsMigration(int i) {
+		updateRates();
+		return cachedMigrationRates[Math.min(i, cachedMigrationRates.length - 1)];
+	}
+
+	/**
+	 * cached version of getIndicators(i), see getCachedCoalescentRate(i)
+	 */
+	public int[] getCachedIndicators(int i) {
+		updateRates();
+		return cachedIndicators[Math.min(i, cachedIndicators.length - 1)];
+	}
+	
+	/**
+	 * throws if the cached rates of an epoch differ from freshly calculated ones, which means that 
+	 * an array returned by getCachedCoalescentRate(i), getCachedBackwardsMigration(i) or getCachedIndicators(i) 
+	 * was changed, or that the epoch was not rebuilt after its rates changed
+	 */
+	public void verifyCachedRates() {
+		updateRates();
+		for (int i = 0; i < ratesVersion.length; i++) {
+			if (!Arrays.equals(cachedCoalescentRates[i], getCoalescentRate(i))
+					|| !Arrays.equals(cachedMigrationRates[i], getBackwardsMigration(i))
+					|| !Arrays.equals(cachedIndicators[i], getIndicators(i))) {
+				throw new RuntimeException("Cached rates of epoch " + i + " differ from the rates of the dynamics. "
+						+ "The arrays returned by getCachedCoalescentRate, getCachedBackwardsMigration and getCachedIndicators must not be changed.");
+			}
+		}
+	}
+
+	/**
+	 * version of the cached rates of epoch i, which changes whenever they do. 
+	 * Consumers that copy the rates only need to copy epochs whose version changed.
+	 */
+	public long getRatesVersion(int i) {
+		updateRates();
+		return ratesVersion[Math.min(i, ratesVersion.length - 1)];
+	}
+
+	/** builds the rates of all epochs if there are none yet **/
+	private void updateRates() {
+		final int n = getEpochCount();
+		if (ratesVersion != null && ratesVersion.length == n) {
+			return;
+		}
+		cachedCoalescentRates = new double[n][];
+		cachedMigrationRates = new double[n][];
+		cachedIndicators = new int[n][];
+		ratesVersion = new long[n];
+		storedCoalescentRates = new double[n][];
+		storedMigrationRates = new double[n][];
+		storedIndicators = new int[n][];
+		storedRatesVersion = new long[n];
+		ratesChanged = new boolean[n];
+		for (int i = 0; i < n; i++) {
+			rebuildRates(i);
+		}
+		ratesBuilt = true;
+	}
+
+	private void rebuildRates(int i) {
+		cachedCoalescentRates[i] = getCoalescentRate(i);
+		cachedMigrationRates[i] = getBackwardsMigration(i);
+		cachedIndicators[i] = getIndicators(i);
+		ratesVersion[i] = ++lastVersion;
+	}
+
+	/** rebuilds the cached rates of the dirty epochs, returns true if there were any **/
+	private boolean updateDirtyRates() {
+		if (ratesVersion == null || ratesVersion.length != getEpochCount()) {
+			// the rates are built when they are first used
+			return getFirstDirtyEpoch() < getEpochCount();
+		}
+		boolean isDirty = false;
+		for (int i = 0; i < ratesVersion.length; i++) {
+			if (intervalIsDirty(i)) {
+				if (!ratesChanged[i]) {
+					// keep the rates of the last store for a restore
+					storedCoalescentRates[i] = cachedCoalescentRates[i];
+					storedMigrationRates[i] = cachedMigrationRates[i];
+					storedIndicators[i] = cachedIndicators[i];
+					storedRatesVersion[i] = ratesVersion[i];
+					ratesChanged[i] = true;
+				}
+				rebuildRates(i);
+				isDirty = true;
+			}
+		}
+		return isDirty;
+	}
 
 
 	HashMap<String, Integer> traitToType = new HashMap<>(); 
@@ -127,17 +277,36 @@ public abstract class Dynamics extends CalculationNode  {
     @Override
     protected void store() {
     	dynamicsKnown = true; 	
+    	if (ratesChanged != null) {
+    		Arrays.fill(ratesChanged, false);
+    	}
+    	ratesBuilt = false;
     }
     
     @Override
     protected void restore() {
     	dynamicsKnown = false; 	
+    	if (ratesBuilt) {
+    		// there are no stored rates to go back to
+    		ratesVersion = null;
+    		ratesBuilt = false;
+    	} else if (ratesChanged != null) {
+	    	for (int i = 0; i < ratesChanged.length; i++) {
+	    		if (ratesChanged[i]) {
+	    			cachedCoalescentRates[i] = storedCoalescentRates[i];
+	    			cachedMigrationRates[i] = storedMigrationRates[i];
+	    			cachedIndicators[i] = storedIndicators[i];
+	    			ratesVersion[i] = storedRatesVersion[i];
+	    			ratesChanged[i] = false;
+	    		}
+	    	}
+    	}
     }
     
     @Override
 	protected boolean requiresRecalculation(){
     	dynamicsKnown = false; 	
-    	return intervalIsDirty(0);
+    	return updateDirtyRates();
     }
     
     public boolean areDynamicsKnown(){
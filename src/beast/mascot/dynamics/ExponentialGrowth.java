@@ -0,0 +1,164 @@
+package beast.mascot.dynamics;
+
+
+import java.io.PrintStream;
+
+import beast.core.Description;
+import beast.core.Input;
+import beast.core.Input.Validate;
+import beast.core.Loggable;
+import beast.core.parameter.RealParameter;
+
+
+@Description("Effective population sizes that grow exponentially forwards in time and constant backwards migration rates. "
+		+ "The coalescent rates change continuously over time and are evaluated by the integrator, "
+		+ "which requires implementation=java in Mascot. Only the coalescent rates vary over time, the migration rates do not. "
+		+ "StructuredTreeLogger supports it without stepSize, MascotCollaps does not.")
+public class ExponentialGrowth extends Dynamics implements Loggable  {
+
+    public Input<RealParameter> NeInput = new Input<>("Ne", "input of effective population sizes at the time of the most recent sample", Validate.REQUIRED);
+    public Input<RealParameter> growthRateInput = new Input<>("growthRate", "exponential growth rate of the effective population sizes forwards in time, "
+    		+ "either one for all states or one per state", Validate.REQUIRED);
+    public Input<RealParameter> b_mInput = new Input<>("backwardsMigration", "input of backwards in time migration rates", Validate.REQUIRED);
+    public Input<Double> ploidyInput = new Input<>("ploidy", "Ploidy (copy number) for this gene, typically a whole number or half (default is 1).", 1.0);
+
+    private boolean symmetric;
+
+    @Override
+    public void initAndValidate() {
+    	super.initAndValidate();
+
+    	if (dimensionInput.get()<1)
+    		dimensionInput.set(getNrTypes());
+
+    	int n = dimensionInput.get();
+    	if (NeInput.get().getDimension() != n) {
+    		System.err.println("the dimension of " + NeInput.get().getID() + " is set to " + n);
+    		NeInput.get().setDimension(n);
+    	}
+    	if (growthRateInput.get().getDimension() != 1 && growthRateInput.get().getDimension() != n) {
+    		throw new IllegalArgumentException("the dimension of " + growthRateInput.get().getID() + " should be 1 or " + n);
+    	}
+
+    	int migDim = n * (n - 1);
+    	if (b_mInput.get().getDimension() == migDim) {
+    		symmetric = false;
+    	} else if (b_mInput.get().getDimension() == migDim / 2) {
+    		symmetric = true;
+    	} else {
+			System.err.println("Wrong number of migration elements, assume asymmetric migration:");
+    		System.err.println("the dimension of " + b_mInput.get().getID() + " is set to " + migDim);
+    		b_mInput.get().setDimension(migDim);
+    		symmetric = false;
+    	}
+    }
+
+    @Override
+    public double getInterval(int i) {
+    	return Double.POSITIVE_INFINITY;
+    }
+
+    @Override
+	public double [] getIntervals() {
+		return new double[]{Double.POSITIVE_INFINITY};
+	}
+
+    @Override
+    public boolean intervalIsDirty(int i){
+    	return NeInput.get().somethingIsDirty() || growthRateInput.get().somethingIsDirty() || b_mInput.get().somethingIsDirty();
+    }
+
+    @Override
+    public boolean isTimeVarying() {
+    	return true;
+    }
+
+    /**
+     * the coalescent rates at the time of the most recent sample
+     */
+	@Override
+    public double[] getCoalescentRate(int i){
+    	double[] coal = new double[NeInput.get().getDimension()];
+    	getCoalescentRate(i, 0.0, coal);
+    	return coal;
+    }
+
+	@Override
+	public void getCoalescentRate(int i, double time, double[] rates) {
+		RealParameter Ne = NeInput.get();
+		RealParameter growthRate = growthRateInput.get();
+		final double ploidy = ploidyInput.get();
+		final boolean perState = growthRate.getDimension() > 1;
+		for (int j = 0; j < rates.length; j++) {
+			// Ne(t) = Ne * exp(-growthRate * t) backwards in time
+			rates[j] = Math.exp(growthRate.getArrayValue(perState ? j : 0) * time) / (ploidy * Ne.getArrayValue(j));
+		}
+	}
+
+	@Override
+    public double[] getBackwardsMigration(int i){
+		int n = NeInput.get().getDimension();
+    	double[] m = new double[n * n];
+    	int c = 0;
+    	for (int a = 0; a < n; a++){
+    		for (int b = symmetric ? a + 1 : 0; b < n; b++){
+    			if (a!=b){
+    				m[a * n + b] = b_mInput.get().getArrayValue(c);
+    				if (symmetric)
+    					m[b * n + a] = b_mInput.get().getArrayValue(c);
+    				c++;
+    			}
+    		}
+    	}
+    	return m;
+    }
+
+	@Override
+	public void recalculate() {
+	}
+
+	@Override
+	public void init(PrintStream out) {
+		int n = NeInput.get().getDimension();
+		for (int i = 0 ; i < n; i++){
+			out.print(String.format("%s.%s\t", NeInput.get().getID(), getStringStateValue(i)));
+		}
+		for (int i = 0 ; i < growthRateInput.get().getDimension(); i++){
+			if (growthRateInput.get().getDimension() > 1)
+				out.print(String.format("%s.%s\t", growthRateInput.get().getID(), getStringStateValue(i)));
+			else
+				out.print(String.format("%s\t", growthRateInput.get().getID()));
+		}
+    	for (int a = 0; a < n; a++){
+    		for (int b = symmetric ? a + 1 : 0; b < n; b++){
+    			if (a!=b){
+    				if (symmetric)
+    					out.print(String.format("b_%s.%s_and_%s\t", b_mInput.get().getID(), getStringStateValue(a), getStringStateValue(b)));
+    				else
+    					out.print(String.format("b_%s.%s_to_%s\t", b_mInput.get().getID(), getStringStateValue(a), getStringStateValue(b)));
+    			}
+    		}
+    	}
+	}
+
+	@Override
+	public void log(long sample, PrintStream out) {
+		for (int i = 0 ; i < NeInput.get().getDimension(); i++){
+			out.print(NeInput.get().getArrayValue(i) + "\t");
+		}
+		for (int i = 0 ; i < growthRateInput.get().getDimension(); i++){
+			out.print(growthRateInput.get().getArrayValue(i) + "\t");
+		}
+		for (int i = 0 ; i < b_mInput.get().getDimension(); i++){
+			out.print(b_mInput.get().getArrayValue(i) + "\t");
+		}
+	}
+
+	@Override
+	public void close(PrintStream out) {
+	}
+
+    @Override
+	public int getEpochCount() {return 1;}
+
+}
@@ -111,9 +111,15 @@ public class GLM extends Dynamics implements Loggable {
     }
     
     public boolean intervalIsDirty(int i){
-		if(NeGLMInput.get().isDirty())
+		int intervalNr;
+    	if (i >= rateShiftsInput.get().getDimension()-firstlargerzero)
+    		intervalNr = rateShiftsInput.get().getDimension()-1;
+    	else
+    		intervalNr = i + firstlargerzero;
+    	
+		if(NeGLMInput.get().isDirty(intervalNr))
 			return true;
-		if(migrationGLMInput.get().isDirty())
+		if(migrationGLMInput.get().isDirty(intervalNr))
 			return true;
     	return false;
     }  
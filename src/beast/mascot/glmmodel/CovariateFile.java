@@ -0,0 +1,98 @@
+package beast.mascot.glmmodel;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+
+import beast.core.BEASTObject;
+import beast.core.Description;
+import beast.core.Input;
+import beast.core.Input.Validate;
+
+/**
+ * The file starts with four little endian 32 bit integers, the number of covariates, intervals
+ * and entries per interval and a 0 that pads the header to 16 bytes, so the mapped doubles are
+ * 8 byte aligned. The covariates follow as little endian doubles. Each covariate
+ * is stored as one block of intervals x entries values, in the same order as the values of a
+ * covariate parameter, so entry k of interval i of covariate j is value (j * intervals + i) * entries + k.
+ * This is what numpy's tofile() writes for a float64 array of shape (covariates, intervals, entries)
+ * on a little endian machine, after the header.
+ * The covariates are memory mapped, so they are not read into the heap.
+ */
+@Description("Covariates of a GLM model read from a packed binary file")
+public class CovariateFile extends BEASTObject {
+
+	public Input<String> fileNameInput = new Input<>("fileName", "name of the binary file with the covariates", Validate.REQUIRED);
+	public Input<String> namesInput = new Input<>("names", "space separated names of the covariates used for logging, "
+			+ "the default is covariate followed by its number");
+
+	final static int HEADER_SIZE = 4 * 4;
+
+	private DoubleBuffer [] covariates;
+	private String [] names;
+	private int dimension;
+
+	@Override
+	public void initAndValidate() {
+		File file = new File(fileNameInput.get());
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+			if (channel.size() < HEADER_SIZE) {
+				throw new IllegalArgumentException("covariate file " + file + " has no header");
+			}
+			IntBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE)
+					.order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+			final int count = header.get(0);
+			final int intervals = header.get(1);
+			final int entries = header.get(2);
+			dimension = intervals * entries;
+			final long size = 8L * dimension;
+			if (count <= 0 || intervals <= 0 || entries <= 0 || channel.size() != HEADER_SIZE + count * size) {
+				throw new IllegalArgumentException("covariate file " + file + " should contain " + count + " x " + intervals + " x " + entries
+						+ " doubles after the header, but has " + (channel.size() - HEADER_SIZE) + " bytes");
+			}
+			// one mapping per covariate, which keeps every mapping below the 2GB limit
+			covariates = new DoubleBuffer[count];
+			for (int j = 0; j < count; j++) {
+				covariates[j] = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE + j * size, size)
+						.order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+			}
+		} catch (IOException e) {
+			throw new IllegalArgumentException("could not read covariate file " + file + ": " + e.getMessage());
+		}
+
+		names = new String[covariates.length];
+		if (namesInput.get() != null) {
+			String [] splitted = namesInput.get().trim().split("\\s+");
+			if (splitted.length != names.length) {
+				throw new IllegalArgumentException("there are " + splitted.length + " names for " + names.length + " covariates");
+			}
+			names = splitted;
+		} else {
+			for (int j = 0; j < names.length; j++) {
+				names[j] = "covariate" + j;
+			}
+		}
+	}
+
+	public int getCovariateCount() {
+		return covariates.length;
+	}
+
+	/** number of values of every covariate, intervals x entries **/
+	public int getDimension() {
+		return dimension;
+	}
+
+	/** read only view of the values of covariate j, indexed like the values of a covariate parameter **/
+	public DoubleBuffer getCovariate(int j) {
+		return covariates[j];
+	}
+
+	public String getName(int j) {
+		return names[j];
+	}
+}
@@ -1,5 +1,6 @@
 package beast.mascot.glmmodel;
 
+import java.nio.DoubleBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -12,7 +13,8 @@ import beast.core.parameter.RealParameter;
 
 public abstract class GlmModel extends CalculationNode implements Loggable {
 	
-    public Input<List<RealParameter>> covariatesInput = new Input<>("covariates", "input of covariates", new ArrayList<>(), Validate.REQUIRED);
+    public Input<List<RealParameter>> covariatesInput = new Input<>("covariates", "input of covariates", new ArrayList<>());
+    public Input<CovariateFile> covariateFileInput = new Input<>("covariateFile", "binary file with the covariates, used instead of covariates");
     public Input<RealParameter> scalerInput = new Input<>("scaler", "input of covariates scaler", Validate.REQUIRED);    
     public Input<BooleanParameter> indicatorInput = new Input<>("indicator", "input of covariates scaler", Validate.REQUIRED);
     public Input<RealParameter> clockInput = new Input<>("clock", "clock rate of the parameter",Validate.REQUIRED);
@@ -22,37 +24,137 @@ public abstract class GlmModel extends CalculationNode implements Loggable {
     public int nrIntervals;
     public int verticalEntries;
     
+    // the values of every covariate, from the covariate parameters or the covariate file
+    private DoubleBuffer [] covariates;
+    // true if the covariates were loaded since the last store or restore
+    private boolean covariatesChanged = false;
+    
 	public abstract double[] getRates(int i);
 	
+	/** sets up the covariates from either the covariates or the covariate file **/
+	protected void initCovariates() {
+		if (covariateFileInput.get() != null) {
+			if (covariatesInput.get().size() > 0) {
+				throw new IllegalArgumentException("either covariates or covariateFile should be specified, not both");
+			}
+			covariates = new DoubleBuffer[covariateFileInput.get().getCovariateCount()];
+			for (int j = 0; j < covariates.length; j++) {
+				covariates[j] = covariateFileInput.get().getCovariate(j);
+			}
+		} else {
+			if (covariatesInput.get().size() == 0) {
+				throw new IllegalArgumentException("either covariates or covariateFile should be specified");
+			}
+			covariates = new DoubleBuffer[covariatesInput.get().size()];
+			loadCovariates();
+		}
+	}
+
+	/** copies the values of the covariate parameters, the covariate file never changes **/
+	private void loadCovariates() {
+		for (int j = 0; j < covariates.length; j++) {
+			RealParameter covariate = covariatesInput.get().get(j);
+			double [] values = new double[covariate.getDimension()];
+			for (int k = 0; k < values.length; k++) {
+				values[k] = covariate.getArrayValue(k);
+			}
+			covariates[j] = DoubleBuffer.wrap(values);
+		}
+	}
+	
+	/** 
+	 * returns true if the values of a covariate parameter changed, and takes the new values on. 
+	 * The covariates are loaded at most once between a store or restore and the next one.
+	 */
+	protected boolean updateCovariates() {
+		if (covariateFileInput.get() != null || covariatesChanged) {
+			return false;
+		}
+		for (RealParameter covariate : covariatesInput.get()) {
+			if (covariate.somethingIsDirty()) {
+				loadCovariates();
+				covariatesChanged = true;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	protected void store() {
+		covariatesChanged = false;
+		super.store();
+	}
+
+	@Override
+	protected void restore() {
+		if (covariatesChanged) {
+			loadCovariates();
+			covariatesChanged = false;
+		}
+		super.restore();
+	}
+
+	public int getCovariateCount() {
+		return covariates.length;
+	}
+
+	/** values of covariate j, in interval i these are entries verticalEntries * i to verticalEntries * (i + 1) **/
+	public DoubleBuffer getCovariate(int j) {
+		return covariates[j];
+	}
+
+	public String getCovariateID(int j) {
+		if (covariateFileInput.get() != null) {
+			return covariateFileInput.get().getName(j);
+		}
+		return covariatesInput.get().get(j).getID();
+	}
+	
 	public boolean isDirty(){
-		for (int i = 0; i < scalerInput.get().getDimension(); i++)
-			if(scalerInput.get().isDirty(i))
-					return true;
+		if (scalerInput.get().somethingIsDirty() || indicatorInput.get().somethingIsDirty() 
+				|| clockInput.get().somethingIsDirty())
+			return true;
 		
-		for (int i = 0; i < indicatorInput.get().getDimension(); i++)
-			if(indicatorInput.get().isDirty(i))
-					return true;
+		if (errorInput.get() != null && errorInput.get().somethingIsDirty())
+			return true;
 		
-		if (errorInput.get() != null)
-			for (int i = 0; i < errorInput.get().getDimension(); i++)
-				if(errorInput.get().isDirty(i))
-						return true;
+		if (constantErrorInput.get() != null && constantErrorInput.get().somethingIsDirty())
+			return true;
+
+		for (RealParameter covariate : covariatesInput.get())
+			if (covariate.somethingIsDirty())
+				return true;
 		
-		if (constantErrorInput.get() != null)
-			for (int i = 0; i < constantErrorInput.get().getDimension(); i++)
-				if(constantErrorInput.get().isDirty(i))
+		return false;
+	}
+	
+	/**
+	 * like isDirty(), but only takes the time variant error terms of interval i into account
+	 */
+	public boolean isDirty(int i){
+		if (scalerInput.get().somethingIsDirty() || indicatorInput.get().somethingIsDirty() 
+				|| clockInput.get().somethingIsDirty())
+			return true;
+		
+		if (errorInput.get() != null)
+			for (int j = verticalEntries * i; j < verticalEntries * (i+1); j++)
+				if(errorInput.get().isDirty(j))
 						return true;
-
 		
-		if (clockInput.get().isDirty(0))
+		if (constantErrorInput.get() != null && constantErrorInput.get().somethingIsDirty())
 			return true;
+
+		for (RealParameter covariate : covariatesInput.get())
+			if (covariate.somethingIsDirty())
+				return true;
 		
 		return false;
 	}
 
 	public void setNrIntervals(int i){
 		nrIntervals = i;
-		verticalEntries = covariatesInput.get().get(0).getDimension()/nrIntervals;
+		verticalEntries = covariates[0].limit()/nrIntervals;
 	}
 	
 
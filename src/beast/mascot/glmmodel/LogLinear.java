@@ -1,19 +1,29 @@
 package beast.mascot.glmmodel;
 
 import java.io.PrintStream;
+import java.nio.DoubleBuffer;
 
 import beast.core.Input;
 
 public class LogLinear extends GlmModel {
+	
+	// sum of scaler times covariate over the covariates with an indicator, for all intervals
+	private double [] logRates, storedLogRates;
+	// the scaler of every covariate that is in logRates, 0 if it is not used
+	private double [] coefficients, storedCoefficients;
+	// number of covariates added to logRates since they were last summed from scratch
+	private int updates, storedUpdates;
+	private boolean logRatesStored = false;
 
 	@Override
 	public void initAndValidate() {
+		initCovariates();
 		// set the dimension of the scalers, indicators and potentially the error term
-    	scalerInput.get().setDimension(covariatesInput.get().size());
-    	indicatorInput.get().setDimension(covariatesInput.get().size());
+    	scalerInput.get().setDimension(getCovariateCount());
+    	indicatorInput.get().setDimension(getCovariateCount());
     	
     	if (errorInput.get()!=null)
-    		errorInput.get().setDimension(covariatesInput.get().get(0).getDimension());
+    		errorInput.get().setDimension(getCovariate(0).limit());
     	
     	if (constantErrorInput.get()!=null)
     		if (constantErrorInput.get().getDimension()<1)
@@ -23,41 +33,121 @@ public class LogLinear extends GlmModel {
 
 	@Override
 	public double[] getRates(int i) {
-    	double[] logrates = new double[verticalEntries];
-    	
-    	for (int j = 0; j < logrates.length; j++)
-    		logrates[j] = 0;
-    	    	
-		for (int j = 0; j < covariatesInput.get().size(); j++){
-			if (indicatorInput.get().getArrayValue(j) > 0.0){
-				for (int k = 0; k < logrates.length; k++){
-					logrates[k] += scalerInput.get().getArrayValue(j)
-						*covariatesInput.get().get(j).getArrayValue(verticalEntries*i + k);
-				}
-			}
-		}
+		updateLogRates();
 		
-    	if (errorInput.get()!=null)
-    		for (int k = 0; k < logrates.length; k++)
-    			logrates[k] += errorInput.get().getArrayValue(verticalEntries*i + k);
-    	
-    	if (constantErrorInput.get()!=null)
-    		for (int k = 0; k < logrates.length; k++)
-    			logrates[k] += constantErrorInput.get().getArrayValue( k);
-
     	double[] rates = new double[verticalEntries];
-   	
+    	final int offset = verticalEntries*i;
+    	final double clock = clockInput.get().getArrayValue();
 		for (int k = 0; k < verticalEntries; k++){
-			rates[k] = clockInput.get().getArrayValue()*Math.exp(logrates[k]);				
+			double logRate = logRates[offset + k];
+	    	if (errorInput.get()!=null)
+	    		logRate += errorInput.get().getArrayValue(offset + k);
+	    	if (constantErrorInput.get()!=null)
+	    		logRate += constantErrorInput.get().getArrayValue(k);
+			rates[k] = clock*Math.exp(logRate);				
 		}
 
 		return rates;
 	}
+	
+	private double getCoefficient(int j) {
+		return indicatorInput.get().getArrayValue(j) > 0.0 ? scalerInput.get().getArrayValue(j) : 0.0;
+	}
+
+	/**
+	 * Brings logRates up to date with the scalers and indicators. Most moves change a 
+	 * single scaler or indicator, which only requires adding that covariate to all 
+	 * intervals. After as many such updates as there are covariates, which costs as much
+	 * as summing all of them, logRates is summed from scratch to avoid accumulating 
+	 * rounding errors.
+	 */
+	private void updateLogRates() {
+		final int covariates = getCovariateCount();
+		final int length = nrIntervals * verticalEntries;
+		if (updateCovariates() || logRates == null || logRates.length != length) {
+			recalculateLogRates();
+			return;
+		}
+		for (int j = 0; j < covariates; j++) {
+			final double coefficient = getCoefficient(j);
+			if (coefficient != coefficients[j]) {
+				if (updates >= covariates) {
+					recalculateLogRates();
+					return;
+				}
+				keepStoredLogRates();
+				final double delta = coefficient - coefficients[j];
+				final DoubleBuffer covariate = getCovariate(j);
+				for (int k = 0; k < length; k++) {
+					logRates[k] += delta * covariate.get(k);
+				}
+				coefficients[j] = coefficient;
+				updates++;
+			}
+		}
+	}
+	
+	private void recalculateLogRates() {
+		final int covariates = getCovariateCount();
+		final int length = nrIntervals * verticalEntries;
+		if (logRates == null || logRates.length != length || coefficients.length != covariates) {
+			logRates = new double[length];
+			storedLogRates = new double[length];
+			coefficients = new double[covariates];
+			storedCoefficients = new double[covariates];
+			logRatesStored = false;
+		} else {
+			keepStoredLogRates();
+		}
+		for (int k = 0; k < length; k++)
+			logRates[k] = 0;
+		for (int j = 0; j < covariates; j++){
+			coefficients[j] = getCoefficient(j);
+			if (indicatorInput.get().getArrayValue(j) > 0.0){
+				final DoubleBuffer covariate = getCovariate(j);
+				for (int k = 0; k < length; k++){
+					logRates[k] += coefficients[j] * covariate.get(k);
+				}
+			}
+		}
+		updates = 0;
+	}
+
+	/** keeps a copy of logRates as they were at the last store, before they are first changed **/
+	private void keepStoredLogRates() {
+		if (!logRatesStored) {
+			System.arraycopy(logRates, 0, storedLogRates, 0, logRates.length);
+			System.arraycopy(coefficients, 0, storedCoefficients, 0, coefficients.length);
+			storedUpdates = updates;
+			logRatesStored = true;
+		}
+	}
+	
+	@Override
+	protected void store() {
+		logRatesStored = false;
+		super.store();
+	}
+	
+	@Override
+	protected void restore() {
+		if (logRatesStored) {
+			double [] tmp = logRates;
+			logRates = storedLogRates;
+			storedLogRates = tmp;
+			tmp = coefficients;
+			coefficients = storedCoefficients;
+			storedCoefficients = tmp;
+			updates = storedUpdates;
+			logRatesStored = false;
+		}
+		super.restore();
+	}
 
 	@Override
 	public void init(PrintStream out) {
 		for (int i = 0 ; i < scalerInput.get().getDimension(); i++){
-			out.print(String.format("%sscaler.%s\t", getID(), covariatesInput.get().get(i).getID()));
+			out.print(String.format("%sscaler.%s\t", getID(), getCovariateID(i)));
 		}
 	}
 
@@ -71,6 +71,9 @@ public class StructuredTreeLogger extends Tree implements Loggable {
     public void initAndValidate() {
     	// RRB: correct?
     	tree = mascotInput.get().treeIntervalsInput.get().treeInput.get();
+    	if (mascotInput.get().dynamicsInput.get().isTimeVarying() && stepSizeInput.get() != null) {
+    		throw new IllegalArgumentException("stepSize is not supported with time varying dynamics, leave it out to use the Euler integrator");
+    	}
     	
         if (parameterInput.get().size() == 0 && clockModelInput.get() == null) {
         	someMetaDataNeedsLogging = false;
@@ -322,10 +325,8 @@ public class StructuredTreeLogger extends Tree implements Loggable {
 
 	
     private void CalculateNodeStates() throws Exception{  
-    	// newly calculate tree intervals
-    	mascotInput.get().treeIntervalsInput.get().calculateIntervals();
-    	// correctly calculate the daughter nodes at coalescent intervals in the case of
-    	// bifurcation or in case two nodes are at the same height
+    	// newly calculate tree intervals, with the daughter nodes at coalescent intervals 
+    	// correct in case two nodes are at the same height
     	mascotInput.get().treeIntervalsInput.get().swap();    	
  
     	leftID = new int[mascotInput.get().treeIntervalsInput.get().getSampleCount()];
@@ -347,9 +348,12 @@ public class StructuredTreeLogger extends Tree implements Loggable {
         
         int treeInterval = 0, ratesInterval = 0;        
         double nextEventTime = 0.0;
-		coalescentRates = mascotInput.get().dynamicsInput.get().getCoalescentRate(ratesInterval);  
-        migrationRates = mascotInput.get().dynamicsInput.get().getBackwardsMigration(ratesInterval);
-		indicators = mascotInput.get().dynamicsInput.get().getIndicators(ratesInterval);  
+        // time since the most recent sample, for time varying dynamics
+        double time = 0.0;
+        final boolean timeVarying = mascotInput.get().dynamicsInput.get().isTimeVarying();
+		coalescentRates = mascotInput.get().dynamicsInput.get().getCachedCoalescentRate(ratesInterval);  
+        migrationRates = mascotInput.get().dynamicsInput.get().getCachedBackwardsMigration(ratesInterval);
+		indicators = mascotInput.get().dynamicsInput.get().getCachedIndicators(ratesInterval);  
         // Time to the next rate shift or event on the tree
         double nextTreeEvent = mascotInput.get().treeIntervalsInput.get().getInterval(treeInterval);
         double nextRateShift = mascotInput.get().dynamicsInput.get().getInterval(ratesInterval);
@@ -414,6 +418,8 @@ public class StructuredTreeLogger extends Tree implements Loggable {
 	        			euler = new Euler2ndOrderTransitions(migrationRates, indicators, coalescentRates, nrLineages , coalescentRates.length, epsilonInput.get(), maxStepInput.get());
 	        		else
 	        			euler = new Euler2ndOrderTransitions(migrationRates, coalescentRates, nrLineages , coalescentRates.length, epsilonInput.get(), maxStepInput.get());
+	        		if (timeVarying)
+	        			euler.setTimeVaryingRates(mascotInput.get().dynamicsInput.get()::getCoalescentRate, ratesInterval, time);
 		        	
 		        	
 		        	linProbs[linProbs.length-1] = 0;
@@ -427,8 +433,16 @@ public class StructuredTreeLogger extends Tree implements Loggable {
 	        	}
 			}
         	
+        	time += nextEventTime;
+        	
         	if (nextTreeEvent <= nextRateShift){
  	        	if (mascotInput.get().treeIntervalsInput.get().getIntervalType(treeInterval) == IntervalType.COALESCENT) {
+ 	        		if (timeVarying) {
+ 	        			// the coalescent rates at the time of the event, as in Mascot
+ 	        			double[] eventCoalescentRates = new double[coalescentRates.length];
+ 	        			mascotInput.get().dynamicsInput.get().getCoalescentRate(ratesInterval, time, eventCoalescentRates);
+ 	        			coalescentRates = eventCoalescentRates;
+ 	        		}
  	        		nrLineages--;													// coalescent event reduces the number of lineages by one
 	        		normalizeLineages();									// normalize all lineages before event		
         			coalesce(treeInterval);	  				// calculate the likelihood of the coalescent event
@@ -450,9 +464,9 @@ public class StructuredTreeLogger extends Tree implements Loggable {
         		}
         	}else{
         		ratesInterval++;
-        		coalescentRates = mascotInput.get().dynamicsInput.get().getCoalescentRate(ratesInterval);  
-                migrationRates = mascotInput.get().dynamicsInput.get().getBackwardsMigration(ratesInterval);
-        		indicators = mascotInput.get().dynamicsInput.get().getIndicators(ratesInterval);  
+        		coalescentRates = mascotInput.get().dynamicsInput.get().getCachedCoalescentRate(ratesInterval);  
+                migrationRates = mascotInput.get().dynamicsInput.get().getCachedBackwardsMigration(ratesInterval);
+        		indicators = mascotInput.get().dynamicsInput.get().getCachedIndicators(ratesInterval);  
         		nextTreeEvent -= nextRateShift;
  	       		nextRateShift = mascotInput.get().dynamicsInput.get().getInterval(ratesInterval);
         	}
@@ -73,6 +73,9 @@ public class StructuredTreeLoggerCollaps extends Tree implements Loggable {
     public void initAndValidate() { 
     	// RRB: correct?
     	tree = this;
+    	if (mascotInput.get().dynamicsInput.get().isTimeVarying()) {
+    		throw new IllegalArgumentException("time varying dynamics are not supported by StructuredTreeLoggerCollaps, use StructuredTreeLogger with Mascot");
+    	}
     	
         if (parameterInput.get().size() == 0 && clockModelInput.get() == null) {
         	someMetaDataNeedsLogging = false;
@@ -323,10 +326,8 @@ public class StructuredTreeLoggerCollaps extends Tree implements Loggable {
         nrSamples = mascotInput.get().treeIntervalsInput.get().getSampleCount() + 1;    
     	leftID = new int[mascotInput.get().treeIntervalsInput.get().getSampleCount()];
     	rightID = new int[mascotInput.get().treeIntervalsInput.get().getSampleCount()];
-    	// newly calculate tree intervals
-    	mascotInput.get().treeIntervalsInput.get().calculateIntervals();
-    	// correctly calculate the daughter nodes at coalescent intervals in the case of
-    	// bifurcation or in case two nodes are at the same height
+    	// newly calculate tree intervals, with the daughter nodes at coalescent intervals 
+    	// correct in case two nodes are at the same height
     	mascotInput.get().treeIntervalsInput.get().swap();    	
         // Set up ArrayLists for the indices of active lineages and the lineage state probabilities
         activeLineages = new ArrayList<Integer>(); 
@@ -335,9 +336,9 @@ public class StructuredTreeLoggerCollaps extends Tree implements Loggable {
         linProbs = new double[0];// initialize the tree and rates interval counter
         int treeInterval = 0, ratesInterval = 0;        
         double nextEventTime = 0.0;
-		coalescentRates = mascotInput.get().dynamicsInput.get().getCoalescentRate(ratesInterval);  
-        migrationRates = mascotInput.get().dynamicsInput.get().getBackwardsMigration(ratesInterval);
-		indicators = mascotInput.get().dynamicsInput.get().getIndicators(ratesInterval);  
+		coalescentRates = mascotInput.get().dynamicsInput.get().getCachedCoalescentRate(ratesInterval);  
+        migrationRates = mascotInput.get().dynamicsInput.get().getCachedBackwardsMigration(ratesInterval);
+		indicators = mascotInput.get().dynamicsInput.get().getCachedIndicators(ratesInterval);  
 		        
         // Time to the next rate shift or event on the tree
         double nextTreeEvent = mascotInput.get().treeIntervalsInput.get().getInterval(treeInterval);
@@ -9,23 +9,34 @@ import beast.mascot.distribution.Mascot;
 
 public class Euler2ndOrder implements Euler2ndOrderBase {
 
-	double epsilon;
-	double max_step;
+	protected double epsilon;
+	protected double max_step;
 	
-	double[] migration_rates; // flattened square matrix of migration rates
-	int n, n2; // dimension of migration rate matrix and indicators matrix
-	int[] multiplicator;
+	protected double[] migration_rates; // flattened square matrix of migration rates
+	protected int n, n2; // dimension of migration rate matrix and indicators matrix
+	protected int[] multiplicator;
 	int[] indicators;
-	double[] coalescent_rates;
+	protected double[] coalescent_rates;
 	double probs;
-    int lineages;
-    int states;
-    int dimension;
-	double[] sumStates;
-	boolean hasIndicators;
+    protected int lineages;
+    protected int states;
+    protected int dimension;
+	protected double[] sumStates;
+	protected boolean hasIndicators;
 	boolean hasMultiplicator;
-	double[] tCR;
-	double[] sumDotStates;
+	protected double[] tCR;
+	protected double[] sumDotStates;
+	// sparse form of migration_rates, null if the dense loops are used
+	protected SparseMigration sparse;
+	// largest total migration rate out of a state, the stiffness of the migration part
+	double stiffness;
+	// linearly implicit solver used for stiff intervals, created on first use
+	Rosenbrock2 stiffSolver;
+
+	// use the linearly implicit solver if an interval spans more than this many migration
+	// time scales and the explicit step size is this much below the accuracy limited one
+	public final static double STIFFNESS_THRESHOLD = 100;
+	public final static double STIFFNESS_RATIO = 10;
 
 	int iterations;
 
@@ -37,9 +48,11 @@ public class Euler2ndOrder implements Euler2ndOrderBase {
         this.coalescent_rates = coalescent_rates;
         this.lineages = lineages;
         this.dimension = this.lineages*this.states;
-    	sumStates = new double[states];tCR = new double[states]; sumDotStates = new double[states];   	
+    	allocateStateArrays();
     	hasIndicators = false;
     	hasMultiplicator = false;
+    	sparse = SparseMigration.fromDense(migration_rates, states, SparseMigration.MAX_DENSITY);
+    	stiffness = maxOutRate(migration_rates, null);
     	
     	iterations=0;	
 	}
@@ -52,9 +65,10 @@ public class Euler2ndOrder implements Euler2ndOrderBase {
         this.coalescent_rates = coalescent_rates;
         this.lineages = lineages;
         this.dimension = this.lineages*this.states;
-    	sumStates = new double[states];tCR = new double[states];
+    	allocateStateArrays();
     	hasIndicators = true;
     	hasMultiplicator = false;
+    	stiffness = maxOutRate(migration_rates, indicators);
     	
     	iterations=0;
 	}
@@ -72,12 +86,38 @@ public class Euler2ndOrder implements Euler2ndOrderBase {
 		this.max_step = max_step;
 		this.epsilon = epsilon;
         this.states = states;
+        allocateStateArrays();
+	}
+
+	/** per state work arrays, reused by all intervals **/
+	private void allocateStateArrays() {
+		if (sumStates == null || sumStates.length != states) {
+			sumStates = new double[states];
+			tCR = new double[states];
+			sumDotStates = new double[states];
+		}
+		if (outRate == null || outRate.length != states) {
+			outRate = new double[states];
+		}
 	}
 	
 	public double[][] coalescentRates; 
 	double[][] migrationRates;
 	int[][] indicators_;
 	double[] nextRateShift;
+	SparseMigration[] sparseMigrations;
+	double[] stiffnesses;
+	// the rates the sparse migrations and stiffnesses were set up for
+	double[][] setUpMigrationRates;
+	int[][] setUpIndicators;
+	
+	// coalescent rates that change within rates intervals, null if they are constant
+	TimeVaryingRates timeVaryingRates;
+	double[] timeVaryingCoalescentRates;
+	// current time and rates interval, to evaluate the time varying rates
+	double time;
+	int ratesInterval;
+	double[] outRate;
 	
 	@Override
 	public void setUpDynamics(double[][] coalescentRates, double[][] migrationRates, int[][] indicators,
@@ -86,6 +126,27 @@ public class Euler2ndOrder implements Euler2ndOrderBase {
 		this.migrationRates = migrationRates;
 		this.indicators_ = indicators;
 		this.nextRateShift = nextRateShift;
+		if (stiffnesses == null || stiffnesses.length != migrationRates.length) {
+			sparseMigrations = new SparseMigration[migrationRates.length];
+			stiffnesses = new double[migrationRates.length];
+			setUpMigrationRates = new double[migrationRates.length][];
+			setUpIndicators = new int[migrationRates.length][];
+		}
+		for (int i = 0; i < migrationRates.length; i++) {
+			// rates arrays are not changed once set up, so epochs with the same arrays are skipped
+			if (setUpMigrationRates[i] == migrationRates[i] && setUpIndicators[i] == indicators[i]
+					&& migrationRates[i] != null) {
+				continue;
+			}
+			stiffnesses[i] = maxOutRate(migrationRates[i], indicators[i]);
+			if (indicators[i] == null) {
+				sparseMigrations[i] = SparseMigration.fromDense(migrationRates[i], states, SparseMigration.MAX_DENSITY);
+			} else {
+				sparseMigrations[i] = null;
+			}
+			setUpMigrationRates[i] = migrationRates[i];
+			setUpIndicators[i] = indicators[i];
+		}
 	}
 
 	public Euler2ndOrder(double[] migration_rates, double[] coalescent_rates, int lineages, int states, double epsilon, double max_step) {
@@ -115,7 +176,7 @@ public class Euler2ndOrder implements Euler2ndOrderBase {
         this.lineages = lineages;
         this.states = states;
         this.dimension = this.lineages*this.states;
-    	sumStates = new double[states];tCR = new double[states];
+    	sumStates = new double[states];tCR = new double[states]; sumDotStates = new double[states];
     	hasIndicators = true;
     	hasMultiplicator = false;
     	
@@ -160,6 +221,89 @@ public class Euler2ndOrder implements Euler2ndOrderBase {
 
 	@Override
 	public void initAndcalculateValues(int ratesInterval, int lineages, double duration, double[] p, int length) {
+		initInterval(ratesInterval, lineages);
+		calculateValues(duration, p, length);
+	}
+
+	/** as initAndcalculateValues, but row i of p stands for multiplicator[i] identical lineages **/
+	public void initAndcalculateValues(int ratesInterval, int lineages, int[] multiplicator, double duration, double[] p, int length) {
+		initInterval(ratesInterval, lineages);
+		this.multiplicator = multiplicator;
+		hasMultiplicator = true;
+		calculateValues(duration, p, length);
+	}
+
+	@Override
+	public boolean supportsMultiplicator() {
+		return true;
+	}
+
+	@Override
+	public void setTimeVaryingRates(TimeVaryingRates rates) {
+		timeVaryingRates = rates;
+	}
+
+	@Override
+	public void setTime(double time) {
+		this.time = time;
+	}
+
+	@Override
+	public boolean supportsTimeVaryingRates() {
+		return true;
+	}
+
+	/**
+	 * Integrates with coalescent rates that change over the interval. Every step uses the rates 
+	 * halfway through it, which keeps the step second order. The length of a step is estimated 
+	 * by the accuracy limited step of the step before it, and updateP is not allowed to take a 
+	 * longer one. Only the first step of an interval estimates it from an extra pass with the 
+	 * rates at its start, so the interval does not depend on the intervals integrated before it.
+	 */
+	void calculateTimeVaryingValues(double duration, double[] p, double[] pDot, double[] pDotDot, double[] pDotDotDot, int length, int updateLength) {
+		if (timeVaryingCoalescentRates == null || timeVaryingCoalescentRates.length != states) {
+			timeVaryingCoalescentRates = new double[states];
+		}
+		coalescent_rates = timeVaryingCoalescentRates;
+		timeVaryingRates.getCoalescentRates(ratesInterval, time, timeVaryingCoalescentRates);
+		computeAllDerivatives(p, pDot, pDotDot, pDotDotDot, length);
+		double estimate = FastMath.cbrt(epsilon*6/maxAbs(pDotDotDot, updateLength));
+
+		while (duration > 0) {
+			iterations++;
+			final double step = FastMath.min(estimate, FastMath.min(duration, max_step));
+			timeVaryingRates.getCoalescentRates(ratesInterval, time + 0.5 * step, timeVaryingCoalescentRates);
+			computeAllDerivatives(p, pDot, pDotDot, pDotDotDot, length);
+			final double taken = step - updateP(step, p, pDot, pDotDot, pDotDotDot, updateLength);
+			time += taken;
+			duration -= taken;
+			estimate = FastMath.cbrt(epsilon*6/maxAbs(pDotDotDot, updateLength));
+
+			if (iterations > 10000) {
+				System.err.println("too many iterations, return negative infinity");
+				p[length-1] = Double.NEGATIVE_INFINITY;
+			}
+			if (p[length-1] == Double.NEGATIVE_INFINITY) {
+				break;
+			}
+		}
+	}
+
+	private void computeAllDerivatives(double[] p, double[] pDot, double[] pDotDot, double[] pDotDotDot, int length) {
+		clearArray(pDot, length);
+		// the second derivative of logP is summed into, so it starts from zero at every step
+		pDotDot[length - 1] = 0.0;
+		if (hasMultiplicator) {
+			computeDerivativesWithMultiplicator(p, pDot, pDotDot, pDotDotDot, length);
+			computeSecondDerivateWithMultiplicator(p, pDot, pDotDot, length);
+		} else {
+			computeDerivatives(p, pDot, pDotDot, pDotDotDot, length);
+			computeSecondDerivate(p, pDot, pDotDot, length);
+		}
+		approximateThirdDerivate(pDotDot, pDotDotDot, length);
+	}
+
+	void initInterval(int ratesInterval, int lineages) {
 		double nextRateShiftTime = ratesInterval == nextRateShift.length ? Double.POSITIVE_INFINITY : nextRateShift[ratesInterval];
 		if (ratesInterval >= nextRateShift.length) {
 			ratesInterval = nextRateShift.length - 1;
@@ -167,6 +311,7 @@ public class Euler2ndOrder implements Euler2ndOrderBase {
 		migration_rates = migrationRates[ratesInterval];
 		coalescent_rates = coalescentRates[ratesInterval];
 		indicators = indicators_[ratesInterval];
+		this.ratesInterval = ratesInterval;
 
     	iterations = 0;	
 		n = (int)(Math.sqrt(migration_rates.length) + 0.5);        
@@ -174,16 +319,63 @@ public class Euler2ndOrder implements Euler2ndOrderBase {
         this.dimension = this.lineages * this.states;
     	hasIndicators = (indicators!=null);
     	hasMultiplicator = false;
-        
-    	sumStates = new double[states];
-    	tCR = new double[states]; 
-    	sumDotStates = new double[states];   	
-
-		calculateValues(duration, p, length);
+    	sparse = sparseMigrations[ratesInterval];
+    	stiffness = stiffnesses[ratesInterval];
 	}
 	
+	/** largest total rate out of a state, using the same indicator pairs as computeDerivatives **/
+	double maxOutRate(double[] migration_rates, int[] indicators) {
+		final int n = (int)(Math.sqrt(migration_rates.length) + 0.5);
+		final double [] out = outRate;
+		Arrays.fill(out, 0.0);
+		if (indicators != null) {
+			final int n2 = indicators.length / 2;
+			for (int j = 0; j < n2; j++) {
+				out[indicators[j * 2 + 0]] += migration_rates[indicators[j * 2 + 0] * n + indicators[j * 2 + 1]];
+			}
+		} else {
+			for (int k = 0; k < states; k++) {
+				for (int j = 0; j < states; j++) {
+					if (j != k) {
+						out[k] += migration_rates[k * n + j];
+					}
+				}
+			}
+		}
+		double max = 0;
+		for (double o : out) {
+			max = FastMath.max(max, o);
+		}
+		return max;
+	}
+
+	/**
+	 * An interval is stiff if the explicit step size is limited by the fastest migration
+	 * time scale rather than by the coalescent dynamics, over many of those time scales.
+	 */
+	protected boolean isStiff(double duration) {
+		if (stiffness * duration < STIFFNESS_THRESHOLD) {
+			return false;
+		}
+		double maxCoal = 0;
+		for (int j = 0; j < states; j++) {
+			maxCoal = FastMath.max(maxCoal, coalescent_rates[j]);
+		}
+		// ratio of the accuracy limited step size to the stability limited one of the explicit scheme
+		return stiffness * FastMath.cbrt(6 * epsilon) > STIFFNESS_RATIO * maxCoal * FastMath.max(1, lineages - 1);
+	}
+
 	@Override
 	public void calculateValues(double duration, double[] p, int length){
+		// the stiff solver takes the rates to be constant over the interval
+		if (timeVaryingRates == null && isStiff(duration)) {
+			if (stiffSolver == null) {
+				stiffSolver = new Rosenbrock2(this);
+			}
+			iterations = 0;
+			stiffSolver.calculateValues(duration, p, length);
+			return;
+		}
 		double[] pDot = linProbs_tmpdt; 
 		double[] pDotDot = linProbs_tmpddt; 
 		double[] pDotDotDot = linProbs_tmpdddt;
@@ -206,6 +398,11 @@ public class Euler2ndOrder implements Euler2ndOrderBase {
 		clearArray(pDotDot, length);
 		clearArray(pDotDotDot, length);
 
+		if (timeVaryingRates != null) {
+			calculateTimeVaryingValues(duration, p, pDot, pDotDot, pDotDotDot, length, length - 1);
+			return;
+		}
+
 		if (hasMultiplicator) {
 			while (duration > 0){
 		    	iterations++;
@@ -249,7 +446,7 @@ public class Euler2ndOrder implements Euler2ndOrderBase {
 		}		
 	}
 
-	double updateP (double duration, double[] p, double[] pDot, double[] pDotDot, double[] pDotDotDot, int length){
+	protected double updateP(double duration, double[] p, double[] pDot, double[] pDotDot, double[] pDotDotDot, int length){
 		final double max_dotdotdot = maxAbs(pDotDotDot, length);	
 		
 		//double timeStep = FastMath.min(FastMath.pow(epsilon*6/max_dotdotdot, C), FastMath.min(duration, max_step));
@@ -300,7 +497,7 @@ public class Euler2ndOrder implements Euler2ndOrderBase {
 	}
 
 	    
-	void normalise(final int i, final double[] p) {
+	protected void normalise(final int i, final double[] p) {
 		final int k = states * i;
 		double linSum = 0;
 		
@@ -312,7 +509,7 @@ public class Euler2ndOrder implements Euler2ndOrderBase {
 			x = p[u++];
 			linSum += x;
 			if (x < 0.0) {
-				p[p.length-1] = Double.NEGATIVE_INFINITY; 
+				p[dimension] = Double.NEGATIVE_INFINITY; 
 				return;
 			} // XXX
 			
@@ -372,8 +569,8 @@ public class Euler2ndOrder implements Euler2ndOrderBase {
     	// Calculate the probability of a lineage changing states
     	if (hasIndicators){
 			for (j = 0; j < indicators.length/2; j++){
-				int source = indicators[j * n2 + 0];
-				int sink = indicators[j * n2 + 1];
+				int source = indicators[j * 2 + 0];
+				int sink = indicators[j * 2 + 1];
 				double mrate = migration_rates[source * n + sink];
 				k = source;
 				int m = sink;
@@ -385,6 +582,8 @@ public class Euler2ndOrder implements Euler2ndOrderBase {
 		    		m += states;
 		    	}
 	    	}    
+    	} else if (sparse != null) {
+    		sparse.migrate(p, pDot, lineages);
     	} else {
     		int u = 0 , v; double pj;
         	for (int i = 0; i < lineages; i++) {
@@ -450,8 +649,8 @@ public class Euler2ndOrder implements Euler2ndOrderBase {
 		// Calculate the probability of a lineage changing states
 		if (hasIndicators){
 			for (j = 0; j < indicators.length/2; j++){
-				int source = indicators[j * n2 + 0];
-				int sink = indicators[j * n2 + 1];
+				int source = indicators[j * 2 + 0];
+				int sink = indicators[j * 2 + 1];
 				double mrate = migration_rates[source * n + sink];
 		    	for (int i = 0; i<lineages; i++){
 					migrates = pDot[states*i+source]*mrate;
@@ -459,6 +658,8 @@ public class Euler2ndOrder implements Euler2ndOrderBase {
 					pDotDot[states*i+source] -= migrates;  			
 		    	}
 	    	}    
+		} else if (sparse != null) {
+			sparse.migrate(pDot, pDotDot, lineages);
 		}else{
 			int u = 0;
         	for (int i = 0; i<lineages; i++){
@@ -494,8 +695,8 @@ public class Euler2ndOrder implements Euler2ndOrderBase {
 		// Calculate the probability of a lineage changing states
     	if (hasIndicators){
 			for (int j = 0; j < indicators.length/2; j++){
-				int source = indicators[j * n2 + 0];
-				int sink = indicators[j * n2 + 1];
+				int source = indicators[j * 2 + 0];
+				int sink = indicators[j * 2 + 1];
 				double mrate = migration_rates[source * n + sink];
 		    	for (int i = 0; i<lineages; i++){
 					migrates = pDotDot[states * i + source] * mrate;
@@ -503,6 +704,8 @@ public class Euler2ndOrder implements Euler2ndOrderBase {
 					pDotDotDot[states * i + source] -= migrates;  			
 		    	}
 	    	}    
+    	} else if (sparse != null) {
+    		sparse.migrate(pDotDot, pDotDotDot, lineages);
     	} else {
     		int k;
 			for (int j = 0; j < states; j++){
@@ -562,8 +765,8 @@ public class Euler2ndOrder implements Euler2ndOrderBase {
     	// Calculate the probability of a lineage changing states
     	if (hasIndicators){
 			for (j = 0; j < indicators.length/2; j++){
-				int source = indicators[j * n2 + 0];
-				int sink = indicators[j * n2 + 1];
+				int source = indicators[j * 2 + 0];
+				int sink = indicators[j * 2 + 1];
 				double mrate = migration_rates[source * n + sink];
 		    	for (int i = 0; i<lineages; i++){
 					migrates = p[states*i+source]*mrate;
@@ -571,6 +774,8 @@ public class Euler2ndOrder implements Euler2ndOrderBase {
 					pDot[states*i+source] -= migrates;  			
 		    	}
 	    	}    
+    	} else if (sparse != null) {
+    		sparse.migrate(p, pDot, lineages);
     	}else{
     		double pj;
         	for (int i = 0; i<lineages; i++){
@@ -630,8 +835,8 @@ public class Euler2ndOrder implements Euler2ndOrderBase {
 		// Calculate the probability of a lineage changing states
 		if (hasIndicators){
 			for (j = 0; j < indicators.length/2; j++){
-				int source = indicators[j * n2 + 0];
-				int sink = indicators[j * n2 + 1];
+				int source = indicators[j * 2 + 0];
+				int sink = indicators[j * 2 + 1];
 				double mrate = migration_rates[source * n + sink];
 		    	for (int i = 0; i<lineages; i++){
 					migrates = pDot[states*i+source]*mrate;
@@ -639,6 +844,8 @@ public class Euler2ndOrder implements Euler2ndOrderBase {
 					pDotDot[states*i+source] -= migrates;  			
 		    	}
 	    	}    
+		} else if (sparse != null) {
+			sparse.migrate(pDot, pDotDot, lineages);
 		}else{
 			double pj;
         	for (int i = 0; i<lineages; i++){
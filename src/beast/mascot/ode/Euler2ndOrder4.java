@@ -8,7 +8,7 @@ import org.apache.commons.math3.util.FastMath;
 import beast.mascot.distribution.Mascot;
 
 public class Euler2ndOrder4 extends Euler2ndOrder {
-	double updateP (double duration, double[] p, double[] pDot, double[] pDotDot, double[] pDotDotDot, int length){
+	protected double updateP(double duration, double[] p, double[] pDot, double[] pDotDot, double[] pDotDotDot, int length){
 		final double max_dotdotdot = maxAbs(pDotDotDot, length);	
 		
 		//double timeStep = FastMath.min(FastMath.pow(epsilon*6/max_dotdotdot, C), FastMath.min(duration, max_step));
@@ -58,7 +58,7 @@ public class Euler2ndOrder4 extends Euler2ndOrder {
 	}
 
 	    
-	void normalise(final int i, final double[] p) {
+	protected void normalise(final int i, final double[] p) {
 		final int k = states * i;
 		double linSum = 0;
 		
@@ -70,7 +70,7 @@ public class Euler2ndOrder4 extends Euler2ndOrder {
 			x = p[u++];
 			linSum += x;
 			if (x < 0.0) {
-				p[p.length-1] = Double.NEGATIVE_INFINITY; 
+				p[dimension] = Double.NEGATIVE_INFINITY; 
 				return;
 			} // XXX
 			
@@ -79,7 +79,7 @@ public class Euler2ndOrder4 extends Euler2ndOrder {
 			x = p[u++];
 			linSum += x;
 			if (x < 0.0) {
-				p[p.length-1] = Double.NEGATIVE_INFINITY; 
+				p[dimension] = Double.NEGATIVE_INFINITY; 
 				return;
 			} // XXX
 			
@@ -88,7 +88,7 @@ public class Euler2ndOrder4 extends Euler2ndOrder {
 			x = p[u++];
 			linSum += x;
 			if (x < 0.0) {
-				p[p.length-1] = Double.NEGATIVE_INFINITY; 
+				p[dimension] = Double.NEGATIVE_INFINITY; 
 				return;
 			} // XXX
 			
@@ -97,7 +97,7 @@ public class Euler2ndOrder4 extends Euler2ndOrder {
 			x = p[u++];
 			linSum += x;
 			if (x < 0.0) {
-				p[p.length-1] = Double.NEGATIVE_INFINITY; 
+				p[dimension] = Double.NEGATIVE_INFINITY; 
 				return;
 			} // XXX
 			
@@ -213,8 +213,8 @@ j++;
     	// Calculate the probability of a lineage changing states
     	if (hasIndicators){
 			for (j = 0; j < indicators.length/2; j++){
-				int source = indicators[j * n2 + 0];
-				int sink = indicators[j * n2 + 1];
+				int source = indicators[j * 2 + 0];
+				int sink = indicators[j * 2 + 1];
 				double mrate = migration_rates[source * n + sink];
 				k = source;
 				int m = sink;
@@ -226,6 +226,8 @@ j++;
 		    		m += states;
 		    	}
 	    	}    
+    	} else if (sparse != null) {
+    		sparse.migrate(p, pDot, lineages);
     	} else {
     		int u = 0 , v; double pj;
         	for (int i = 0; i < lineages; i++) {
@@ -379,8 +381,8 @@ j++;
 		// Calculate the probability of a lineage changing states
 		if (hasIndicators){
 			for (j = 0; j < indicators.length/2; j++){
-				int source = indicators[j * n2 + 0];
-				int sink = indicators[j * n2 + 1];
+				int source = indicators[j * 2 + 0];
+				int sink = indicators[j * 2 + 1];
 				double mrate = migration_rates[source * n + sink];
 		    	for (int i = 0; i<lineages; i++){
 					migrates = pDot[states*i+source]*mrate;
@@ -388,6 +390,8 @@ j++;
 					pDotDot[states*i+source] -= migrates;  			
 		    	}
 	    	}    
+		}else if (sparse != null){
+			sparse.migrate(pDot, pDotDot, lineages);
 		}else{
 			int u = 0;
         	for (int i = 0; i<lineages; i++){
@@ -469,8 +473,8 @@ j++;
 		// Calculate the probability of a lineage changing states
     	if (hasIndicators){
 			for (int j = 0; j < indicators.length/2; j++){
-				int source = indicators[j * n2 + 0];
-				int sink = indicators[j * n2 + 1];
+				int source = indicators[j * 2 + 0];
+				int sink = indicators[j * 2 + 1];
 				double mrate = migration_rates[source * n + sink];
 		    	for (int i = 0; i<lineages; i++){
 					migrates = pDotDot[states * i + source] * mrate;
@@ -478,6 +482,8 @@ j++;
 					pDotDotDot[states * i + source] -= migrates;  			
 		    	}
 	    	}    
+    	} else if (sparse != null) {
+    		sparse.migrate(pDotDot, pDotDotDot, lineages);
     	} else {
     		int k;
 			for (int j = 0; j < states; j++){
@@ -593,8 +599,8 @@ j++;
     	// Calculate the probability of a lineage changing states
     	if (hasIndicators){
 			for (j = 0; j < indicators.length/2; j++){
-				int source = indicators[j * n2 + 0];
-				int sink = indicators[j * n2 + 1];
+				int source = indicators[j * 2 + 0];
+				int sink = indicators[j * 2 + 1];
 				double mrate = migration_rates[source * n + sink];
 		    	for (int i = 0; i<lineages; i++){
 					migrates = p[states*i+source]*mrate;
@@ -602,6 +608,8 @@ j++;
 					pDot[states*i+source] -= migrates;  			
 		    	}
 	    	}    
+    	}else if (sparse != null){
+    		sparse.migrate(p, pDot, lineages);
     	}else{
     		double pj;
         	for (int i = 0; i<lineages; i++){
@@ -727,8 +735,8 @@ j++;
 		// Calculate the probability of a lineage changing states
 		if (hasIndicators){
 			for (j = 0; j < indicators.length/2; j++){
-				int source = indicators[j * n2 + 0];
-				int sink = indicators[j * n2 + 1];
+				int source = indicators[j * 2 + 0];
+				int sink = indicators[j * 2 + 1];
 				double mrate = migration_rates[source * n + sink];
 		    	for (int i = 0; i<lineages; i++){
 					migrates = pDot[states*i+source]*mrate;
@@ -736,6 +744,8 @@ j++;
 					pDotDot[states*i+source] -= migrates;  			
 		    	}
 	    	}    
+		}else if (sparse != null){
+			sparse.migrate(pDot, pDotDot, lineages);
 		}else{
 			double pj;
         	for (int i = 0; i<lineages; i++){
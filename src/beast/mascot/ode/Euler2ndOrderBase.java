@@ -13,6 +13,23 @@ public interface Euler2ndOrderBase {
 	}
 
 	public void initAndcalculateValues(int ratesInterval, int lineages, double duration, double[] p, int length);
+
+	/** true if this is an Euler2ndOrder that can integrate rows standing for several identical lineages **/
+	default public boolean supportsMultiplicator() {
+		return false;
+	}
+
+	default public boolean supportsTimeVaryingRates() {
+		return false;
+	}
+
+	/** makes the integrator take the coalescent rates from the given rates at every step, if it supportsTimeVaryingRates **/
+	default public void setTimeVaryingRates(TimeVaryingRates rates) {
+	}
+
+	/** time at the start of the next integration, used with time varying rates **/
+	default public void setTime(double time) {
+	}
 	
 	public void setUpDynamics(double[][] coalescentRates, double[][] migrationRates, int[][] indicators,
 			double[] nextRateShift);
@@ -0,0 +1,453 @@
+package beast.mascot.ode;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+import beast.core.util.Log;
+
+/**
+ * Creates Euler2ndOrder kernels for an arbitrary number of states. The loops over
+ * states are unrolled the same way as in Euler2ndOrder2 ... Euler2ndOrder10, but the
+ * source is generated and compiled when the kernel is first requested. If no java
+ * compiler is available at runtime, the generic Euler2ndOrder is used instead.
+ **/
+public class Euler2ndOrderFactory {
+
+	final static String PACKAGE = "beast.mascot.ode";
+
+	// beyond this, the unrolled methods exceed the 8000 byte limit of the JIT compiler
+	final static int MAX_STATES = 36;
+
+	static Map<Integer, Class<? extends Euler2ndOrder>> kernels = new HashMap<>();
+
+	public static Euler2ndOrder newInstance(int states) {
+		Class<? extends Euler2ndOrder> kernel = getKernel(states);
+		if (kernel != null) {
+			try {
+				return kernel.getDeclaredConstructor().newInstance();
+			} catch (ReflectiveOperationException e) {
+				Log.warning("Could not instantiate " + kernel.getSimpleName() + ": " + e.getMessage());
+			}
+		}
+		return new Euler2ndOrder();
+	}
+
+	synchronized static Class<? extends Euler2ndOrder> getKernel(int states) {
+		if (kernels.containsKey(states)) {
+			return kernels.get(states);
+		}
+		Class<? extends Euler2ndOrder> kernel = null;
+		if (states >= 2 && states <= MAX_STATES) {
+			try {
+				kernel = compile(className(states), generateSource(states));
+			} catch (Exception e) {
+				Log.warning("Could not generate Euler2ndOrder kernel for " + states + " states: " + e.getMessage());
+			}
+		}
+		kernels.put(states, kernel);
+		return kernel;
+	}
+
+	/** true if the kernel for this many states is generated, false if the generic loops are used **/
+	public static boolean isGenerated(Euler2ndOrderBase euler) {
+		return euler.getClass().getSimpleName().startsWith("Euler2ndOrderGenerated");
+	}
+
+	public static String className(int states) {
+		return "Euler2ndOrderGenerated" + states;
+	}
+
+	static Class<? extends Euler2ndOrder> compile(final String name, final String source) throws ClassNotFoundException {
+		JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+		if (compiler == null) {
+			Log.warning("No java compiler available for generating Euler2ndOrder kernels");
+			return null;
+		}
+
+		final Map<String, ByteArrayOutputStream> classBytes = new HashMap<>();
+		StandardJavaFileManager standardFileManager = compiler.getStandardFileManager(null, null, null);
+		JavaFileManager fileManager = new ForwardingJavaFileManager<StandardJavaFileManager>(standardFileManager) {
+			@Override
+			public JavaFileObject getJavaFileForOutput(Location location, final String className,
+					JavaFileObject.Kind kind, FileObject sibling) {
+				return new SimpleJavaFileObject(URI.create("bytes:///" + className.replace('.', '/') + kind.extension), kind) {
+					@Override
+					public OutputStream openOutputStream() {
+						ByteArrayOutputStream out = new ByteArrayOutputStream();
+						classBytes.put(className, out);
+						return out;
+					}
+				};
+			}
+		};
+
+		JavaFileObject file = new SimpleJavaFileObject(URI.create("string:///" + PACKAGE.replace('.', '/') + "/" + name
+				+ JavaFileObject.Kind.SOURCE.extension), JavaFileObject.Kind.SOURCE) {
+			@Override
+			public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+				return source;
+			}
+		};
+
+		List<String> options = Arrays.asList("-classpath", getClassPath(), "-nowarn", "-g:none");
+		StringWriter errors = new StringWriter();
+		if (!compiler.getTask(errors, fileManager, null, options, null, Arrays.asList(file)).call()) {
+			Log.warning("Compiling " + name + " failed:\n" + errors);
+			return null;
+		}
+
+		// the kernel only touches public and protected members of Euler2ndOrder,
+		// so it can live in its own class loader
+		ClassLoader loader = new ClassLoader(Euler2ndOrder.class.getClassLoader()) {
+			@Override
+			protected Class<?> findClass(String className) throws ClassNotFoundException {
+				ByteArrayOutputStream out = classBytes.get(className);
+				if (out == null) {
+					return super.findClass(className);
+				}
+				byte[] b = out.toByteArray();
+				return defineClass(className, b, 0, b.length);
+			}
+		};
+		return loader.loadClass(PACKAGE + "." + name).asSubclass(Euler2ndOrder.class);
+	}
+
+	/** package classes are not necessarily on java.class.path when loaded by the BEAST package manager **/
+	static String getClassPath() {
+		String classPath = System.getProperty("java.class.path");
+		try {
+			File location = new File(Euler2ndOrder.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+			classPath = location.getPath() + File.pathSeparator + classPath;
+		} catch (Exception e) {
+			// stick with java.class.path
+		}
+		return classPath;
+	}
+
+	public static String generateSource(int states) {
+		StringBuilder b = new StringBuilder();
+		b.append("package " + PACKAGE + ";\n\n");
+		b.append("import org.apache.commons.math3.util.FastMath;\n\n");
+		b.append("public class " + className(states) + " extends Euler2ndOrder {\n\n");
+		generateUpdateP(b, states);
+		generateNormalise(b, states);
+		generateComputeDerivatives(b, states);
+		generateComputeSecondDerivate(b, states);
+		generateApproximateThirdDerivate(b, states);
+		generateComputeDerivativesWithMultiplicator(b, states);
+		generateComputeSecondDerivateWithMultiplicator(b, states);
+		b.append("}\n");
+		return b.toString();
+	}
+
+	static String at(String base, int offset) {
+		return offset == 0 ? base : base + " + " + offset;
+	}
+
+	/** the step size is chosen as in Euler2ndOrder.updateP, the update and normalisation are done per lineage **/
+	static void generateUpdateP(StringBuilder b, int states) {
+		b.append("\t@Override\n");
+		b.append("\tprotected double updateP(double duration, double[] p, double[] pDot, double[] pDotDot, double[] pDotDotDot, int length) {\n");
+		b.append("\t\tdouble max_dotdotdot = 0.0;\n");
+		b.append("\t\tfor (int i = 0; i < length; i++) {\n");
+		b.append("\t\t\tmax_dotdotdot = FastMath.max(max_dotdotdot, FastMath.abs(pDotDotDot[i]));\n");
+		b.append("\t\t}\n");
+		b.append("\t\tdouble timeStep = FastMath.min(FastMath.cbrt(epsilon*6/max_dotdotdot), FastMath.min(duration, max_step));\n");
+		b.append("\t\tdouble timeStepSquare = timeStep * timeStep * 0.5;\n");
+		b.append("\t\tfor (int i = 0; i < length; i++) {\n");
+		b.append("\t\t\tdouble new_val = p[i] + pDot[i] * timeStep + pDotDot[i] * timeStepSquare;\n");
+		b.append("\t\t\tdouble diff = FastMath.abs(new_val - p[i]);\n");
+		b.append("\t\t\tint its = 0;\n");
+		b.append("\t\t\twhile (new_val > 1 || new_val < 0 || diff > 0.2) {\n");
+		b.append("\t\t\t\ttimeStep *= 0.9;\n");
+		b.append("\t\t\t\ttimeStepSquare = timeStep * timeStep * 0.5;\n");
+		b.append("\t\t\t\tnew_val = p[i] + pDot[i] * timeStep + pDotDot[i] * timeStepSquare;\n");
+		b.append("\t\t\t\tdiff = FastMath.abs(new_val - p[i]);\n");
+		b.append("\t\t\t\tits++;\n");
+		b.append("\t\t\t\tif (its > 10000) {\n");
+		b.append("\t\t\t\t\tp[length-1] = Double.NEGATIVE_INFINITY;\n");
+		b.append("\t\t\t\t\tbreak;\n");
+		b.append("\t\t\t\t}\n");
+		b.append("\t\t\t}\n");
+		b.append("\t\t}\n");
+		b.append("\t\tif (p[length-1] == Double.NEGATIVE_INFINITY) {\n");
+		b.append("\t\t\treturn 0.0;\n");
+		b.append("\t\t}\n");
+		// the log probability first, normalising a lineage with a negative entry sets it to -infinity
+		b.append("\t\tfor (int i = " + states + " * lineages; i <= length; i++) {\n");
+		b.append("\t\t\tp[i] += pDot[i] * timeStep + pDotDot[i] * timeStepSquare;\n");
+		b.append("\t\t}\n");
+		b.append("\t\tint u = 0;\n");
+		b.append("\t\tfor (int i = 0; i < lineages; i++) {\n");
+		StringBuilder negative = new StringBuilder();
+		StringBuilder sum = new StringBuilder();
+		for (int j = 0; j < states; j++) {
+			b.append("\t\t\tfinal double x" + j + " = p[" + at("u", j) + "] + (pDot[" + at("u", j) + "] * timeStep + pDotDot[" + at("u", j) + "] * timeStepSquare);\n");
+			negative.append((j > 0 ? " || " : "") + "x" + j + " < 0.0");
+			sum.append((j > 0 ? " + " : "") + "x" + j);
+		}
+		b.append("\t\t\tif (" + negative + ") {\n");
+		for (int j = 0; j < states; j++) {
+			b.append("\t\t\t\tp[" + at("u", j) + "] = x" + j + ";\n");
+		}
+		b.append("\t\t\t\tp[dimension] = Double.NEGATIVE_INFINITY;\n");
+		b.append("\t\t\t} else {\n");
+		b.append("\t\t\t\tfinal double linSum = " + sum + ";\n");
+		for (int j = 0; j < states; j++) {
+			b.append("\t\t\t\tp[" + at("u", j) + "] = x" + j + " / linSum;\n");
+		}
+		b.append("\t\t\t}\n");
+		b.append("\t\t\tu += " + states + ";\n");
+		b.append("\t\t}\n");
+		b.append("\t\treturn duration - timeStep;\n");
+		b.append("\t}\n\n");
+	}
+
+	static void generateNormalise(StringBuilder b, int states) {
+		b.append("\t@Override\n");
+		b.append("\tprotected void normalise(final int i, final double[] p) {\n");
+		b.append("\t\tfinal int k = " + states + " * i;\n");
+		b.append("\t\tdouble linSum = 0;\n");
+		b.append("\t\tdouble x;\n");
+		for (int j = 0; j < states; j++) {
+			b.append("\t\tx = p[" + at("k", j) + "];\n");
+			b.append("\t\tlinSum += x;\n");
+			b.append("\t\tif (x < 0.0) {\n");
+			b.append("\t\t\tp[dimension] = Double.NEGATIVE_INFINITY;\n");
+			b.append("\t\t\treturn;\n");
+			b.append("\t\t}\n");
+		}
+		for (int j = 0; j < states; j++) {
+			b.append("\t\tp[" + at("k", j) + "] /= linSum;\n");
+		}
+		b.append("\t}\n\n");
+	}
+
+	static void generateSumStates(StringBuilder b, int states, String sum, String p) {
+		generateSumStates(b, states, sum, p, "");
+	}
+
+	/** weight is empty or a factor per lineage such as multiplicator[i] * **/
+	static void generateSumStates(StringBuilder b, int states, String sum, String p, String weight) {
+		for (int j = 0; j < states; j++) {
+			b.append("\t\t" + sum + "[" + j + "] = 0.0;\n");
+		}
+		b.append("\t\tint u = 0;\n");
+		b.append("\t\tfor (int i = 0; i < lineages; i++) {\n");
+		for (int j = 0; j < states; j++) {
+			b.append("\t\t\t" + sum + "[" + j + "] += " + weight + p + "[" + at("u", j) + "];\n");
+		}
+		b.append("\t\t\tu += " + states + ";\n");
+		b.append("\t\t}\n");
+	}
+
+	static void generateMigration(StringBuilder b, int states, String p, String target) {
+		b.append("\t\tu = 0;\n");
+		b.append("\t\tfor (int i = 0; i < lineages; i++) {\n");
+		for (int j = 0; j < states - 1; j++) {
+			b.append("\t\t\tpj = " + p + "[" + at("u", j) + "];\n");
+			b.append("\t\t\tfor (int k = " + (j + 1) + ", v = " + at("u", j + 1) + "; k < " + states + "; k++, v++) {\n");
+			b.append("\t\t\t\tmigrates = " + p + "[v] * migration_rates[k * n + " + j + "] - pj * migration_rates[" + j + " * n + k];\n");
+			b.append("\t\t\t\t" + target + "[" + at("u", j) + "] += migrates;\n");
+			b.append("\t\t\t\t" + target + "[v] -= migrates;\n");
+			b.append("\t\t\t}\n");
+		}
+		b.append("\t\t\tu += " + states + ";\n");
+		b.append("\t\t}\n");
+	}
+
+	static void generateComputeDerivatives(StringBuilder b, int states) {
+		b.append("\t@Override\n");
+		b.append("\tpublic void computeDerivatives(double[] p, double[] pDot, double[] pDotDot, double[] pDotDotDot, int length) {\n");
+		b.append("\t\tif (hasIndicators || sparse != null) {\n");
+		b.append("\t\t\tsuper.computeDerivatives(p, pDot, pDotDot, pDotDotDot, length);\n");
+		b.append("\t\t\treturn;\n");
+		b.append("\t\t}\n");
+		b.append("\t\tfinal double[] sumStates = this.sumStates;\n");
+		b.append("\t\tfinal double[] coalescent_rates = this.coalescent_rates;\n");
+		b.append("\t\tfinal double[] migration_rates = this.migration_rates;\n");
+		b.append("\t\tfinal int n = this.n;\n");
+		b.append("\t\tdouble migrates, pj, coal;\n");
+		generateSumStates(b, states, "sumStates", "p");
+
+		b.append("\t\tint currlin = 0;\n");
+		b.append("\t\tfor (int i = 0; i < lineages; i++) {\n");
+		b.append("\t\t\tdouble sumCoal = 0;\n");
+		for (int j = 0; j < states; j++) {
+			b.append("\t\t\tfinal double tCR" + j + " = coalescent_rates[" + j + "] * (sumStates[" + j + "] - p[" + at("currlin", j) + "]);\n");
+			b.append("\t\t\tsumCoal += p[" + at("currlin", j) + "] * tCR" + j + ";\n");
+		}
+		b.append("\t\t\tpDot[length-1] -= sumCoal;\n");
+		for (int j = 0; j < states; j++) {
+			b.append("\t\t\tcoal = sumCoal - tCR" + j + ";\n");
+			b.append("\t\t\tpDotDot[" + at("currlin", j) + "] = coal;\n");
+			b.append("\t\t\tpDotDotDot[" + at("currlin", j) + "] = coal;\n");
+			b.append("\t\t\tpDot[" + at("currlin", j) + "] += p[" + at("currlin", j) + "] * coal;\n");
+		}
+		b.append("\t\t\tcurrlin += " + states + ";\n");
+		b.append("\t\t}\n");
+
+		generateMigration(b, states, "p", "pDot");
+		b.append("\t\tpDot[length-1] /= 2;\n");
+		b.append("\t}\n\n");
+	}
+
+	static void generateComputeSecondDerivate(StringBuilder b, int states) {
+		b.append("\t@Override\n");
+		b.append("\tpublic void computeSecondDerivate(double[] p, double[] pDot, double[] pDotDot, int length) {\n");
+		b.append("\t\tif (hasIndicators || sparse != null) {\n");
+		b.append("\t\t\tsuper.computeSecondDerivate(p, pDot, pDotDot, length);\n");
+		b.append("\t\t\treturn;\n");
+		b.append("\t\t}\n");
+		b.append("\t\tfinal double[] sumStates = this.sumStates;\n");
+		b.append("\t\tfinal double[] sumDotStates = this.sumDotStates;\n");
+		b.append("\t\tfinal double[] coalescent_rates = this.coalescent_rates;\n");
+		b.append("\t\tfinal double[] migration_rates = this.migration_rates;\n");
+		b.append("\t\tfinal int n = this.n;\n");
+		b.append("\t\tdouble migrates, pj;\n");
+		generateSumStates(b, states, "sumDotStates", "pDot");
+
+		b.append("\t\tint currlin = 0;\n");
+		b.append("\t\tfor (int i = 0; i < lineages; i++) {\n");
+		b.append("\t\t\tdouble pCoalRate = 0.0;\n");
+		for (int j = 0; j < states; j++) {
+			String kj = at("currlin", j);
+			b.append("\t\t\tpCoalRate += coalescent_rates[" + j + "] * (pDot[" + kj + "] * (sumStates[" + j + "] - 2 * p[" + kj
+					+ "]) + p[" + kj + "] * (sumDotStates[" + j + "]));\n");
+		}
+		for (int j = 0; j < states; j++) {
+			String kj = at("currlin", j);
+			b.append("\t\t\tpDotDot[" + kj + "] = pDotDot[" + kj + "] * pDot[" + kj + "] + p[" + kj + "] * (pCoalRate - coalescent_rates["
+					+ j + "] * (sumDotStates[" + j + "] - pDot[" + kj + "]));\n");
+		}
+		b.append("\t\t\tpDotDot[length-1] -= pCoalRate;\n");
+		b.append("\t\t\tcurrlin += " + states + ";\n");
+		b.append("\t\t}\n");
+
+		generateMigration(b, states, "pDot", "pDotDot");
+		b.append("\t\tpDotDot[length-1] /= 2;\n");
+		b.append("\t}\n\n");
+	}
+
+	static void generateApproximateThirdDerivate(StringBuilder b, int states) {
+		b.append("\t@Override\n");
+		b.append("\tpublic void approximateThirdDerivate(double[] pDotDot, double[] pDotDotDot, int length) {\n");
+		b.append("\t\tif (hasIndicators || sparse != null) {\n");
+		b.append("\t\t\tsuper.approximateThirdDerivate(pDotDot, pDotDotDot, length);\n");
+		b.append("\t\t\treturn;\n");
+		b.append("\t\t}\n");
+		b.append("\t\tfinal double[] migration_rates = this.migration_rates;\n");
+		b.append("\t\tfinal int n = this.n;\n");
+		b.append("\t\tdouble migrates, mrate;\n");
+		b.append("\t\tint u, v;\n");
+		b.append("\t\tfor (u = 0; u < length - 1; u++) {\n");
+		b.append("\t\t\tpDotDotDot[u] *= pDotDot[u];\n");
+		b.append("\t\t}\n");
+		b.append("\t\tfor (int j = 0; j < " + states + "; j++) {\n");
+		for (int k = 0; k < states; k++) {
+			b.append("\t\t\tmrate = migration_rates[j * n + " + k + "];\n");
+			b.append("\t\t\tu = j;\n");
+			b.append("\t\t\tv = " + k + ";\n");
+			b.append("\t\t\tfor (int i = 0; i < lineages; i++) {\n");
+			b.append("\t\t\t\tmigrates = pDotDot[u] * mrate;\n");
+			b.append("\t\t\t\tpDotDotDot[v] += migrates;\n");
+			b.append("\t\t\t\tpDotDotDot[u] -= migrates;\n");
+			b.append("\t\t\t\tu += " + states + ";\n");
+			b.append("\t\t\t\tv += " + states + ";\n");
+			b.append("\t\t\t}\n");
+		}
+		b.append("\t\t}\n");
+		b.append("\t}\n\n");
+	}
+
+	static void generateComputeDerivativesWithMultiplicator(StringBuilder b, int states) {
+		b.append("\t@Override\n");
+		b.append("\tpublic void computeDerivativesWithMultiplicator(double[] p, double[] pDot, double[] pDotDot, double[] pDotDotDot, int length) {\n");
+		b.append("\t\tif (hasIndicators || sparse != null) {\n");
+		b.append("\t\t\tsuper.computeDerivativesWithMultiplicator(p, pDot, pDotDot, pDotDotDot, length);\n");
+		b.append("\t\t\treturn;\n");
+		b.append("\t\t}\n");
+		b.append("\t\tfinal double[] sumStates = this.sumStates;\n");
+		b.append("\t\tfinal double[] coalescent_rates = this.coalescent_rates;\n");
+		b.append("\t\tfinal double[] migration_rates = this.migration_rates;\n");
+		b.append("\t\tfinal int[] multiplicator = this.multiplicator;\n");
+		b.append("\t\tfinal int n = this.n;\n");
+		b.append("\t\tdouble migrates, pj, coal;\n");
+		generateSumStates(b, states, "sumStates", "p", "multiplicator[i] * ");
+
+		b.append("\t\tint currlin = 0;\n");
+		b.append("\t\tfor (int i = 0; i < lineages; i++) {\n");
+		b.append("\t\t\tdouble sumCoal = 0;\n");
+		for (int j = 0; j < states; j++) {
+			b.append("\t\t\tfinal double tCR" + j + " = coalescent_rates[" + j + "] * (sumStates[" + j + "] - p[" + at("currlin", j) + "]);\n");
+			b.append("\t\t\tsumCoal += p[" + at("currlin", j) + "] * tCR" + j + ";\n");
+		}
+		b.append("\t\t\tpDot[length-1] -= multiplicator[i] * sumCoal;\n");
+		for (int j = 0; j < states; j++) {
+			b.append("\t\t\tcoal = sumCoal - tCR" + j + ";\n");
+			b.append("\t\t\tpDotDot[" + at("currlin", j) + "] = coal;\n");
+			b.append("\t\t\tpDotDotDot[" + at("currlin", j) + "] = coal;\n");
+			b.append("\t\t\tpDot[" + at("currlin", j) + "] += p[" + at("currlin", j) + "] * coal;\n");
+		}
+		b.append("\t\t\tcurrlin += " + states + ";\n");
+		b.append("\t\t}\n");
+
+		generateMigration(b, states, "p", "pDot");
+		b.append("\t\tpDot[length-1] /= 2;\n");
+		b.append("\t}\n\n");
+	}
+
+	static void generateComputeSecondDerivateWithMultiplicator(StringBuilder b, int states) {
+		b.append("\t@Override\n");
+		b.append("\tpublic void computeSecondDerivateWithMultiplicator(double[] p, double[] pDot, double[] pDotDot, int length) {\n");
+		b.append("\t\tif (hasIndicators || sparse != null) {\n");
+		b.append("\t\t\tsuper.computeSecondDerivateWithMultiplicator(p, pDot, pDotDot, length);\n");
+		b.append("\t\t\treturn;\n");
+		b.append("\t\t}\n");
+		b.append("\t\tfinal double[] sumStates = this.sumStates;\n");
+		b.append("\t\tfinal double[] sumDotStates = this.sumDotStates;\n");
+		b.append("\t\tfinal double[] coalescent_rates = this.coalescent_rates;\n");
+		b.append("\t\tfinal double[] migration_rates = this.migration_rates;\n");
+		b.append("\t\tfinal int[] multiplicator = this.multiplicator;\n");
+		b.append("\t\tfinal int n = this.n;\n");
+		b.append("\t\tdouble migrates, pj;\n");
+		generateSumStates(b, states, "sumDotStates", "pDot", "multiplicator[i] * ");
+
+		b.append("\t\tint currlin = 0;\n");
+		b.append("\t\tfor (int i = 0; i < lineages; i++) {\n");
+		b.append("\t\t\tdouble pCoalRate = 0.0;\n");
+		for (int j = 0; j < states; j++) {
+			String kj = at("currlin", j);
+			b.append("\t\t\tpCoalRate += coalescent_rates[" + j + "] * (pDot[" + kj + "] * (sumStates[" + j + "] - p[" + kj
+					+ "]) + p[" + kj + "] * (sumDotStates[" + j + "] - pDot[" + kj + "]));\n");
+		}
+		b.append("\t\t\tpDotDot[length-1] -= multiplicator[i] * pCoalRate;\n");
+		for (int j = 0; j < states; j++) {
+			String kj = at("currlin", j);
+			b.append("\t\t\tpDotDot[" + kj + "] = pDotDot[" + kj + "] * pDot[" + kj + "] + p[" + kj + "] * (pCoalRate - coalescent_rates["
+					+ j + "] * (sumDotStates[" + j + "] - pDot[" + kj + "]));\n");
+		}
+		b.append("\t\t\tcurrlin += " + states + ";\n");
+		b.append("\t\t}\n");
+
+		generateMigration(b, states, "pDot", "pDotDot");
+		b.append("\t\tpDotDot[length-1] /= 2;\n");
+		b.append("\t}\n");
+	}
+}
@@ -1,24 +1,65 @@
 package beast.mascot.ode;
 
 import beast.core.util.Log;
+import beast.mascot.distribution.MascotNative2;
 
 /** A native implementation of Euler2ndOrder for Mascot **/
 public class Euler2ndOrderNative implements Euler2ndOrderBase {
 
+	// address of the native integrator of this object, read by the native methods
+	private long handle;
+	private final NativeHandle nativeHandle = new NativeHandle(this, Euler2ndOrderNative::free);
+
+	// result of the first loadLibrary() call, so the warnings are only printed once
+	private static Boolean loaded;
+
+	/** loads the native library, unless it is missing or was built from other sources than these classes **/
 	public static boolean loadLibrary() {
+		if (loaded == null) {
+			loaded = load();
+		}
+		return loaded;
+	}
+
+	private static boolean load() {
 		try {
 			System.loadLibrary("mascot");
-			Log.warning("Loaded mascot native library");
-			return true;
 		} catch (java.lang.UnsatisfiedLinkError e) {
-			Log.warning("Mascot native library not loaded");
+			Log.warning("Mascot native library not loaded, using the Java implementation");
 			return false;
 		}
+		int version;
+		try {
+			version = MascotNative2.version();
+		} catch (java.lang.UnsatisfiedLinkError e) {
+			version = 0;
+		}
+		if (version != MascotNative2.NATIVE_VERSION) {
+			Log.warning("WARNING: the Mascot native library is stale: it was built for version " + version 
+					+ " of the native methods, but this version of Mascot needs version " + MascotNative2.NATIVE_VERSION + ".");
+			Log.warning("WARNING: not using it and falling back to the slower Java implementation. "
+					+ "Rebuild it with 'make install' in the jni directory.");
+			return false;
+		}
+		Log.warning("Loaded mascot native library");
+		return true;
 	}
 
 	@Override
-	native public void setup(int maxSize, int states, double epsilon,
-			double max_step);
+	public void setup(int maxSize, int states, double epsilon, double max_step) {
+		handle = create(maxSize, states, epsilon, max_step);
+		nativeHandle.set(handle);
+	}
+
+	native private long create(int maxSize, int states, double epsilon, double max_step);
+
+	native private static void free(long handle);
+
+	/** frees the native state now instead of when this object is garbage collected **/
+	public void release() {
+		handle = 0;
+		nativeHandle.release();
+	}
 	
 	@Override
 	native public void init(double[] migration_rates, double[] coalescent_rates, int lineages);
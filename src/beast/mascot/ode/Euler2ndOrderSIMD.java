@@ -0,0 +1,167 @@
+package beast.mascot.ode;
+
+
+/**
+ * Euler2ndOrder with the inner loops over states written as unit-stride
+ * array operations that the JIT's superword pass turns into SIMD instructions.
+ * Migration is applied in axpy form, with one row of the migration matrix per
+ * source state, followed by the total outflow, instead of the pairwise
+ * j < k loop, which has no vectorisable inner loop. If the migration matrix
+ * has a sparse form, migration goes through that instead.
+ */
+public class Euler2ndOrderSIMD extends Euler2ndOrder {
+
+	// total backwards migration rate out of each state
+	double [] outRates;
+
+	@Override
+	public void setup(int maxSize, int states, double epsilon, double max_step) {
+		super.setup(maxSize, states, epsilon, max_step);
+		outRates = new double[states];
+	}
+
+	// the out rates are set along with the rates, as Rosenbrock2 calls the derivatives directly,
+	// indicators do not use them
+	@Override
+	public void init(double[] migration_rates, double[] coalescent_rates, int lineages) {
+		super.init(migration_rates, coalescent_rates, lineages);
+		calcOutRates();
+	}
+
+	@Override
+	void initInterval(int ratesInterval, int lineages) {
+		super.initInterval(ratesInterval, lineages);
+		if (!hasIndicators) {
+			calcOutRates();
+		}
+	}
+
+	private void calcOutRates() {
+		if (outRates == null || outRates.length != states) {
+			outRates = new double[states];
+		}
+		for (int j = 0; j < states; j++) {
+			double out = 0;
+			final int offset = j * n;
+			for (int k = 0; k < states; k++) {
+				out += migration_rates[offset + k];
+			}
+			outRates[j] = out;
+		}
+	}
+
+	/** target[lineage, j] += sum_k source[lineage, k] * m[k, j] - source[lineage, j] * out[j] **/
+	private void migrate(final double[] source, final double[] target) {
+		if (sparse != null) {
+			sparse.migrate(source, target, lineages);
+			return;
+		}
+		final double [] migration_rates = this.migration_rates;
+		final double [] outRates = this.outRates;
+		final int states = this.states;
+		int u = 0;
+		for (int i = 0; i < lineages; i++) {
+			for (int k = 0; k < states; k++) {
+				final double pk = source[u + k];
+				final int offset = k * n;
+				for (int j = 0; j < states; j++) {
+					target[u + j] += pk * migration_rates[offset + j];
+				}
+			}
+			for (int j = 0; j < states; j++) {
+				target[u + j] -= source[u + j] * outRates[j];
+			}
+			u += states;
+		}
+	}
+
+	private void sumOverLineages(final double[] sum, final double[] p) {
+		final int states = this.states;
+		for (int j = 0; j < states; j++) {
+			sum[j] = 0.0;
+		}
+		int u = 0;
+		for (int i = 0; i < lineages; i++) {
+			for (int j = 0; j < states; j++) {
+				sum[j] += p[u + j];
+			}
+			u += states;
+		}
+	}
+
+	@Override
+	public void computeDerivatives(double[] p, double[] pDot, double[] pDotDot, double[] pDotDotDot, int length) {
+		if (hasIndicators) {
+			super.computeDerivatives(p, pDot, pDotDot, pDotDotDot, length);
+			return;
+		}
+		final double [] sumStates = this.sumStates;
+		final double [] tCR = this.tCR;
+		final double [] coalescent_rates = this.coalescent_rates;
+		final int states = this.states;
+		sumOverLineages(sumStates, p);
+
+		int u = 0;
+		for (int i = 0; i < lineages; i++) {
+			for (int j = 0; j < states; j++) {
+				tCR[j] = coalescent_rates[j] * (sumStates[j] - p[u + j]);
+			}
+			double sumCoal = 0;
+			for (int j = 0; j < states; j++) {
+				sumCoal += p[u + j] * tCR[j];
+			}
+			pDot[length-1] -= sumCoal;
+			for (int j = 0; j < states; j++) {
+				final double coal = sumCoal - tCR[j];
+				pDotDot[u + j] = coal;
+				pDotDotDot[u + j] = coal;
+				pDot[u + j] += p[u + j] * coal;
+			}
+			u += states;
+		}
+
+		migrate(p, pDot);
+		pDot[length-1] /= 2;
+	}
+
+	@Override
+	public void computeSecondDerivate(double[] p, double[] pDot, double[] pDotDot, int length) {
+		if (hasIndicators) {
+			super.computeSecondDerivate(p, pDot, pDotDot, length);
+			return;
+		}
+		final double [] sumStates = this.sumStates;
+		final double [] sumDotStates = this.sumDotStates;
+		final double [] coalescent_rates = this.coalescent_rates;
+		final int states = this.states;
+		sumOverLineages(sumDotStates, pDot);
+
+		int u = 0;
+		for (int i = 0; i < lineages; i++) {
+			double pCoalRate = 0.0;
+			for (int j = 0; j < states; j++) {
+				pCoalRate += coalescent_rates[j] * (pDot[u + j] * (sumStates[j] - 2 * p[u + j]) + p[u + j] * sumDotStates[j]);
+			}
+			for (int j = 0; j < states; j++) {
+				pDotDot[u + j] = pDotDot[u + j] * pDot[u + j] + p[u + j] * (pCoalRate - coalescent_rates[j] * (sumDotStates[j] - pDot[u + j]));
+			}
+			pDotDot[length-1] -= pCoalRate;
+			u += states;
+		}
+
+		migrate(pDot, pDotDot);
+		pDotDot[length-1] /= 2;
+	}
+
+	@Override
+	public void approximateThirdDerivate(double[] pDotDot, double[] pDotDotDot, int length) {
+		if (hasIndicators) {
+			super.approximateThirdDerivate(pDotDot, pDotDotDot, length);
+			return;
+		}
+		for (int u = 0; u < length - 1; u++) {
+			pDotDotDot[u] *= pDotDot[u];
+		}
+		migrate(pDotDot, pDotDotDot);
+	}
+}
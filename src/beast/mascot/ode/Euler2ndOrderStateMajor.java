@@ -0,0 +1,411 @@
+package beast.mascot.ode;
+
+
+import org.apache.commons.math3.util.FastMath;
+
+/**
+ * Euler2ndOrder for lineage state probabilities stored state-major, i.e.
+ * p[state * capacity + lineage], so that the probabilities of one state are
+ * contiguous over all active lineages. The row length capacity is the maximum
+ * number of lineages, derived from maxSize in setup(), and the log probability
+ * is accumulated in p[length-1] with length = capacity * states + 1.
+ * All inner loops run over lineages with unit stride.
+ */
+public class Euler2ndOrderStateMajor extends Euler2ndOrder {
+
+	int capacity;
+
+	// per lineage accumulators
+	double [] lineageSum;
+	// total backwards migration rate out of each state
+	double [] outRates;
+
+	@Override
+	public void setup(int maxSize, int states, double epsilon, double max_step) {
+		super.setup(maxSize + 1, states, epsilon, max_step);
+		capacity = maxSize / states;
+		lineageSum = new double[capacity];
+		outRates = new double[states];
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	// Rosenbrock2 assumes the lineage-major layout
+	@Override
+	protected boolean isStiff(double duration) {
+		return false;
+	}
+
+	@Override
+	public void calculateValues(double duration, double[] p, double[] pDot, double[] pDotDot, double[] pDotDotDot, int length) {
+		if (!hasIndicators) {
+			calcOutRates();
+		}
+		clearArray(pDotDot, length);
+		clearArray(pDotDotDot, length);
+		if (timeVaryingRates != null) {
+			calculateTimeVaryingValues(duration, p, pDot, pDotDot, pDotDotDot, length, length);
+			return;
+		}
+		while (duration > 0) {
+			iterations++;
+			clearArray(pDot, length);
+			if (hasMultiplicator) {
+				computeDerivativesWithMultiplicator(p, pDot, pDotDot, pDotDotDot, length);
+				computeSecondDerivateWithMultiplicator(p, pDot, pDotDot, length);
+			} else {
+				computeDerivatives(p, pDot, pDotDot, pDotDotDot, length);
+				computeSecondDerivate(p, pDot, pDotDot, length);
+			}
+			approximateThirdDerivate(pDotDot, pDotDotDot, length);
+			duration = updateP(duration, p, pDot, pDotDot, pDotDotDot, length);
+
+			if (iterations > 10000) {
+				System.err.println("too many iterations, return negative infinity");
+				p[length-1] = Double.NEGATIVE_INFINITY;
+				break;
+			}
+			if (p[length-1] == Double.NEGATIVE_INFINITY) {
+				break;
+			}
+		}
+	}
+
+	/** only the rows of active lineages and the log probability entry are touched **/
+	@Override
+	void clearArray(double[] v, int length) {
+		for (int j = 0; j < states; j++) {
+			final int row = j * capacity;
+			for (int i = row; i < row + lineages; i++) {
+				v[i] = 0.0;
+			}
+		}
+		v[length-1] = 0.0;
+	}
+
+	private void calcOutRates() {
+		if (outRates == null || outRates.length != states) {
+			outRates = new double[states];
+		}
+		for (int j = 0; j < states; j++) {
+			double out = 0;
+			for (int k = 0; k < states; k++) {
+				out += migration_rates[j * n + k];
+			}
+			outRates[j] = out;
+		}
+	}
+
+	/** maximum over the lineages in use, the rows are longer than that **/
+	@Override
+	double maxAbs(double[] pDotDotDot, int length) {
+		double max_dotdotdot = 0.0;
+		for (int j = 0; j < states; j++) {
+			final int row = j * capacity;
+			for (int i = 0; i < lineages; i++) {
+				max_dotdotdot = FastMath.max(max_dotdotdot, FastMath.abs(pDotDotDot[row + i]));
+			}
+		}
+		return max_dotdotdot;
+	}
+
+	/** note that length includes the log probability entry here **/
+	@Override
+	protected double updateP(double duration, double[] p, double[] pDot, double[] pDotDot, double[] pDotDotDot, int length) {
+		final int last = length - 1;
+		final double max_dotdotdot = maxAbs(pDotDotDot, length);
+
+		double timeStep = FastMath.min(FastMath.cbrt(epsilon*6/max_dotdotdot), FastMath.min(duration, max_step));
+		double timeStepSquare = timeStep * timeStep * 0.5;
+
+		for (int j = 0; j < states; j++) {
+			final int row = j * capacity;
+			for (int i = row; i < row + lineages; i++) {
+				double new_val = p[i] + pDot[i] * timeStep + pDotDot[i] * timeStepSquare;
+				double diff = FastMath.abs(new_val - p[i]);
+				int its = 0;
+				while (new_val > 1 || new_val < 0 || diff > 0.2) {
+					timeStep *= 0.9;
+					timeStepSquare = timeStep * timeStep * 0.5;
+					new_val = p[i] + pDot[i] * timeStep + pDotDot[i] * timeStepSquare;
+					diff = FastMath.abs(new_val - p[i]);
+					its++;
+					if (its > 10000) {
+						p[last] = Double.NEGATIVE_INFINITY;
+						return 0.0;
+					}
+				}
+			}
+		}
+
+		for (int j = 0; j < states; j++) {
+			final int row = j * capacity;
+			for (int i = row; i < row + lineages; i++) {
+				p[i] += pDot[i] * timeStep + pDotDot[i] * timeStepSquare;
+			}
+		}
+		p[last] += pDot[last] * timeStep + pDotDot[last] * timeStepSquare;
+
+		// normalize to ensure stability
+		final double [] lineageSum = this.lineageSum;
+		for (int i = 0; i < lineages; i++) {
+			lineageSum[i] = 0.0;
+		}
+		for (int j = 0; j < states; j++) {
+			final int row = j * capacity;
+			for (int i = 0; i < lineages; i++) {
+				lineageSum[i] += p[row + i];
+			}
+		}
+		for (int j = 0; j < states; j++) {
+			final int row = j * capacity;
+			for (int i = 0; i < lineages; i++) {
+				if (p[row + i] < 0.0) {
+					p[last] = Double.NEGATIVE_INFINITY;
+					return 0.0;
+				}
+				p[row + i] /= lineageSum[i];
+			}
+		}
+
+		duration -= timeStep;
+		return duration;
+	}
+
+	/** target[j, lineage] += sum_k source[k, lineage] * m[k, j] - source[j, lineage] * out[j] **/
+	private void migrate(final double[] source, final double[] target) {
+		final int capacity = this.capacity;
+		if (hasIndicators) {
+			for (int j = 0; j < indicators.length/2; j++) {
+				final int source_ = indicators[j * 2 + 0];
+				final int sink = indicators[j * 2 + 1];
+				final double mrate = migration_rates[source_ * n + sink];
+				final int from = source_ * capacity;
+				final int to = sink * capacity;
+				for (int i = 0; i < lineages; i++) {
+					final double migrates = source[from + i] * mrate;
+					target[to + i] += migrates;
+					target[from + i] -= migrates;
+				}
+			}
+			return;
+		}
+		for (int k = 0; k < states; k++) {
+			final int from = k * capacity;
+			for (int j = 0; j < states; j++) {
+				final double mrate = migration_rates[k * n + j];
+				if (j == k || mrate == 0.0) {
+					continue;
+				}
+				final int to = j * capacity;
+				for (int i = 0; i < lineages; i++) {
+					target[to + i] += source[from + i] * mrate;
+				}
+			}
+		}
+		for (int j = 0; j < states; j++) {
+			final double out = outRates[j] - migration_rates[j * n + j];
+			final int row = j * capacity;
+			for (int i = 0; i < lineages; i++) {
+				target[row + i] -= source[row + i] * out;
+			}
+		}
+	}
+
+	private double sumOverLineages(final double[] p, final int row) {
+		double sum = 0;
+		for (int i = row; i < row + lineages; i++) {
+			sum += p[i];
+		}
+		return sum;
+	}
+
+	/** as sumOverLineages, with lineage i counted multiplicator[i] times **/
+	private double weightedSumOverLineages(final double[] p, final int row) {
+		final int [] multiplicator = this.multiplicator;
+		double sum = 0;
+		for (int i = 0; i < lineages; i++) {
+			sum += multiplicator[i] * p[row + i];
+		}
+		return sum;
+	}
+
+	@Override
+	public void computeDerivatives(double[] p, double[] pDot, double[] pDotDot, double[] pDotDotDot, int length) {
+		final int capacity = this.capacity;
+		final double [] sumCoal = lineageSum;
+		for (int j = 0; j < states; j++) {
+			sumStates[j] = sumOverLineages(p, j * capacity);
+		}
+		for (int i = 0; i < lineages; i++) {
+			sumCoal[i] = 0.0;
+		}
+
+		for (int j = 0; j < states; j++) {
+			final int row = j * capacity;
+			final double c = coalescent_rates[j];
+			final double s = sumStates[j];
+			for (int i = 0; i < lineages; i++) {
+				final double pi = p[row + i];
+				sumCoal[i] += pi * c * (s - pi);
+			}
+		}
+		double total = 0;
+		for (int i = 0; i < lineages; i++) {
+			total += sumCoal[i];
+		}
+		pDot[length-1] -= total;
+
+		for (int j = 0; j < states; j++) {
+			final int row = j * capacity;
+			final double c = coalescent_rates[j];
+			final double s = sumStates[j];
+			for (int i = 0; i < lineages; i++) {
+				final double pi = p[row + i];
+				final double coal = sumCoal[i] - c * (s - pi);
+				pDotDot[row + i] = coal;
+				pDotDotDot[row + i] = coal;
+				pDot[row + i] += pi * coal;
+			}
+		}
+
+		migrate(p, pDot);
+		pDot[length-1] /= 2;
+	}
+
+	@Override
+	public void computeSecondDerivate(double[] p, double[] pDot, double[] pDotDot, int length) {
+		final int capacity = this.capacity;
+		final double [] pCoalRate = lineageSum;
+		for (int j = 0; j < states; j++) {
+			sumDotStates[j] = sumOverLineages(pDot, j * capacity);
+		}
+		for (int i = 0; i < lineages; i++) {
+			pCoalRate[i] = 0.0;
+		}
+
+		for (int j = 0; j < states; j++) {
+			final int row = j * capacity;
+			final double c = coalescent_rates[j];
+			final double s = sumStates[j];
+			final double sd = sumDotStates[j];
+			for (int i = 0; i < lineages; i++) {
+				pCoalRate[i] += c * (pDot[row + i] * (s - 2 * p[row + i]) + p[row + i] * sd);
+			}
+		}
+		double total = 0;
+		for (int i = 0; i < lineages; i++) {
+			total += pCoalRate[i];
+		}
+
+		for (int j = 0; j < states; j++) {
+			final int row = j * capacity;
+			final double c = coalescent_rates[j];
+			final double sd = sumDotStates[j];
+			for (int i = 0; i < lineages; i++) {
+				final int k = row + i;
+				pDotDot[k] = pDotDot[k] * pDot[k] + p[k] * (pCoalRate[i] - c * (sd - pDot[k]));
+			}
+		}
+		pDotDot[length-1] -= total;
+
+		migrate(pDot, pDotDot);
+		pDotDot[length-1] /= 2;
+	}
+
+	@Override
+	public void approximateThirdDerivate(double[] pDotDot, double[] pDotDotDot, int length) {
+		for (int j = 0; j < states; j++) {
+			final int row = j * capacity;
+			for (int i = row; i < row + lineages; i++) {
+				pDotDotDot[i] *= pDotDot[i];
+			}
+		}
+		migrate(pDotDot, pDotDotDot);
+	}
+
+	@Override
+	public void computeDerivativesWithMultiplicator(double[] p, double[] pDot, double[] pDotDot, double[] pDotDotDot, int length) {
+		final int capacity = this.capacity;
+		final double [] sumCoal = lineageSum;
+		for (int j = 0; j < states; j++) {
+			sumStates[j] = weightedSumOverLineages(p, j * capacity);
+		}
+		for (int i = 0; i < lineages; i++) {
+			sumCoal[i] = 0.0;
+		}
+
+		for (int j = 0; j < states; j++) {
+			final int row = j * capacity;
+			final double c = coalescent_rates[j];
+			final double s = sumStates[j];
+			for (int i = 0; i < lineages; i++) {
+				final double pi = p[row + i];
+				sumCoal[i] += pi * c * (s - pi);
+			}
+		}
+		double total = 0;
+		for (int i = 0; i < lineages; i++) {
+			total += multiplicator[i] * sumCoal[i];
+		}
+		pDot[length-1] -= total;
+
+		for (int j = 0; j < states; j++) {
+			final int row = j * capacity;
+			final double c = coalescent_rates[j];
+			final double s = sumStates[j];
+			for (int i = 0; i < lineages; i++) {
+				final double pi = p[row + i];
+				final double coal = sumCoal[i] - c * (s - pi);
+				pDotDot[row + i] = coal;
+				pDotDotDot[row + i] = coal;
+				pDot[row + i] += pi * coal;
+			}
+		}
+
+		migrate(p, pDot);
+		pDot[length-1] /= 2;
+	}
+
+	@Override
+	public void computeSecondDerivateWithMultiplicator(double[] p, double[] pDot, double[] pDotDot, int length) {
+		final int capacity = this.capacity;
+		final double [] pCoalRate = lineageSum;
+		for (int j = 0; j < states; j++) {
+			sumDotStates[j] = weightedSumOverLineages(pDot, j * capacity);
+		}
+		for (int i = 0; i < lineages; i++) {
+			pCoalRate[i] = 0.0;
+		}
+
+		for (int j = 0; j < states; j++) {
+			final int row = j * capacity;
+			final double c = coalescent_rates[j];
+			final double s = sumStates[j];
+			final double sd = sumDotStates[j];
+			for (int i = 0; i < lineages; i++) {
+				pCoalRate[i] += c * (pDot[row + i] * (s - 2 * p[row + i]) + p[row + i] * sd);
+			}
+		}
+		double total = 0;
+		for (int i = 0; i < lineages; i++) {
+			total += multiplicator[i] * pCoalRate[i];
+		}
+
+		for (int j = 0; j < states; j++) {
+			final int row = j * capacity;
+			final double c = coalescent_rates[j];
+			final double sd = sumDotStates[j];
+			for (int i = 0; i < lineages; i++) {
+				final int k = row + i;
+				pDotDot[k] = pDotDot[k] * pDot[k] + p[k] * (pCoalRate[i] - c * (sd - pDot[k]));
+			}
+		}
+		pDotDot[length-1] -= total;
+
+		migrate(pDot, pDotDot);
+		pDotDot[length-1] /= 2;
+	}
+}
@@ -1,6 +1,8 @@
 package beast.mascot.ode;
 
 
+import java.util.Arrays;
+
 import org.apache.commons.math3.util.FastMath;
 
 /**
@@ -22,6 +24,11 @@ public class Euler2ndOrderTransitions  {
     int dimension;
 	double[] sumStates;
 	boolean hasIndicators;
+	
+	// if not null, the coalescent rates are taken from it at every step, starting at time
+	TimeVaryingRates timeVaryingRates;
+	int ratesInterval;
+	double time;
 
 
 	
@@ -54,7 +61,20 @@ public class Euler2ndOrderTransitions  {
 	}
 
 	
+	/** makes calculateValues take the coalescent rates of the rates interval from rates at every step, starting at the given time **/
+	public void setTimeVaryingRates(TimeVaryingRates rates, int ratesInterval, double time) {
+		timeVaryingRates = rates;
+		this.ratesInterval = ratesInterval;
+		this.time = time;
+		// the rates passed to the constructor may be shared, so they are not overwritten
+		coalescent_rates = new double[states];
+	}
+	
 	public void calculateValues(double duration, double[] p, double[] pDot, double[] pDotDot, double[] pDotDotDot) throws Exception{
+		if (timeVaryingRates != null) {
+			calculateTimeVaryingValues(duration, p, pDot, pDotDot, pDotDotDot);
+			return;
+		}
 		if (false){
 			while (duration > 0){
 				pDot = new double[pDot.length];
@@ -76,6 +96,38 @@ public class Euler2ndOrderTransitions  {
 		}
 	}	
 	
+	/** as in Euler2ndOrder, every step uses the rates halfway through it, and its length is estimated from the step before it **/
+	private void calculateTimeVaryingValues(double duration, double[] p, double[] pDot, double[] pDotDot, double[] pDotDotDot) throws Exception{
+		timeVaryingRates.getCoalescentRates(ratesInterval, time, coalescent_rates);
+		computeAllDerivatives(p, pDot, pDotDot, pDotDotDot);
+		double estimate = FastMath.cbrt(epsilon*6/maxAbs(pDotDotDot));
+		while (duration > 0){
+			final double step = FastMath.min(estimate, FastMath.min(duration, max_step));
+			timeVaryingRates.getCoalescentRates(ratesInterval, time + 0.5 * step, coalescent_rates);
+			computeAllDerivatives(p, pDot, pDotDot, pDotDotDot);
+			final double taken = step - updateP(step, p,  pDot, pDotDot, pDotDotDot);
+			time += taken;
+			duration -= taken;
+			estimate = FastMath.cbrt(epsilon*6/maxAbs(pDotDotDot));
+		}
+	}
+	
+	private void computeAllDerivatives(double[] p, double[] pDot, double[] pDotDot, double[] pDotDotDot) {
+		Arrays.fill(pDot, 0.0);
+		pDotDot[pDot.length-1] = 0;
+		computeDerivatives(p, pDot, pDotDot, pDotDotDot);
+		computeSecondDerivate(p, pDot, pDotDot);
+		approximateThirdDerivate(p, pDot, pDotDot, pDotDotDot);
+	}
+	
+	private double maxAbs(double[] pDotDotDot) {
+		double max_dotdotdot = 0.0;
+		for (int i = 0; i < pDotDotDot.length; i++){
+			max_dotdotdot = FastMath.max(max_dotdotdot, FastMath.abs(pDotDotDot[i]));
+		}
+		return max_dotdotdot;
+	}
+	
 	private double updateP (double duration, double[] p, double[] pDot, double[] pDotDot, double[] pDotDotDot) throws Exception{
 		double max_dotdotdot = 0.0;
 		for (int i = 0; i < p.length; i++){
@@ -329,10 +381,10 @@ public class Euler2ndOrderTransitions  {
     		}
     		
     		
-    		for (int j = 0; j < indicators.length; j++){
-    			migrates = p[currlin+indicators[j*n2+0]]*migration_rates[indicators[j*n2+0] * n + indicators[j*n2+1]];
-    			pDot[currlin+indicators[j*n2+1]] += migrates;
-    			pDot[currlin+indicators[j*n2+0]] -= migrates;  			
+    		for (int j = 0; j < n2; j++){
+    			migrates = p[currlin+indicators[j*2+0]]*migration_rates[indicators[j*2+0] * n + indicators[j*2+1]];
+    			pDot[currlin+indicators[j*2+1]] += migrates;
+    			pDot[currlin+indicators[j*2+0]] -= migrates;  			
     		}
     		
     		for (int j = 0; j < states; j++){    			
@@ -360,12 +412,12 @@ public class Euler2ndOrderTransitions  {
     	// Update the transition p dots
     	for (int i = 0; i < lineages; i++){
 	    	for (int j = 0; j < states; j++){ // initial value
-	    		for (int k = 0; k < indicators.length; k++){
+	    		for (int k = 0; k < n2; k++){
 	    			migrates 
-	    				= p[lineages*states + i*states*states + j*states+indicators[k*n2+0]]
-	    						*migration_rates[indicators[k*n2+0] * n + indicators[j*n2+1]];
-	    			pDot[lineages*states + i*states*states + j*states+indicators[k*n2+1]] += migrates;
-	    			pDot[lineages*states + i*states*states + j*states+indicators[k*n2+0]] -= migrates;  			
+	    				= p[lineages*states + i*states*states + j*states+indicators[k*2+0]]
+	    						*migration_rates[indicators[k*2+0] * n + indicators[k*2+1]];
+	    			pDot[lineages*states + i*states*states + j*states+indicators[k*2+1]] += migrates;
+	    			pDot[lineages*states + i*states*states + j*states+indicators[k*2+0]] -= migrates;  			
 	    		}
 	    	}// j
     	}
@@ -390,10 +442,10 @@ public class Euler2ndOrderTransitions  {
     			pDotDot[currlin+j] *= pDot[currlin+j];    		
     		
     		// Calculate the probability of a lineage changing states
-    		for (int j = 0; j < indicators.length; j++){
-    			migrates = pDot[currlin+indicators[j*n2+0]]*migration_rates[indicators[j*n2+0] * n + indicators[j*n2+1]];
-    			pDotDot[currlin+indicators[j*n2+1]] += migrates;
-    			pDotDot[currlin+indicators[j*n2+0]] -= migrates;  			
+    		for (int j = 0; j < n2; j++){
+    			migrates = pDot[currlin+indicators[j*2+0]]*migration_rates[indicators[j*2+0] * n + indicators[j*2+1]];
+    			pDotDot[currlin+indicators[j*2+1]] += migrates;
+    			pDotDot[currlin+indicators[j*2+0]] -= migrates;  			
     		}
 
     		    		
@@ -431,17 +483,17 @@ public class Euler2ndOrderTransitions  {
     	// Update the transition p dots
     	for (int i = 0; i < lineages; i++){
 	    	for (int j = 0; j < states; j++){ // initial value
-	    		for (int k = 0; k < indicators.length; k++){
-	    			double psource = pDot[lineages*states + i*states*states + j*states+indicators[k*n2+0]];
+	    		for (int k = 0; k < n2; k++){
+	    			double psource = pDot[lineages*states + i*states*states + j*states+indicators[k*2+0]];
 	    			if (psource>0.0){
-		    			migrates = psource*migration_rates[indicators[k*n2+0] * n + indicators[k*n2+1]];
+		    			migrates = psource*migration_rates[indicators[k*2+0] * n + indicators[k*2+1]];
 //		    			if ((lineages*states + i*states*states + j*states+indicators[k][0])==5652)
 //		    				System.out.println("mig + " + migrates + " " + pDotDot[lineages*states + i*states*states + j*states+indicators[k][0]] + " " + pDot[lineages*states + i*states*states + j*states+indicators[k][0]]);
 //		    			if ((lineages*states + i*states*states + j*states+indicators[k][1])==5652)
 //		    				System.out.println("mig - " + migrates + " " + pDotDot[lineages*states + i*states*states + j*states+indicators[k][1]] + " " + pDot[lineages*states + i*states*states + j*states+indicators[k][0]]);
 		    				
-		    			pDotDot[lineages*states + i*states*states + j*states+indicators[k*n2+1]] += migrates;
-		    			pDotDot[lineages*states + i*states*states + j*states+indicators[k*n2+0]] -= migrates;  
+		    			pDotDot[lineages*states + i*states*states + j*states+indicators[k*2+1]] += migrates;
+		    			pDotDot[lineages*states + i*states*states + j*states+indicators[k*2+0]] -= migrates;  
 	    			}
 	    		}
 	    	}// j
@@ -463,10 +515,10 @@ public class Euler2ndOrderTransitions  {
         					pDotDot[lineages*states + i*states*states + j*states + k];
         		}
     		}
-    		for (int j = 0; j < indicators.length; j++){
-    			migrates = pDotDot[currlin+indicators[j*n2+0]]*migration_rates[indicators[j*n2+0] * n + indicators[j*n2+1]];
-    			pDotDotDot[currlin+indicators[j*n2+1]] += migrates;
-    			pDotDotDot[currlin+indicators[j*n2+0]] -= migrates;  			
+    		for (int j = 0; j < n2; j++){
+    			migrates = pDotDot[currlin+indicators[j*2+0]]*migration_rates[indicators[j*2+0] * n + indicators[j*2+1]];
+    			pDotDotDot[currlin+indicators[j*2+1]] += migrates;
+    			pDotDotDot[currlin+indicators[j*2+0]] -= migrates;  			
     		}
 
        	}// lineages  
@@ -474,10 +526,10 @@ public class Euler2ndOrderTransitions  {
     	// Update the transition p dots
     	for (int i = 0; i < lineages; i++){
 	    	for (int j = 0; j < states; j++){ // initial value
-	    		for (int k = 0; k < indicators.length; k++){
-	    			migrates = pDotDot[lineages*states + i*states*states + j*states+indicators[k*n2+0]]*migration_rates[indicators[k*n2+0] * n + indicators[k*n2+1]];
-	    			pDotDotDot[lineages*states + i*states*states + j*states+indicators[k*n2+1]] += migrates;
-	    			pDotDotDot[lineages*states + i*states*states + j*states+indicators[k*n2+0]] -= migrates;  			
+	    		for (int k = 0; k < n2; k++){
+	    			migrates = pDotDot[lineages*states + i*states*states + j*states+indicators[k*2+0]]*migration_rates[indicators[k*2+0] * n + indicators[k*2+1]];
+	    			pDotDotDot[lineages*states + i*states*states + j*states+indicators[k*2+1]] += migrates;
+	    			pDotDotDot[lineages*states + i*states*states + j*states+indicators[k*2+0]] -= migrates;  			
 	    		}
 	    	}// j
     	}
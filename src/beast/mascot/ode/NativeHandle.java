@@ -0,0 +1,73 @@
+package beast.mascot.ode;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongConsumer;
+
+import beast.core.util.Log;
+
+/**
+ * Address of the native state owned by a Java object. The state is freed when the owner
+ * is garbage collected, or earlier by release(), so every owner has its own native state.
+ * This does what java.lang.ref.Cleaner does from Java 9 on.
+ */
+public class NativeHandle extends PhantomReference<Object> {
+
+	private static final ReferenceQueue<Object> queue = new ReferenceQueue<>();
+	// keeps the handles reachable until their owners are collected
+	private static final Set<NativeHandle> handles = Collections.newSetFromMap(new ConcurrentHashMap<>());
+
+	static {
+		Thread cleaner = new Thread(() -> {
+			while (true) {
+				try {
+					NativeHandle handle = (NativeHandle) queue.remove();
+					handles.remove(handle);
+					handle.release();
+				} catch (InterruptedException e) {
+					// keep cleaning
+				} catch (Throwable e) {
+					Log.warning("could not free native state: " + e.getMessage());
+				}
+			}
+		}, "mascot-native-cleaner");
+		cleaner.setDaemon(true);
+		cleaner.start();
+	}
+
+	private final LongConsumer free;
+	private long address;
+
+	/**
+	 * @param owner the object that uses the native state, must not be referenced by free
+	 * @param free frees the native state at an address
+	 */
+	public NativeHandle(Object owner, LongConsumer free) {
+		super(owner, queue);
+		this.free = free;
+		handles.add(this);
+	}
+
+	public synchronized long getAddress() {
+		return address;
+	}
+
+	/** takes ownership of the native state at address, freeing the state owned so far **/
+	public synchronized void set(long address) {
+		if (this.address != 0 && this.address != address) {
+			free.accept(this.address);
+		}
+		this.address = address;
+	}
+
+	/** frees the native state, after which the handle is 0 **/
+	public synchronized void release() {
+		if (address != 0) {
+			free.accept(address);
+			address = 0;
+		}
+	}
+}
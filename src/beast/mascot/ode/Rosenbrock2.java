@@ -0,0 +1,241 @@
+package beast.mascot.ode;
+
+
+import org.apache.commons.math3.util.FastMath;
+
+/**
+ * Linearly implicit two stage Rosenbrock method ROS2 (Verwer et al. 1999) for stiff
+ * intervals of the MASCOT ODE:
+ *   (I - gamma h A) k1 = f(p)
+ *   (I - gamma h A) k2 = f(p + h k1) - 2 k1
+ *   p' = p + 3/2 h k1 + 1/2 h k2
+ * with gamma = 1 + 1/sqrt(2). ROS2 is second order for any matrix A (a W-method), so
+ * A only contains the migration part of the Jacobian. This is the part that makes
+ * the ODE stiff, and it is the same states x states block for every lineage, so
+ * (I - gamma h A) is inverted once per step size and applied to each lineage.
+ * The difference to the linearly implicit Euler solution p + h k1 is used for
+ * step size control, with epsilon as absolute and relative tolerance. The first
+ * step of an interval is 1/stiffness, so the result of an interval does not depend
+ * on the intervals integrated before it.
+ *
+ * The derivatives and rates are those of the Euler2ndOrder kernel it belongs to,
+ * which switches to this solver if an interval is stiff, see Euler2ndOrder.isStiff().
+ */
+public class Rosenbrock2 {
+
+	final static double GAMMA = 1.0 + 1.0 / FastMath.sqrt(2.0);
+	final static double SAFETY = 0.9;
+	final static double MIN_FACTOR = 0.2;
+	final static double MAX_FACTOR = 5.0;
+
+	final Euler2ndOrder kernel;
+
+	double [] k1, k2, f, y, scratch1, scratch2;
+	// (I - gamma h A)^-1 for step size invertedStep, row major states x states
+	double [] inverse;
+	double [] work;
+	double invertedStep = -1;
+	double [] invertedRates;
+
+	int iterations;
+
+	public Rosenbrock2(Euler2ndOrder kernel) {
+		this.kernel = kernel;
+	}
+
+	private void allocate(int length) {
+		if (k1 == null || k1.length < length) {
+			k1 = new double[length];
+			k2 = new double[length];
+			f = new double[length];
+			y = new double[length];
+			scratch1 = new double[length];
+			scratch2 = new double[length];
+		}
+		final int states = kernel.states;
+		if (inverse == null || inverse.length != states * states) {
+			inverse = new double[states * states];
+			work = new double[states * states * 2];
+			invertedStep = -1;
+		}
+	}
+
+	private void derivatives(double[] p, double[] pDot, int length) {
+		for (int i = 0; i < length; i++) {
+			pDot[i] = 0.0;
+		}
+		if (kernel.hasMultiplicator) {
+			kernel.computeDerivativesWithMultiplicator(p, pDot, scratch1, scratch2, length);
+		} else {
+			kernel.computeDerivatives(p, pDot, scratch1, scratch2, length);
+		}
+	}
+
+	public void calculateValues(double duration, double[] p, int length) {
+		allocate(length);
+		final double epsilon = kernel.epsilon;
+		final int dimension = length - 1;
+		iterations = 0;
+
+		// the first step of every interval only depends on the interval, not on earlier calls
+		double h = FastMath.min(duration, 1.0 / FastMath.max(1e-10, kernel.stiffness));
+		while (duration > 0) {
+			iterations++;
+			if (iterations > 10000) {
+				System.err.println("too many iterations, return negative infinity");
+				p[length-1] = Double.NEGATIVE_INFINITY;
+				return;
+			}
+			final double step = FastMath.min(h, FastMath.min(duration, kernel.max_step));
+			invert(step);
+
+			derivatives(p, f, length);
+			solve(f, k1, length);
+			for (int i = 0; i < length; i++) {
+				y[i] = p[i] + step * k1[i];
+			}
+			derivatives(y, f, length);
+			for (int i = 0; i < length; i++) {
+				f[i] -= 2.0 * k1[i];
+			}
+			solve(f, k2, length);
+
+			double err = 0.0;
+			boolean valid = true;
+			for (int i = 0; i < length; i++) {
+				y[i] = p[i] + step * (1.5 * k1[i] + 0.5 * k2[i]);
+				final double e = 0.5 * step * (k1[i] + k2[i]);
+				final double sc = epsilon * (1.0 + FastMath.max(FastMath.abs(p[i]), FastMath.abs(y[i])));
+				err = FastMath.max(err, FastMath.abs(e) / sc);
+			}
+			for (int i = 0; i < dimension; i++) {
+				if (y[i] < -epsilon || y[i] > 1.0 + epsilon) {
+					valid = false;
+					break;
+				}
+			}
+
+			if (!valid || !(err <= 1.0)) {
+				// reject the step
+				if (!valid || Double.isNaN(err)) {
+					h = step * 0.5;
+				} else {
+					h = step * FastMath.max(MIN_FACTOR, SAFETY / FastMath.sqrt(err));
+				}
+				if (h < 1e-15) {
+					p[length-1] = Double.NEGATIVE_INFINITY;
+					return;
+				}
+				continue;
+			}
+
+			// accept the step
+			duration -= step;
+			System.arraycopy(y, 0, p, 0, length);
+			if (!normalise(p, dimension, length)) {
+				return;
+			}
+			final double factor = FastMath.min(MAX_FACTOR, SAFETY / FastMath.sqrt(FastMath.max(err, 1e-10)));
+			h = step * factor;
+		}
+	}
+
+	/** k[lineage,] = r[lineage,] (I - gamma h Q)^-1, the log probability has no linear part **/
+	private void solve(double[] r, double[] k, int length) {
+		final int states = kernel.states;
+		final double [] inverse = this.inverse;
+		for (int u = 0; u < length - 1; u += states) {
+			for (int j = 0; j < states; j++) {
+				double sum = 0;
+				for (int l = 0; l < states; l++) {
+					sum += r[u + l] * inverse[l * states + j];
+				}
+				k[u + j] = sum;
+			}
+		}
+		k[length-1] = r[length-1];
+	}
+
+	/** sets up (I - gamma h Q)^-1 with Q the migration generator the kernel is using **/
+	private void invert(double step) {
+		if (step == invertedStep && invertedRates == kernel.migration_rates) {
+			return;
+		}
+		final int states = kernel.states;
+		final int n = kernel.n;
+		final double [] rates = kernel.migration_rates;
+		final int w = 2 * states;
+		// work = [I - gamma h Q | I]
+		for (int i = 0; i < work.length; i++) {
+			work[i] = 0.0;
+		}
+		final double gh = GAMMA * step;
+		if (kernel.hasIndicators) {
+			final int [] indicators = kernel.indicators;
+			for (int j = 0; j < indicators.length/2; j++) {
+				final int source = indicators[j * 2 + 0];
+				final int sink = indicators[j * 2 + 1];
+				final double m = rates[source * n + sink];
+				work[source * w + sink] -= gh * m;
+				work[source * w + source] += gh * m;
+			}
+		} else {
+			for (int k = 0; k < states; k++) {
+				for (int j = 0; j < states; j++) {
+					if (j != k) {
+						final double m = rates[k * n + j];
+						work[k * w + j] -= gh * m;
+						work[k * w + k] += gh * m;
+					}
+				}
+			}
+		}
+		for (int k = 0; k < states; k++) {
+			work[k * w + k] += 1.0;
+			work[k * w + states + k] = 1.0;
+		}
+		// Gauss-Jordan elimination, I - gamma h Q is diagonally dominant so no pivoting is needed
+		for (int c = 0; c < states; c++) {
+			final double pivot = work[c * w + c];
+			for (int j = 0; j < w; j++) {
+				work[c * w + j] /= pivot;
+			}
+			for (int r = 0; r < states; r++) {
+				if (r != c) {
+					final double factor = work[r * w + c];
+					if (factor != 0.0) {
+						for (int j = 0; j < w; j++) {
+							work[r * w + j] -= factor * work[c * w + j];
+						}
+					}
+				}
+			}
+		}
+		for (int k = 0; k < states; k++) {
+			System.arraycopy(work, k * w + states, inverse, k * states, states);
+		}
+		invertedStep = step;
+		invertedRates = rates;
+	}
+
+	private boolean normalise(double[] p, int dimension, int length) {
+		final int states = kernel.states;
+		for (int u = 0; u < dimension; u += states) {
+			double linSum = 0;
+			for (int j = u; j < u + states; j++) {
+				if (p[j] < 0.0) {
+					p[j] = 0.0;
+				}
+				linSum += p[j];
+			}
+			if (!(linSum > 0.0)) {
+				p[length-1] = Double.NEGATIVE_INFINITY;
+				return false;
+			}
+			for (int j = u; j < u + states; j++) {
+				p[j] /= linSum;
+			}
+		}
+		return true;
+	}
+}
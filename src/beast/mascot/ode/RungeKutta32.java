@@ -0,0 +1,185 @@
+package beast.mascot.ode;
+
+
+import org.apache.commons.math3.util.FastMath;
+
+/**
+ * Bogacki-Shampine 3(2) embedded Runge-Kutta integrator for the MASCOT ODE with
+ * a PI step size controller. The derivatives are taken from the computeDerivatives
+ * method of an Euler2ndOrder kernel, so the unrolled kernels are reused. The last
+ * stage is the first stage of the next step (FSAL), so an accepted step costs three
+ * derivative evaluations. epsilon is used as absolute and relative tolerance on the
+ * lineage state probabilities and the log probability. The first step size of every
+ * interval is derived from the derivatives at its start, so the result of an interval
+ * only depends on its own input and not on the intervals integrated before it.
+ */
+public class RungeKutta32 implements Euler2ndOrderBase {
+
+	final static double SAFETY = 0.9;
+	final static double MIN_FACTOR = 0.2;
+	final static double MAX_FACTOR = 5.0;
+	// PI controller exponents for an error estimate of order 3 (Hairer & Wanner, IV.2),
+	// used with Math.pow since FastMath.pow allocates on every call
+	final static double ALPHA = 0.7 / 3.0;
+	final static double BETA = 0.4 / 3.0;
+
+	final Euler2ndOrder derivatives;
+
+	double epsilon;
+	double max_step;
+	int states;
+
+	double [] k1, k2, k3, k4, y, scratch1, scratch2;
+
+	int iterations;
+
+	public RungeKutta32(Euler2ndOrder derivatives) {
+		this.derivatives = derivatives;
+	}
+
+	@Override
+	public void setup(int maxSize, int states, double epsilon, double max_step) {
+		derivatives.setup(maxSize + 1, states, epsilon, max_step);
+		this.states = states;
+		this.epsilon = epsilon;
+		this.max_step = max_step;
+		k1 = new double[maxSize + 1];
+		k2 = new double[maxSize + 1];
+		k3 = new double[maxSize + 1];
+		k4 = new double[maxSize + 1];
+		y = new double[maxSize + 1];
+		scratch1 = new double[maxSize + 1];
+		scratch2 = new double[maxSize + 1];
+	}
+
+	@Override
+	public void init(double[] migration_rates, double[] coalescent_rates, int lineages) {
+		derivatives.init(migration_rates, coalescent_rates, lineages);
+	}
+
+	@Override
+	public void initWithIndicators(double[] migration_rates, int[] indicators, double[] coalescent_rates, int lineages) {
+		derivatives.initWithIndicators(migration_rates, indicators, coalescent_rates, lineages);
+	}
+
+	@Override
+	public void setUpDynamics(double[][] coalescentRates, double[][] migrationRates, int[][] indicators,
+			double[] nextRateShift) {
+		derivatives.setUpDynamics(coalescentRates, migrationRates, indicators, nextRateShift);
+	}
+
+	@Override
+	public void initAndcalculateValues(int ratesInterval, int lineages, double duration, double[] p, int length) {
+		// uses the per epoch set up of the kernel, so no work arrays are allocated per interval
+		derivatives.initInterval(ratesInterval, lineages);
+		calculateValues(duration, p, length);
+	}
+
+	private void f(double[] p, double[] pDot, int length) {
+		for (int i = 0; i < length; i++) {
+			pDot[i] = 0.0;
+		}
+		derivatives.computeDerivatives(p, pDot, scratch1, scratch2, length);
+	}
+
+	@Override
+	public void calculateValues(double duration, double[] p, int length) {
+		iterations = 0;
+		final int dimension = length - 1;
+		f(p, k1, length);
+		double max = 0.0;
+		for (int i = 0; i < length; i++) {
+			max = FastMath.max(max, FastMath.abs(k1[i]));
+		}
+		// step size and error of the last accepted step within this interval
+		double h = max > 0.0 ? 0.1 * FastMath.cbrt(epsilon) / max : max_step;
+		double errOld = 1e-4;
+
+		while (duration > 0) {
+			iterations++;
+			if (iterations > 10000) {
+				System.err.println("too many iterations, return negative infinity");
+				p[length-1] = Double.NEGATIVE_INFINITY;
+				return;
+			}
+			final double step = FastMath.min(h, FastMath.min(duration, max_step));
+
+			for (int i = 0; i < length; i++) {
+				y[i] = p[i] + 0.5 * step * k1[i];
+			}
+			f(y, k2, length);
+			for (int i = 0; i < length; i++) {
+				y[i] = p[i] + 0.75 * step * k2[i];
+			}
+			f(y, k3, length);
+			for (int i = 0; i < length; i++) {
+				y[i] = p[i] + step * (2.0/9.0 * k1[i] + 1.0/3.0 * k2[i] + 4.0/9.0 * k3[i]);
+			}
+			f(y, k4, length);
+
+			// difference between the 3rd and 2nd order solution, scaled by the tolerance
+			double err = 0.0;
+			boolean valid = true;
+			for (int i = 0; i < length; i++) {
+				final double e = step * (-5.0/72.0 * k1[i] + 1.0/12.0 * k2[i] + 1.0/9.0 * k3[i] - 1.0/8.0 * k4[i]);
+				final double sc = epsilon * (1.0 + FastMath.max(FastMath.abs(p[i]), FastMath.abs(y[i])));
+				err = FastMath.max(err, FastMath.abs(e) / sc);
+			}
+			for (int i = 0; i < dimension; i++) {
+				if (y[i] < 0.0 || y[i] > 1.0) {
+					valid = false;
+					break;
+				}
+			}
+
+			if (!valid || !(err <= 1.0)) {
+				// reject the step
+				if (!valid || Double.isNaN(err)) {
+					h = step * 0.5;
+				} else {
+					h = step * FastMath.max(MIN_FACTOR, SAFETY * Math.pow(err, -1.0/3.0));
+				}
+				if (h < 1e-15) {
+					p[length-1] = Double.NEGATIVE_INFINITY;
+					return;
+				}
+				continue;
+			}
+
+			// accept the step
+			duration -= step;
+			System.arraycopy(y, 0, p, 0, length);
+			if (!normalise(p, dimension, length)) {
+				return;
+			}
+			// first same as last: the derivative at the new point is k4
+			double [] tmp = k1;
+			k1 = k4;
+			k4 = tmp;
+
+			err = FastMath.max(err, 1e-10);
+			double factor = SAFETY * Math.pow(err, -ALPHA) * Math.pow(errOld, BETA);
+			factor = FastMath.min(MAX_FACTOR, FastMath.max(MIN_FACTOR, factor));
+			errOld = err;
+			h = step * factor;
+		}
+	}
+
+	private boolean normalise(double[] p, int dimension, int length) {
+		for (int u = 0; u < dimension; u += states) {
+			double linSum = 0;
+			for (int j = u; j < u + states; j++) {
+				linSum += p[j];
+			}
+			if (!(linSum > 0.0)) {
+				p[length-1] = Double.NEGATIVE_INFINITY;
+				return false;
+			}
+			for (int j = u; j < u + states; j++) {
+				p[j] /= linSum;
+			}
+		}
+		return true;
+	}
+
+}
@@ -0,0 +1,91 @@
+package beast.mascot.ode;
+
+
+/**
+ * Migration rates in compressed sparse row form: for source state k, the non-zero
+ * rates m[k,j] are values[rowStart[k] ... rowStart[k+1]-1] with sink states
+ * columns[rowStart[k] ... rowStart[k+1]-1]. Applying the migration flow to all
+ * lineages costs O(lineages x nnz) instead of O(lineages x states^2).
+ */
+public class SparseMigration {
+
+	// use the sparse form if at most this fraction of the off-diagonal rates is non-zero
+	public final static double MAX_DENSITY = 0.25;
+
+	final int states;
+	final int [] rowStart;
+	final int [] columns;
+	final double [] values;
+
+	private SparseMigration(int states, int [] rowStart, int [] columns, double [] values) {
+		this.states = states;
+		this.rowStart = rowStart;
+		this.columns = columns;
+		this.values = values;
+	}
+
+	/**
+	 * @param migration_rates flattened square matrix of migration rates
+	 * @return sparse form, or null if more than maxDensity of the rates are non-zero
+	 */
+	public static SparseMigration fromDense(double [] migration_rates, int states, double maxDensity) {
+		final int n = (int)(Math.sqrt(migration_rates.length) + 0.5);
+		int nnz = 0;
+		for (int k = 0; k < states; k++) {
+			for (int j = 0; j < states; j++) {
+				if (j != k && migration_rates[k * n + j] != 0.0) {
+					nnz++;
+				}
+			}
+		}
+		if (states < 2 || nnz > maxDensity * states * (states - 1)) {
+			return null;
+		}
+
+		int [] rowStart = new int[states + 1];
+		int [] columns = new int[nnz];
+		double [] values = new double[nnz];
+		int e = 0;
+		for (int k = 0; k < states; k++) {
+			rowStart[k] = e;
+			for (int j = 0; j < states; j++) {
+				if (j != k && migration_rates[k * n + j] != 0.0) {
+					columns[e] = j;
+					values[e] = migration_rates[k * n + j];
+					e++;
+				}
+			}
+		}
+		rowStart[states] = e;
+		return new SparseMigration(states, rowStart, columns, values);
+	}
+
+	public int getNonZeroCount() {
+		return values.length;
+	}
+
+	/** target[lineage, j] += source[lineage, k] * m[k, j] and target[lineage, k] -= source[lineage, k] * m[k, j] for all non-zero m[k, j] **/
+	public void migrate(final double [] source, final double [] target, final int lineages) {
+		final int states = this.states;
+		final int [] rowStart = this.rowStart;
+		final int [] columns = this.columns;
+		final double [] values = this.values;
+		int u = 0;
+		for (int i = 0; i < lineages; i++) {
+			for (int k = 0; k < states; k++) {
+				final double pk = source[u + k];
+				if (pk == 0.0) {
+					continue;
+				}
+				double out = 0;
+				for (int e = rowStart[k]; e < rowStart[k + 1]; e++) {
+					final double migrates = pk * values[e];
+					target[u + columns[e]] += migrates;
+					out += migrates;
+				}
+				target[u + k] -= out;
+			}
+			u += states;
+		}
+	}
+}
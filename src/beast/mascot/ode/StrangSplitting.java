@@ -0,0 +1,333 @@
+package beast.mascot.ode;
+
+
+import java.util.Arrays;
+
+import org.apache.commons.math3.linear.Array2DRowRealMatrix;
+import org.apache.commons.math3.linear.EigenDecomposition;
+import org.apache.commons.math3.linear.MatrixUtils;
+import org.apache.commons.math3.linear.RealMatrix;
+import org.apache.commons.math3.util.FastMath;
+
+/**
+ * Strang splitting of the MASCOT ODE into the linear migration flow, which is
+ * constant within an epoch and applied exactly as p(t) = p(0) exp(Q t), and the
+ * nonlinear coalescent part, which is integrated with an Euler2ndOrder kernel
+ * with all migration rates set to zero. A step of size h is
+ *   exp(Q h/2), coalescent over h, exp(Q h/2)
+ * and consecutive half steps are merged into one exp(Q h).
+ *
+ * The splitting error grows with the coalescent hazard, so the step size is
+ * h = h0 / 2^level with h0 = cbrt(6 epsilon) / max(coalescent rate) and the level
+ * the smallest one with 2^level >= lineages. The eigendecomposition of Q and
+ * exp(Q h/2) and exp(Q h) for each level are kept per epoch, so they are shared
+ * by all lineages and all intervals until setUpDynamics is called again.
+ * If Q has complex eigenvalues, exp(Q t) is computed by scaling and squaring.
+ */
+public class StrangSplitting implements Euler2ndOrderBase {
+
+	final Euler2ndOrder coalescent;
+
+	double epsilon;
+	double max_step;
+	int states;
+	int lineages;
+
+	// an empty indicator list lets the kernel skip the migration loops
+	double[] zeroMigration;
+	final int[] noMigration = new int[0];
+	double[] tmp;
+	// exp(Q h/2) for the remainder of an interval, and work space for expTaylor
+	double[] restHalf, term, next;
+
+	double[][] coalescentRates;
+	double[][] migrationRates;
+	int[][] indicators_;
+	double[] nextRateShift;
+
+	Epoch [] epochs;
+	Epoch current;
+	// the rates the epochs were set up for
+	double[][] setUpCoalescentRates;
+	double[][] setUpMigrationRates;
+	int[][] setUpIndicators;
+
+	/** migration generator of one epoch with its cached exponentials **/
+	class Epoch {
+		// generator, row major, rows sum to zero
+		final double [] Q;
+		final double step;
+		// eigendecomposition Q = V diag(lambda) V^-1, null if lambda is complex
+		double [] V, Vinv, lambda;
+		// exp(Q h/2) and exp(Q h) for h = step / 2^level
+		final double [][] half = new double[32][];
+		final double [][] full = new double[32][];
+
+		Epoch(double [] migration_rates, int [] indicators, double [] coalescent_rates) {
+			Q = generator(migration_rates, indicators);
+			double maxCoal = 0;
+			for (double c : coalescent_rates) {
+				maxCoal = FastMath.max(maxCoal, c);
+			}
+			step = maxCoal > 0 ? FastMath.min(max_step, FastMath.cbrt(epsilon * 6) / maxCoal) : max_step;
+
+			RealMatrix m = new Array2DRowRealMatrix(states, states);
+			for (int k = 0; k < states; k++) {
+				for (int j = 0; j < states; j++) {
+					m.setEntry(k, j, Q[k * states + j]);
+				}
+			}
+			try {
+				EigenDecomposition eigen = new EigenDecomposition(m);
+				if (!eigen.hasComplexEigenvalues()) {
+					lambda = eigen.getRealEigenvalues();
+					V = flatten(eigen.getV());
+					Vinv = flatten(MatrixUtils.inverse(eigen.getV()));
+				}
+			} catch (RuntimeException e) {
+				// no usable decomposition, use scaling and squaring
+				lambda = null;
+			}
+		}
+
+		void prepare(int level) {
+			if (half[level] == null) {
+				final double h = step / (1 << level);
+				half[level] = exp(h / 2, new double[states * states]);
+				full[level] = exp(h, new double[states * states]);
+			}
+		}
+
+		/** exp(Q t) as row major states x states matrix in e **/
+		double [] exp(double t, double [] e) {
+			if (lambda != null) {
+				Arrays.fill(e, 0.0);
+				for (int k = 0; k < states; k++) {
+					for (int l = 0; l < states; l++) {
+						final double v = V[k * states + l] * FastMath.exp(lambda[l] * t);
+						for (int j = 0; j < states; j++) {
+							e[k * states + j] += v * Vinv[l * states + j];
+						}
+					}
+				}
+				return e;
+			}
+			return expTaylor(Q, t, e);
+		}
+	}
+
+	public StrangSplitting(Euler2ndOrder coalescent) {
+		this.coalescent = coalescent;
+	}
+
+	@Override
+	public void setup(int maxSize, int states, double epsilon, double max_step) {
+		coalescent.setup(maxSize + 1, states, epsilon, max_step);
+		this.states = states;
+		this.epsilon = epsilon;
+		this.max_step = max_step;
+		zeroMigration = new double[states * states];
+		tmp = new double[states];
+		restHalf = new double[states * states];
+		term = new double[states * states];
+		next = new double[states * states];
+	}
+
+	@Override
+	public void init(double[] migration_rates, double[] coalescent_rates, int lineages) {
+		current = new Epoch(migration_rates, null, coalescent_rates);
+		this.lineages = lineages;
+		coalescent.initWithIndicators(zeroMigration, noMigration, coalescent_rates, lineages);
+	}
+
+	@Override
+	public void initWithIndicators(double[] migration_rates, int[] indicators, double[] coalescent_rates, int lineages) {
+		current = new Epoch(migration_rates, indicators, coalescent_rates);
+		this.lineages = lineages;
+		coalescent.initWithIndicators(zeroMigration, noMigration, coalescent_rates, lineages);
+	}
+
+	@Override
+	public void setUpDynamics(double[][] coalescentRates, double[][] migrationRates, int[][] indicators,
+			double[] nextRateShift) {
+		this.coalescentRates = coalescentRates;
+		this.migrationRates = migrationRates;
+		this.indicators_ = indicators;
+		this.nextRateShift = nextRateShift;
+		if (epochs == null || epochs.length != coalescentRates.length) {
+			epochs = new Epoch[coalescentRates.length];
+			setUpCoalescentRates = new double[coalescentRates.length][];
+			setUpMigrationRates = new double[coalescentRates.length][];
+			setUpIndicators = new int[coalescentRates.length][];
+		}
+		for (int i = 0; i < coalescentRates.length; i++) {
+			// rates arrays are not changed once set up, so epochs with the same arrays are kept
+			if (setUpCoalescentRates[i] != coalescentRates[i] || setUpMigrationRates[i] != migrationRates[i]
+					|| setUpIndicators[i] != indicators[i]) {
+				epochs[i] = null;
+				setUpCoalescentRates[i] = coalescentRates[i];
+				setUpMigrationRates[i] = migrationRates[i];
+				setUpIndicators[i] = indicators[i];
+			}
+		}
+	}
+
+	@Override
+	public void initAndcalculateValues(int ratesInterval, int lineages, double duration, double[] p, int length) {
+		if (ratesInterval >= nextRateShift.length) {
+			ratesInterval = nextRateShift.length - 1;
+		}
+		if (epochs[ratesInterval] == null) {
+			epochs[ratesInterval] = new Epoch(migrationRates[ratesInterval], indicators_[ratesInterval], coalescentRates[ratesInterval]);
+		}
+		current = epochs[ratesInterval];
+		this.lineages = lineages;
+		coalescent.initWithIndicators(zeroMigration, noMigration, coalescentRates[ratesInterval], lineages);
+		calculateValues(duration, p, length);
+	}
+
+	@Override
+	public void calculateValues(double duration, double[] p, int length) {
+		final Epoch epoch = current;
+		int steps = 0;
+		int level = 0;
+		double step = epoch.step;
+		if (!Double.isInfinite(step)) {
+			while ((1 << level) < lineages && level < 31) {
+				level++;
+			}
+			step /= (1 << level);
+			steps = (int) (duration / step);
+		}
+		// steps * step is NaN for an infinite step
+		double rest = steps > 0 ? duration - steps * step : duration;
+
+		if (steps > 0) {
+			epoch.prepare(level);
+			migrate(epoch.half[level], p);
+			for (int i = 0; i < steps; i++) {
+				if (!coalesce(step, p, length)) {
+					return;
+				}
+				migrate(i < steps - 1 ? epoch.full[level] : epoch.half[level], p);
+			}
+		}
+		if (rest > 0) {
+			double [] half = epoch.exp(rest / 2, restHalf);
+			migrate(half, p);
+			if (!coalesce(rest, p, length)) {
+				return;
+			}
+			migrate(half, p);
+		}
+	}
+
+	private boolean coalesce(double duration, double[] p, int length) {
+		coalescent.iterations = 0;
+		coalescent.calculateValues(duration, p, length);
+		return p[length-1] != Double.NEGATIVE_INFINITY;
+	}
+
+	/** p[lineage,] = p[lineage,] * e for every lineage **/
+	private void migrate(final double [] e, final double[] p) {
+		final int states = this.states;
+		final double [] tmp = this.tmp;
+		for (int u = 0; u < lineages * states; u += states) {
+			for (int j = 0; j < states; j++) {
+				tmp[j] = 0.0;
+			}
+			for (int k = 0; k < states; k++) {
+				final double pk = p[u + k];
+				final int offset = k * states;
+				for (int j = 0; j < states; j++) {
+					tmp[j] += pk * e[offset + j];
+				}
+			}
+			System.arraycopy(tmp, 0, p, u, states);
+		}
+	}
+
+	private double [] generator(double [] migration_rates, int [] indicators) {
+		final int n = (int)(Math.sqrt(migration_rates.length) + 0.5);
+		double [] Q = new double[states * states];
+		if (indicators != null) {
+			for (int j = 0; j < indicators.length / 2; j++) {
+				final int source = indicators[j * 2 + 0];
+				final int sink = indicators[j * 2 + 1];
+				Q[source * states + sink] += migration_rates[source * n + sink];
+			}
+		} else {
+			for (int k = 0; k < states; k++) {
+				for (int j = 0; j < states; j++) {
+					if (j != k) {
+						Q[k * states + j] = migration_rates[k * n + j];
+					}
+				}
+			}
+		}
+		for (int k = 0; k < states; k++) {
+			double out = 0;
+			for (int j = 0; j < states; j++) {
+				if (j != k) {
+					out += Q[k * states + j];
+				}
+			}
+			Q[k * states + k] = -out;
+		}
+		return Q;
+	}
+
+	private double [] flatten(RealMatrix m) {
+		double [] f = new double[states * states];
+		for (int k = 0; k < states; k++) {
+			for (int j = 0; j < states; j++) {
+				f[k * states + j] = m.getEntry(k, j);
+			}
+		}
+		return f;
+	}
+
+	/** exp(Q t) by scaling and squaring of a truncated Taylor series **/
+	private double [] expTaylor(double [] Q, double t, double [] e) {
+		final int s2 = states * states;
+		double norm = 0;
+		for (int k = 0; k < states; k++) {
+			norm = FastMath.max(norm, -Q[k * states + k] * 2 * t);
+		}
+		int squarings = norm > 0.5 ? (int) FastMath.ceil(FastMath.log(norm / 0.5) / FastMath.log(2)) : 0;
+		final double scale = t / FastMath.pow(2, squarings);
+
+		final double [] term = this.term;
+		final double [] next = this.next;
+		Arrays.fill(e, 0.0);
+		Arrays.fill(term, 0.0);
+		for (int k = 0; k < states; k++) {
+			e[k * states + k] = 1;
+			term[k * states + k] = 1;
+		}
+		for (int order = 1; order <= 12; order++) {
+			multiply(term, Q, next);
+			for (int i = 0; i < s2; i++) {
+				term[i] = next[i] * scale / order;
+				e[i] += term[i];
+			}
+		}
+		for (int i = 0; i < squarings; i++) {
+			multiply(e, e, next);
+			System.arraycopy(next, 0, e, 0, s2);
+		}
+		return e;
+	}
+
+	private void multiply(double [] a, double [] b, double [] c) {
+		for (int k = 0; k < states; k++) {
+			for (int j = 0; j < states; j++) {
+				double sum = 0;
+				for (int l = 0; l < states; l++) {
+					sum += a[k * states + l] * b[l * states + j];
+				}
+				c[k * states + j] = sum;
+			}
+		}
+	}
+}
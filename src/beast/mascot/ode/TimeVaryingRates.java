@@ -0,0 +1,13 @@
+package beast.mascot.ode;
+
+/**
+ * Coalescent rates that change continuously with time within a rates interval, 
+ * so the integrator has to evaluate them at every step. Migration rates do not 
+ * vary within a rates interval, they only change from one interval to the next.
+ */
+public interface TimeVaryingRates {
+
+	/** sets rates to the coalescent rates of every state at the given time in the given rates interval **/
+	public void getCoalescentRates(int ratesInterval, double time, double[] rates);
+
+}
@@ -1,6 +1,10 @@
 package beast.mascot.distribution;
 
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
 
 import org.junit.Test;
 
@@ -10,12 +14,14 @@ import beast.core.parameter.RealParameter;
 import beast.evolution.alignment.Alignment;
 import beast.evolution.alignment.Sequence;
 import beast.evolution.alignment.TaxonSet;
+import beast.evolution.tree.Node;
 import beast.evolution.tree.TraitSet;
 import beast.evolution.tree.Tree;
 import beast.evolution.tree.coalescent.Coalescent;
 import beast.evolution.tree.coalescent.ConstantPopulation;
 import beast.evolution.tree.coalescent.TreeIntervals;
 import beast.mascot.dynamics.Constant;
+import beast.mascot.dynamics.Dynamics;
 import beast.mascot.ode.Euler2ndOrder;
 import beast.util.TreeParser;
 import junit.framework.Assert;
@@ -134,4 +140,380 @@ public class MascotTest  {
 		Assert.assertTrue(Math.abs(mascot.calculateLogP()-coalescent.calculateLogP())<0.000000001);
 	}
 
+	@Test
+	public void testMascotCollapseLineages(){
+		
+		//build alignment
+		Sequence sequence1 = new Sequence();
+		Sequence sequence2 = new Sequence();
+		Sequence sequence3 = new Sequence();
+		Sequence sequence4 = new Sequence();
+		Sequence sequence5 = new Sequence();
+		sequence1.initByName("taxon", "a1", "value", "???");
+		sequence2.initByName("taxon", "a2", "value", "???");
+		sequence3.initByName("taxon", "a3", "value", "???");
+		sequence4.initByName("taxon", "b1", "value", "???");
+		sequence5.initByName("taxon", "b2", "value", "???");
+		
+		
+		Alignment alignment = new Alignment();
+		alignment.initByName("sequence", sequence1,"sequence", sequence2,"sequence", sequence3,"sequence", sequence4, "sequence", sequence5);
+		
+		TaxonSet taxa = new TaxonSet();
+		taxa.initByName("alignment", alignment);
+		
+		//build trait set
+		TraitSet traitSet = new TraitSet();
+		traitSet.initByName("value", "a1=a,a2=a,a3=a,b1=b,b2=b", "traitname", "type", "taxa", taxa);
+		
+		// a1, a2 and a3 are sampled in the same state at the same time
+		Tree tree = new TreeParser("(((a1:1,a2:1):1,(b1:1,b2:1.5):1.5):1,a3:3)");
+		tree.initByName("taxonset", taxa, "trait", traitSet);
+		
+		for (String implementation : new String[] {"java", "statemajor"}) {
+			double [] logP = new double[2];
+			for (int i = 0; i < 2; i++) {
+				StructuredTreeIntervals st = new StructuredTreeIntervals();
+				st.initByName("tree",tree);
+				
+				// build constant dynamics
+				RealParameter Ne = new RealParameter("1 2");
+				RealParameter backwardsMigration = new RealParameter("0.3 2");
+				int dim = 2;
+				Constant constant = new Constant();
+				constant.initByName("backwardsMigration", backwardsMigration, "Ne", Ne, "dimension", dim, "typeTrait", traitSet);
+		
+				Mascot mascot = new Mascot();
+				mascot.initByName("structuredTreeIntervals", st, "dynamics", constant, "implementation", implementation, "useCache", false, "collapseLineages", i == 1);
+				logP[i] = mascot.calculateLogP();
+			}
+			Assert.assertEquals(logP[0], logP[1], 1e-10);
+		}
+		
+		// the cache does not support collapsed lineages
+		StructuredTreeIntervals st = new StructuredTreeIntervals();
+		st.initByName("tree",tree);
+		Constant constant = new Constant();
+		constant.initByName("backwardsMigration", new RealParameter("0.3 2"), "Ne", new RealParameter("1 2"), "dimension", 2, "typeTrait", traitSet);
+		try {
+			new Mascot().initByName("structuredTreeIntervals", st, "dynamics", constant, "implementation", "java", "useCache", true, "collapseLineages", true);
+			Assert.fail("collapseLineages with useCache should be rejected");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testMascotAllocationFree(){
+		java.lang.management.ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+		if (!(threadBean instanceof com.sun.management.ThreadMXBean) 
+				|| !((com.sun.management.ThreadMXBean) threadBean).isThreadAllocatedMemorySupported()) {
+			return;
+		}
+		com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) threadBean;
+		
+		//build alignment
+		Sequence sequence1 = new Sequence();
+		Sequence sequence2 = new Sequence();
+		Sequence sequence3 = new Sequence();
+		Sequence sequence4 = new Sequence();
+		Sequence sequence5 = new Sequence();
+		sequence1.initByName("taxon", "a1", "value", "???");
+		sequence2.initByName("taxon", "a2", "value", "???");
+		sequence3.initByName("taxon", "a3", "value", "???");
+		sequence4.initByName("taxon", "b1", "value", "???");
+		sequence5.initByName("taxon", "b2", "value", "???");
+		
+		Alignment alignment = new Alignment();
+		alignment.initByName("sequence", sequence1,"sequence", sequence2,"sequence", sequence3,"sequence", sequence4, "sequence", sequence5);
+		
+		TaxonSet taxa = new TaxonSet();
+		taxa.initByName("alignment", alignment);
+		
+		//build trait set
+		TraitSet traitSet = new TraitSet();
+		traitSet.initByName("value", "a1=a,a2=a,a3=a,b1=b,b2=b", "traitname", "type", "taxa", taxa);
+		
+		// the same tree and dynamics with and without the cache
+		Tree [] trees = new Tree[2];
+		StructuredTreeIntervals [] intervals = new StructuredTreeIntervals[2];
+		Mascot [] mascots = new Mascot[2];
+		for (int i = 0; i < 2; i++) {
+			trees[i] = new TreeParser("(((a1:1,a2:2):1,(b1:1,b2:1.5):2):1,a3:1)");
+			trees[i].initByName("taxonset", taxa, "trait", traitSet);
+			intervals[i] = new StructuredTreeIntervals();
+			intervals[i].initByName("tree",trees[i]);
+			
+			// build constant dynamics
+			RealParameter Ne = new RealParameter("1 2");
+			RealParameter backwardsMigration = new RealParameter("0.3 2");
+			int dim = 2;
+			Constant constant = new Constant();
+			constant.initByName("backwardsMigration", backwardsMigration, "Ne", Ne, "dimension", dim, "typeTrait", traitSet);
+	
+			mascots[i] = new Mascot();
+			mascots[i].initByName("structuredTreeIntervals", intervals[i], "dynamics", constant, "implementation", "java", "useCache", i == 0);
+			mascots[i].calculateLogP();
+		}
+		Tree tree = trees[0];
+		StructuredTreeIntervals st = intervals[0];
+		Mascot mascot = mascots[0];
+		
+		// a height proposal on the parent of a1 and a2, which is rejected again
+		final int nr = tree.getNode(0).getParent().getNr();
+		final double oldHeight = tree.getNode(nr).getHeight();
+		final double newHeight = (oldHeight + tree.getNode(nr).getParent().getHeight()) / 2;
+		final double expected = mascots[1].getCurrentLogP();
+		trees[1].getNode(nr).setHeight(newHeight);
+		intervals[1].requiresRecalculation();
+		final double expectedProposed = mascots[1].calculateLogP();
+		
+		// warm up, so that the JIT has compiled the hot path
+		double logP = 0, proposedLogP = 0;
+		for (int i = 0; i < 20000; i++) {
+			st.store();
+			mascot.store();
+			tree.getNode(nr).setHeight(newHeight);
+			st.requiresRecalculation();
+			proposedLogP = mascot.calculateLogP();
+			tree.getNode(nr).setHeight(oldHeight);
+			st.restore();
+			mascot.restore();
+			tree.setEverythingDirty(false);
+			logP = mascot.calculateLogP();
+		}
+		final int calls = 1000;
+		long threadId = Thread.currentThread().getId();
+		long before = bean.getThreadAllocatedBytes(threadId);
+		for (int i = 0; i < calls; i++) {
+			st.store();
+			mascot.store();
+			tree.getNode(nr).setHeight(newHeight);
+			st.requiresRecalculation();
+			proposedLogP = mascot.calculateLogP();
+			tree.getNode(nr).setHeight(oldHeight);
+			st.restore();
+			mascot.restore();
+			tree.setEverythingDirty(false);
+			logP = mascot.calculateLogP();
+		}
+		long allocated = bean.getThreadAllocatedBytes(threadId) - before;
+		Assert.assertEquals(expected, logP, 1e-10);
+		Assert.assertEquals(expectedProposed, proposedLogP, 1e-10);
+		// the steady state should not allocate, allow a little for the measurement itself
+		Assert.assertTrue("a store, propose and restore cycle allocated " + allocated / calls + " bytes", allocated < 16 * calls);
+	}
+
+	@Test
+	public void testMascotCacheStress(){
+		Random random = new Random(127);
+		final int tips = 40;
+		
+		//build alignment
+		Sequence [] sequences = new Sequence[tips];
+		StringBuilder traits = new StringBuilder();
+		for (int i = 0; i < tips; i++) {
+			sequences[i] = new Sequence();
+			sequences[i].initByName("taxon", "t" + i, "value", "???");
+			traits.append((i > 0 ? "," : "") + "t" + i + "=" + (random.nextBoolean() ? "a" : "b"));
+		}
+		Alignment alignment = new Alignment();
+		for (Sequence sequence : sequences) {
+			alignment.setInputValue("sequence", sequence);
+		}
+		alignment.initAndValidate();
+		
+		TaxonSet taxa = new TaxonSet();
+		taxa.initByName("alignment", alignment);
+		
+		//build trait set
+		TraitSet traitSet = new TraitSet();
+		traitSet.initByName("value", traits.toString(), "traitname", "type", "taxa", taxa);
+		
+		String newick = randomNewick(tips, random);
+		
+		// the same tree and dynamics with and without the cache
+		Tree [] trees = new Tree[2];
+		StructuredTreeIntervals [] intervals = new StructuredTreeIntervals[2];
+		EpochDynamics [] dynamics = new EpochDynamics[2];
+		Mascot [] mascots = new Mascot[2];
+		for (int i = 0; i < 2; i++) {
+			trees[i] = new TreeParser(newick);
+			trees[i].initByName("taxonset", taxa, "trait", traitSet);
+			intervals[i] = new StructuredTreeIntervals();
+			intervals[i].initByName("tree", trees[i]);
+			dynamics[i] = new EpochDynamics(4, 1.5, new Random(3));
+			dynamics[i].initByName("dimension", 2, "typeTrait", traitSet);
+			mascots[i] = new Mascot();
+			mascots[i].initByName("structuredTreeIntervals", intervals[i], "dynamics", dynamics[i], "implementation", "java", 
+					"useCache", i == 0, "checkpointSpacing", 3, "verifyCache", 1);
+			mascots[i].calculateLogP();
+		}
+		
+		// random tree height and dynamics proposals, half of which are rejected
+		for (int step = 0; step < 500; step++) {
+			for (int i = 0; i < 2; i++) {
+				intervals[i].store();
+				mascots[i].store();
+			}
+			final boolean treeProposal = random.nextBoolean();
+			int nr = 0;
+			double oldHeight = 0;
+			if (treeProposal) {
+				nr = tips + random.nextInt(tips - 1);
+				Node node = trees[0].getNode(nr);
+				double lower = Math.max(node.getLeft().getHeight(), node.getRight().getHeight());
+				double upper = node.isRoot() ? node.getHeight() + 0.5 : node.getParent().getHeight();
+				double height = lower + random.nextDouble() * (upper - lower);
+				oldHeight = node.getHeight();
+				for (int i = 0; i < 2; i++) {
+					trees[i].getNode(nr).setHeight(height);
+					// as BEAST does for calculation nodes that depend on a dirty tree
+					intervals[i].requiresRecalculation();
+				}
+			} else {
+				int index = random.nextInt(dynamics[0].coalescentRates.length);
+				double value = dynamics[0].coalescentRates[index] * Math.exp(random.nextGaussian() * 0.5);
+				for (EpochDynamics d : dynamics) {
+					d.propose(index, value);
+				}
+			}
+			
+			// the cached calculation is verified against a full one by verifyCache as well
+			Assert.assertEquals("step " + step, mascots[1].calculateLogP(), mascots[0].calculateLogP(), 1e-8);
+			
+			final boolean accept = random.nextBoolean();
+			for (int i = 0; i < 2; i++) {
+				if (!accept) {
+					if (treeProposal) {
+						trees[i].getNode(nr).setHeight(oldHeight);
+					} else {
+						dynamics[i].reject();
+					}
+					intervals[i].restore();
+					mascots[i].restore();
+				}
+				trees[i].setEverythingDirty(false);
+				dynamics[i].clean();
+			}
+		}
+		
+		// verifyCache also catches a change to the shared cached rates
+		dynamics[0].getCachedCoalescentRate(0)[0] *= 2;
+		try {
+			mascots[0].calculateLogP();
+			Assert.fail("changed cached rates were not detected");
+		} catch (RuntimeException e) {
+			Assert.assertTrue(e.getMessage(), e.getMessage().startsWith("Cached rates of epoch 0"));
+		}
+	}
+	
+	/** random tree with tips sampled through time **/
+	private static String randomNewick(int tips, Random random) {
+		List<String> nodes = new ArrayList<>();
+		List<Double> heights = new ArrayList<>();
+		for (int i = 0; i < tips; i++) {
+			nodes.add("t" + i);
+			heights.add(random.nextDouble());
+		}
+		double height = 1.0;
+		while (nodes.size() > 1) {
+			int a = random.nextInt(nodes.size());
+			String left = nodes.remove(a);
+			double leftHeight = heights.remove(a);
+			int b = random.nextInt(nodes.size());
+			String right = nodes.remove(b);
+			double rightHeight = heights.remove(b);
+			height += random.nextDouble() * 0.3;
+			nodes.add("(" + left + ":" + (height - leftHeight) + "," + right + ":" + (height - rightHeight) + ")");
+			heights.add(height);
+		}
+		return nodes.get(0);
+	}
+	
+	/** piecewise constant dynamics, whose parameters are changed directly by the test **/
+	static class EpochDynamics extends Dynamics {
+		final int epochs;
+		final double epochLength;
+		double [] coalescentRates, storedCoalescentRates;
+		double [] migrationRates;
+		boolean [] epochIsDirty;
+		boolean dirty = false;
+		
+		EpochDynamics(int epochs, double epochLength, Random random) {
+			this.epochs = epochs;
+			this.epochLength = epochLength;
+			coalescentRates = new double[epochs * 2];
+			for (int i = 0; i < coalescentRates.length; i++) {
+				coalescentRates[i] = 0.5 + random.nextDouble();
+			}
+			storedCoalescentRates = coalescentRates.clone();
+			migrationRates = new double[]{0, 0.4, 0.8, 0};
+			epochIsDirty = new boolean[epochs];
+		}
+		
+		void propose(int index, double value) {
+			store();
+			System.arraycopy(coalescentRates, 0, storedCoalescentRates, 0, coalescentRates.length);
+			coalescentRates[index] = value;
+			epochIsDirty[index / 2] = true;
+			dirty = true;
+			requiresRecalculation();
+		}
+		
+		void reject() {
+			System.arraycopy(storedCoalescentRates, 0, coalescentRates, 0, coalescentRates.length);
+			restore();
+		}
+		
+		void clean() {
+			Arrays.fill(epochIsDirty, false);
+			dirty = false;
+		}
+		
+		@Override
+		public boolean isDirtyCalculation() {
+			return dirty;
+		}
+
+		@Override
+		public void recalculate() {
+		}
+
+		@Override
+		public double getInterval(int i) {
+			return i < epochs - 1 ? epochLength : Double.POSITIVE_INFINITY;
+		}
+
+		@Override
+		public double[] getIntervals() {
+			double [] intervals = new double[epochs];
+			for (int i = 0; i < epochs; i++) {
+				intervals[i] = getInterval(i);
+			}
+			return intervals;
+		}
+
+		@Override
+		public boolean intervalIsDirty(int i) {
+			return epochIsDirty[Math.min(i, epochs - 1)];
+		}
+
+		@Override
+		public double[] getCoalescentRate(int i) {
+			int epoch = Math.min(i, epochs - 1);
+			return Arrays.copyOfRange(coalescentRates, epoch * 2, epoch * 2 + 2);
+		}
+
+		@Override
+		public double[] getBackwardsMigration(int i) {
+			return migrationRates.clone();
+		}
+
+		@Override
+		public int getEpochCount() {
+			return epochs;
+		}
+	}
+
 }
@@ -0,0 +1,147 @@
+package beast.mascot.glmmodel;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import beast.core.parameter.BooleanParameter;
+import beast.core.parameter.RealParameter;
+import junit.framework.Assert;
+
+
+public class LogLinearTest  {
+
+	@Test
+	public void testIncrementalLogRates(){
+		Random random = new Random(127);
+		final int covariateCount = 6, intervals = 4, entries = 3;
+
+		List<RealParameter> covariates = new ArrayList<>();
+		Double [] scalers = new Double[covariateCount];
+		Boolean [] indicators = new Boolean[covariateCount];
+		LogLinear glm = new LogLinear();
+		for (int j = 0; j < covariateCount; j++) {
+			Double [] values = new Double[intervals * entries];
+			for (int k = 0; k < values.length; k++) {
+				values[k] = random.nextGaussian();
+			}
+			covariates.add(new RealParameter(values));
+			glm.setInputValue("covariates", covariates.get(j));
+			scalers[j] = random.nextGaussian();
+			indicators[j] = random.nextBoolean();
+		}
+		RealParameter scaler = new RealParameter(scalers);
+		BooleanParameter indicator = new BooleanParameter(indicators);
+		glm.setInputValue("scaler", scaler);
+		glm.setInputValue("indicator", indicator);
+		glm.setInputValue("clock", new RealParameter("0.5"));
+		glm.initAndValidate();
+		glm.setNrIntervals(intervals);
+		assertRates(glm, covariates, scaler, indicator, 0.5);
+
+		// random scaler and indicator moves, half of which are rejected
+		for (int step = 0; step < 1000; step++) {
+			glm.store();
+			final int j = random.nextInt(covariateCount);
+			final double oldScaler = scaler.getValue(j);
+			final boolean oldIndicator = indicator.getValue(j);
+			if (random.nextBoolean()) {
+				scaler.setValue(j, oldScaler + random.nextGaussian());
+			} else {
+				indicator.setValue(j, !oldIndicator);
+			}
+			assertRates(glm, covariates, scaler, indicator, 0.5);
+
+			if (random.nextBoolean()) {
+				scaler.setValue(j, oldScaler);
+				indicator.setValue(j, oldIndicator);
+				glm.restore();
+				assertRates(glm, covariates, scaler, indicator, 0.5);
+			}
+			scaler.setEverythingDirty(false);
+			indicator.setEverythingDirty(false);
+		}
+
+		// a changed covariate is loaded once per proposal, and again after a restore
+		glm.store();
+		final double oldValue = covariates.get(0).getValue(1);
+		covariates.get(0).setValue(1, oldValue + 1.0);
+		indicator.setValue(0, true);
+		assertRates(glm, covariates, scaler, indicator, 0.5);
+		DoubleBuffer loaded = glm.getCovariate(0);
+		glm.getRates(0);
+		Assert.assertSame(loaded, glm.getCovariate(0));
+		covariates.get(0).setValue(1, oldValue);
+		glm.restore();
+		covariates.get(0).setEverythingDirty(false);
+		assertRates(glm, covariates, scaler, indicator, 0.5);
+	}
+
+	@Test
+	public void testCovariateFile() throws IOException {
+		final int covariateCount = 2, intervals = 3, entries = 2;
+		File file = File.createTempFile("covariates", ".bin");
+		file.deleteOnExit();
+		ByteBuffer buffer = ByteBuffer.allocate(CovariateFile.HEADER_SIZE + 8 * covariateCount * intervals * entries)
+				.order(ByteOrder.LITTLE_ENDIAN);
+		buffer.putInt(covariateCount).putInt(intervals).putInt(entries).putInt(0);
+		for (int v = 0; v < covariateCount * intervals * entries; v++) {
+			buffer.putDouble(0.25 * v - 1);
+		}
+		try (FileOutputStream out = new FileOutputStream(file)) {
+			out.write(buffer.array());
+		}
+
+		CovariateFile covariateFile = new CovariateFile();
+		covariateFile.initByName("fileName", file.getPath(), "names", "distance trade");
+		Assert.assertEquals(covariateCount, covariateFile.getCovariateCount());
+		Assert.assertEquals(intervals * entries, covariateFile.getDimension());
+		Assert.assertEquals("trade", covariateFile.getName(1));
+		for (int j = 0; j < covariateCount; j++) {
+			for (int k = 0; k < intervals * entries; k++) {
+				Assert.assertEquals(0.25 * (j * intervals * entries + k) - 1, covariateFile.getCovariate(j).get(k), 0.0);
+			}
+		}
+
+		// the file replaces the covariate parameters
+		LogLinear glm = new LogLinear();
+		glm.initByName("covariateFile", covariateFile, "scaler", new RealParameter("0.5 -1"),
+				"indicator", new BooleanParameter(new Boolean[] {true, true}), "clock", new RealParameter("2"));
+		glm.setNrIntervals(intervals);
+		Assert.assertEquals("distance", glm.getCovariateID(0));
+		for (int i = 0; i < intervals; i++) {
+			double [] rates = glm.getRates(i);
+			for (int k = 0; k < entries; k++) {
+				final int index = i * entries + k;
+				final double logRate = 0.5 * covariateFile.getCovariate(0).get(index) - covariateFile.getCovariate(1).get(index);
+				Assert.assertEquals(2 * Math.exp(logRate), rates[k], 1e-12);
+			}
+		}
+	}
+
+	/** compares the rates of every interval with a sum over the covariates from scratch **/
+	private static void assertRates(LogLinear glm, List<RealParameter> covariates, RealParameter scaler,
+			BooleanParameter indicator, double clock) {
+		for (int i = 0; i < glm.nrIntervals; i++) {
+			double [] rates = glm.getRates(i);
+			for (int k = 0; k < glm.verticalEntries; k++) {
+				double logRate = 0;
+				for (int j = 0; j < covariates.size(); j++) {
+					if (indicator.getValue(j)) {
+						logRate += scaler.getValue(j) * covariates.get(j).getValue(i * glm.verticalEntries + k);
+					}
+				}
+				final double expected = clock * Math.exp(logRate);
+				Assert.assertEquals(expected, rates[k], 1e-12 * expected);
+			}
+		}
+	}
+}
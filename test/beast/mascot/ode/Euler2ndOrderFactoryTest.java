@@ -0,0 +1,107 @@
+package beast.mascot.ode;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import junit.framework.Assert;
+
+
+public class Euler2ndOrderFactoryTest  {
+
+	@Test
+	public void testGeneratedMatchesUnrolled(){
+		Euler2ndOrderBase [] unrolled = {new Euler2ndOrder2(), new Euler2ndOrder3(), new Euler2ndOrder4(), new Euler2ndOrder5(),
+				new Euler2ndOrder6(), new Euler2ndOrder7(), new Euler2ndOrder8(), new Euler2ndOrder9(), new Euler2ndOrder10()};
+		Random random = new Random(127);
+		int lineages = 7;
+
+		for (int states = 2; states <= 10; states++) {
+			Euler2ndOrderBase generated = Euler2ndOrderFactory.newInstance(states);
+			Assert.assertEquals(Euler2ndOrderFactory.className(states), generated.getClass().getSimpleName());
+			Euler2ndOrderBase reference = unrolled[states - 2];
+
+			// migration rates
+			double[] migration_rates = new double[states * states];
+			for (int a = 0; a < states; a++) {
+				for (int b = 0; b < states; b++) {
+					if (a != b) {
+						migration_rates[a * states + b] = random.nextDouble();
+					}
+				}
+			}
+
+			// coal rates
+			double[] coalescent_rates = new double[states];
+			for (int j = 0; j < states; j++) {
+				coalescent_rates[j] = 0.5 + random.nextDouble();
+			}
+
+			// lins, last entry holds the log probability
+			int length = lineages * states + 1;
+			double[] p = new double[length];
+			for (int i = 0; i < lineages; i++) {
+				p[i * states + random.nextInt(states)] = 1.0;
+			}
+			double[] p_ref = p.clone();
+
+			generated.setup(length, states, 0.001, 0.2);
+			reference.setup(length, states, 0.001, 0.2);
+			generated.init(migration_rates, coalescent_rates, lineages);
+			reference.init(migration_rates, coalescent_rates, lineages);
+			generated.calculateValues(1.0, p, length);
+			reference.calculateValues(1.0, p_ref, length);
+
+			for (int i = 0; i < length; i++) {
+				Assert.assertEquals(p_ref[i], p[i], 1e-12);
+			}
+		}
+	}
+
+	@Test
+	public void testGeneratedMultiplicator(){
+		Random random = new Random(131);
+		int lineages = 6;
+
+		for (int states = 11; states <= 14; states++) {
+			Euler2ndOrder generated = Euler2ndOrderFactory.newInstance(states);
+			Assert.assertTrue(Euler2ndOrderFactory.isGenerated(generated));
+			Euler2ndOrder reference = new Euler2ndOrder();
+
+			double[] migration_rates = new double[states * states];
+			for (int a = 0; a < states; a++) {
+				for (int b = 0; b < states; b++) {
+					if (a != b) {
+						migration_rates[a * states + b] = random.nextDouble();
+					}
+				}
+			}
+			double[] coalescent_rates = new double[states];
+			for (int j = 0; j < states; j++) {
+				coalescent_rates[j] = 0.5 + random.nextDouble();
+			}
+
+			// every lineage stands for one to three identical ones
+			int[] multiplicator = new int[lineages];
+			int length = lineages * states + 1;
+			double[] p = new double[length];
+			for (int i = 0; i < lineages; i++) {
+				multiplicator[i] = 1 + random.nextInt(3);
+				p[i * states + random.nextInt(states)] = 1.0;
+			}
+			double[] p_ref = p.clone();
+
+			for (Euler2ndOrder euler : new Euler2ndOrder[] {generated, reference}) {
+				euler.setup(length, states, 0.001, 0.2);
+				euler.setUpDynamics(new double[][] {coalescent_rates}, new double[][] {migration_rates}, new int[][] {null},
+						new double[] {Double.POSITIVE_INFINITY});
+			}
+			generated.initAndcalculateValues(0, lineages, multiplicator, 1.0, p, length);
+			reference.initAndcalculateValues(0, lineages, multiplicator, 1.0, p_ref, length);
+
+			for (int i = 0; i < length; i++) {
+				Assert.assertEquals(p_ref[i], p[i], 1e-12);
+			}
+		}
+	}
+}
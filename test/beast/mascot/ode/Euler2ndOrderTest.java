@@ -1,6 +1,7 @@
 package beast.mascot.ode;
 
 import java.util.Arrays;
+import java.util.Random;
 
 import org.junit.Test;
 
@@ -97,4 +98,578 @@ public class Euler2ndOrderTest  {
 
 
 	}
+
+	@Test
+	public void testEuler2ndOrderSIMD(){
+		int states = 5;
+		int lineages = 6;
+		Random random = new Random(5);
+
+		double[] migration_rates = new double[states*states];
+		for (int a = 0; a < states; a++)
+			for (int b = 0; b < states; b++)
+				if (a != b)
+					migration_rates[a*states+b] = random.nextDouble();
+		double[] coalescent_rates = {1, 2, 0.5, 3, 1.5};
+
+		int length = lineages * states + 1;
+		double[] p = new double[length];
+		for (int i = 0; i < lineages; i++)
+			p[i*states + random.nextInt(states)] = 1;
+		double[] p_simd = p.clone();
+
+		Euler2ndOrder euler2ndOrder = new Euler2ndOrder();
+		euler2ndOrder.setup(length, states, 0.001, 0.2);
+		euler2ndOrder.init(migration_rates, coalescent_rates, lineages);
+		euler2ndOrder.calculateValues(1.0, p, length);
+
+		Euler2ndOrder euler2ndOrderSIMD = new Euler2ndOrderSIMD();
+		euler2ndOrderSIMD.setup(length, states, 0.001, 0.2);
+		euler2ndOrderSIMD.init(migration_rates, coalescent_rates, lineages);
+		euler2ndOrderSIMD.calculateValues(1.0, p_simd, length);
+
+		// only the order of summation differs
+		for (int i = 0; i < length; i++)
+			Assert.assertEquals(p[i], p_simd[i], 1e-10);
+	}
+
+	@Test
+	public void testEuler2ndOrderSIMDSparse(){
+		int states = 8;
+		int lineages = 5;
+		Random random = new Random(23);
+
+		// a ring of migration routes
+		double[] migration_rates = new double[states*states];
+		for (int a = 0; a < states; a++)
+			migration_rates[a*states + (a+1) % states] = random.nextDouble();
+		double[] coalescent_rates = new double[states];
+		for (int a = 0; a < states; a++)
+			coalescent_rates[a] = 0.5 + random.nextDouble();
+
+		int length = lineages * states + 1;
+		double[] p = new double[length];
+		for (int i = 0; i < lineages; i++)
+			p[i*states + random.nextInt(states)] = 1;
+		double[] p_simd = p.clone();
+
+		// the constructor does not set up the sparse form
+		Euler2ndOrder euler2ndOrder = new Euler2ndOrder(migration_rates, coalescent_rates, lineages, states, 0.001, 0.2);
+		euler2ndOrder.calculateValues(1.0, p, new double[length], new double[length], new double[length], length);
+
+		Euler2ndOrder euler2ndOrderSIMD = new Euler2ndOrderSIMD();
+		euler2ndOrderSIMD.setup(length, states, 0.001, 0.2);
+		euler2ndOrderSIMD.init(migration_rates, coalescent_rates, lineages);
+		Assert.assertNotNull(euler2ndOrderSIMD.sparse);
+		euler2ndOrderSIMD.calculateValues(1.0, p_simd, length);
+
+		for (int i = 0; i < length; i++)
+			Assert.assertEquals(p[i], p_simd[i], 1e-10);
+	}
+
+	@Test
+	public void testEuler2ndOrderStateMajor(){
+		int states = 4;
+		int lineages = 6;
+		int capacity = 9;
+		Random random = new Random(11);
+
+		double[] migration_rates = new double[states*states];
+		for (int a = 0; a < states; a++)
+			for (int b = 0; b < states; b++)
+				if (a != b)
+					migration_rates[a*states+b] = random.nextDouble();
+		double[] coalescent_rates = {1, 2, 0.5, 3};
+
+		int length = lineages * states + 1;
+		double[] p = new double[length];
+		double[] p_sm = new double[capacity * states + 1];
+		for (int i = 0; i < lineages; i++) {
+			int state = random.nextInt(states);
+			p[i*states + state] = 1;
+			p_sm[state*capacity + i] = 1;
+		}
+
+		Euler2ndOrder euler2ndOrder = new Euler2ndOrder();
+		euler2ndOrder.setup(length, states, 0.001, 0.2);
+		euler2ndOrder.init(migration_rates, coalescent_rates, lineages);
+		euler2ndOrder.calculateValues(1.0, p, length);
+
+		Euler2ndOrder euler2ndOrderStateMajor = new Euler2ndOrderStateMajor();
+		euler2ndOrderStateMajor.setup(capacity * states, states, 0.001, 0.2);
+		euler2ndOrderStateMajor.init(migration_rates, coalescent_rates, lineages);
+		euler2ndOrderStateMajor.calculateValues(1.0, p_sm, p_sm.length);
+
+		for (int i = 0; i < lineages; i++)
+			for (int j = 0; j < states; j++)
+				Assert.assertEquals(p[i*states + j], p_sm[j*capacity + i], 1e-10);
+		Assert.assertEquals(p[length-1], p_sm[p_sm.length-1], 1e-10);
+	}
+
+	@Test
+	public void testEuler2ndOrderStateMajorMultiplicator(){
+		int states = 4;
+		int lineages = 6;
+		int capacity = 9;
+		Random random = new Random(17);
+
+		double[] migration_rates = new double[states*states];
+		for (int a = 0; a < states; a++)
+			for (int b = 0; b < states; b++)
+				if (a != b)
+					migration_rates[a*states+b] = random.nextDouble();
+		double[] coalescent_rates = {1, 2, 0.5, 3};
+
+		int length = lineages * states + 1;
+		int[] multiplicator = new int[lineages];
+		double[] p = new double[length];
+		double[] p_sm = new double[capacity * states + 1];
+		for (int i = 0; i < lineages; i++) {
+			int state = random.nextInt(states);
+			multiplicator[i] = 1 + random.nextInt(3);
+			p[i*states + state] = 1;
+			p_sm[state*capacity + i] = 1;
+		}
+
+		Euler2ndOrder euler2ndOrder = new Euler2ndOrder();
+		euler2ndOrder.setup(length, states, 0.001, 0.2);
+		euler2ndOrder.setUpDynamics(new double[][] {coalescent_rates}, new double[][] {migration_rates}, new int[][] {null},
+				new double[] {Double.POSITIVE_INFINITY});
+		euler2ndOrder.initAndcalculateValues(0, lineages, multiplicator, 1.0, p, length);
+
+		Euler2ndOrder euler2ndOrderStateMajor = new Euler2ndOrderStateMajor();
+		euler2ndOrderStateMajor.setup(capacity * states, states, 0.001, 0.2);
+		euler2ndOrderStateMajor.setUpDynamics(new double[][] {coalescent_rates}, new double[][] {migration_rates}, new int[][] {null},
+				new double[] {Double.POSITIVE_INFINITY});
+		Assert.assertTrue(euler2ndOrderStateMajor.supportsMultiplicator());
+		euler2ndOrderStateMajor.initAndcalculateValues(0, lineages, multiplicator, 1.0, p_sm, p_sm.length);
+
+		for (int i = 0; i < lineages; i++)
+			for (int j = 0; j < states; j++)
+				Assert.assertEquals(p[i*states + j], p_sm[j*capacity + i], 1e-10);
+		Assert.assertEquals(p[length-1], p_sm[p_sm.length-1], 1e-10);
+	}
+
+	@Test
+	public void testRungeKutta32(){
+		int states = 3;
+		int lineages = 5;
+		Random random = new Random(3);
+
+		double[] migration_rates = new double[states*states];
+		for (int a = 0; a < states; a++)
+			for (int b = 0; b < states; b++)
+				if (a != b)
+					migration_rates[a*states+b] = random.nextDouble();
+		double[] coalescent_rates = {1, 2, 0.5};
+
+		int length = lineages * states + 1;
+		double[] p = new double[length];
+		for (int i = 0; i < lineages; i++)
+			p[i*states + random.nextInt(states)] = 1;
+		double[] p_rk = p.clone();
+		double[] p_short = p.clone();
+		double[] p_again = p.clone();
+
+		// Euler2ndOrder with a small tolerance as reference
+		Euler2ndOrder euler2ndOrder = new Euler2ndOrder();
+		euler2ndOrder.setup(length, states, 1e-10, 0.2);
+		euler2ndOrder.init(migration_rates, coalescent_rates, lineages);
+		euler2ndOrder.calculateValues(2.0, p, length);
+
+		RungeKutta32 rungeKutta = new RungeKutta32(new Euler2ndOrder());
+		rungeKutta.setup(length, states, 1e-6, Double.POSITIVE_INFINITY);
+		rungeKutta.init(migration_rates, coalescent_rates, lineages);
+		rungeKutta.calculateValues(2.0, p_rk, length);
+
+		for (int i = 0; i < length; i++)
+			Assert.assertEquals(p[i], p_rk[i], 1e-5);
+		// far fewer steps than the second order Euler scheme
+		Assert.assertTrue(rungeKutta.iterations < euler2ndOrder.iterations);
+
+		// the result does not depend on the intervals integrated before
+		rungeKutta.calculateValues(0.01, p_short, length);
+		rungeKutta.calculateValues(2.0, p_again, length);
+		for (int i = 0; i < length; i++)
+			Assert.assertEquals(p_rk[i], p_again[i], 0.0);
+	}
+
+	@Test
+	public void testStrangSplitting(){
+		int states = 3;
+		int lineages = 4;
+		Random random = new Random(7);
+
+		// high migration relative to coalescence
+		double[] migration_rates = new double[states*states];
+		for (int a = 0; a < states; a++)
+			for (int b = 0; b < states; b++)
+				if (a != b)
+					migration_rates[a*states+b] = 50 * random.nextDouble();
+		double[] coalescent_rates = {1, 2, 0.5};
+
+		int length = lineages * states + 1;
+		double[] p = new double[length];
+		for (int i = 0; i < lineages; i++)
+			p[i*states + random.nextInt(states)] = 1;
+		double[] p_split = p.clone();
+		double[] p_nocoal = p.clone();
+		double[] p_nocoal_split = p.clone();
+
+		Euler2ndOrder euler2ndOrder = new Euler2ndOrder();
+		euler2ndOrder.setup(length, states, 1e-9, 0.2);
+		euler2ndOrder.init(migration_rates, coalescent_rates, lineages);
+		euler2ndOrder.calculateValues(1.0, p, length);
+
+		StrangSplitting splitting = new StrangSplitting(new Euler2ndOrder());
+		splitting.setup(length, states, 1e-7, Double.POSITIVE_INFINITY);
+		splitting.init(migration_rates, coalescent_rates, lineages);
+		splitting.calculateValues(1.0, p_split, length);
+
+		for (int i = 0; i < length; i++)
+			Assert.assertEquals(p[i], p_split[i], 1e-4);
+
+		// without coalescence the step is unbounded and the interval is one exact migration step
+		double[] no_coalescence = new double[states];
+		euler2ndOrder.init(migration_rates, no_coalescence, lineages);
+		euler2ndOrder.calculateValues(1.0, p_nocoal, length);
+		StrangSplitting splittingNoCoal = new StrangSplitting(new Euler2ndOrder());
+		splittingNoCoal.setup(length, states, 1e-7, Double.POSITIVE_INFINITY);
+		splittingNoCoal.init(migration_rates, no_coalescence, lineages);
+		splittingNoCoal.calculateValues(1.0, p_nocoal_split, length);
+
+		for (int i = 0; i < length; i++)
+			Assert.assertEquals(p_nocoal[i], p_nocoal_split[i], 1e-6);
+	}
+
+	@Test
+	public void testSparseMigration(){
+		int states = 12;
+		int lineages = 5;
+		Random random = new Random(13);
+
+		// a ring plus a few random routes
+		double[] migration_rates = new double[states*states];
+		for (int a = 0; a < states; a++) {
+			migration_rates[a*states + (a+1) % states] = random.nextDouble();
+			migration_rates[a*states + random.nextInt(states)] = random.nextDouble();
+			migration_rates[a*states + a] = 0;
+		}
+		double[] coalescent_rates = new double[states];
+		for (int a = 0; a < states; a++)
+			coalescent_rates[a] = 0.5 + random.nextDouble();
+
+		int length = lineages * states + 1;
+		double[] p = new double[length];
+		for (int i = 0; i < lineages; i++)
+			p[i*states + random.nextInt(states)] = 1;
+		double[] p_sparse = p.clone();
+
+		// the constructor does not set up the sparse form
+		Euler2ndOrder euler2ndOrder = new Euler2ndOrder(migration_rates, coalescent_rates, lineages, states, 0.001, 0.2);
+		euler2ndOrder.calculateValues(1.0, p, new double[length], new double[length], new double[length], length);
+
+		Euler2ndOrder euler2ndOrderSparse = new Euler2ndOrder();
+		euler2ndOrderSparse.setup(length, states, 0.001, 0.2);
+		euler2ndOrderSparse.init(migration_rates, coalescent_rates, lineages);
+		Assert.assertNotNull(euler2ndOrderSparse.sparse);
+		euler2ndOrderSparse.calculateValues(1.0, p_sparse, length);
+
+		for (int i = 0; i < length; i++)
+			Assert.assertEquals(p[i], p_sparse[i], 1e-10);
+	}
+
+	@Test
+	public void testSparseMigrationUnrolled(){
+		Euler2ndOrder[] unrolled = {new Euler2ndOrder4(), new Euler2ndOrder5(), new Euler2ndOrder6(), new Euler2ndOrder7(),
+				new Euler2ndOrder8(), new Euler2ndOrder9(), new Euler2ndOrder10()};
+		int lineages = 5;
+		Random random = new Random(29);
+
+		for (int states = 4; states <= 10; states++) {
+			// a chain of migration routes
+			double[] migration_rates = new double[states*states];
+			for (int a = 0; a + 1 < states; a++)
+				migration_rates[a*states + a + 1] = random.nextDouble();
+			double[] coalescent_rates = new double[states];
+			for (int a = 0; a < states; a++)
+				coalescent_rates[a] = 0.5 + random.nextDouble();
+
+			int length = lineages * states + 1;
+			int[] multiplicator = new int[lineages];
+			double[] p = new double[length];
+			for (int i = 0; i < lineages; i++) {
+				multiplicator[i] = 1 + random.nextInt(3);
+				p[i*states + random.nextInt(states)] = 1;
+			}
+			double[] p_sparse = p.clone();
+			double[] p_mul = p.clone();
+			double[] p_mul_sparse = p.clone();
+
+			// the constructors do not set up the sparse form
+			Euler2ndOrder euler2ndOrder = new Euler2ndOrder(migration_rates, coalescent_rates, lineages, states, 0.001, 0.2);
+			euler2ndOrder.calculateValues(1.0, p, new double[length], new double[length], new double[length], length);
+			Euler2ndOrder euler2ndOrderMult = new Euler2ndOrder(multiplicator, migration_rates, coalescent_rates, lineages, states, 0.001, 0.2);
+			euler2ndOrderMult.calculateValues(1.0, p_mul, new double[length], new double[length], new double[length], length);
+
+			Euler2ndOrder euler2ndOrderSparse = unrolled[states - 4];
+			euler2ndOrderSparse.setup(length, states, 0.001, 0.2);
+			euler2ndOrderSparse.init(migration_rates, coalescent_rates, lineages);
+			Assert.assertNotNull(euler2ndOrderSparse.sparse);
+			euler2ndOrderSparse.calculateValues(1.0, p_sparse, length);
+			euler2ndOrderSparse.setUpDynamics(new double[][] {coalescent_rates}, new double[][] {migration_rates}, new int[][] {null},
+					new double[] {Double.POSITIVE_INFINITY});
+			euler2ndOrderSparse.initAndcalculateValues(0, lineages, multiplicator, 1.0, p_mul_sparse, length);
+			Assert.assertNotNull(euler2ndOrderSparse.sparse);
+
+			for (int i = 0; i < length; i++) {
+				Assert.assertEquals(p[i], p_sparse[i], 1e-10);
+				Assert.assertEquals(p_mul[i], p_mul_sparse[i], 1e-10);
+			}
+		}
+	}
+
+	@Test
+	public void testIndicators(){
+		int states = 4;
+		int lineages = 5;
+		Random random = new Random(17);
+
+		double[] migration_rates = new double[states*states];
+		for (int a = 0; a < states; a++)
+			for (int b = 0; b < states; b++)
+				if (a != b)
+					migration_rates[a*states + b] = random.nextDouble();
+		double[] coalescent_rates = new double[states];
+		for (int a = 0; a < states; a++)
+			coalescent_rates[a] = 0.5 + random.nextDouble();
+
+		// source and sink of every migration, so the indicators switch them all on
+		int[] indicators = new int[states * (states-1) * 2];
+		int k = 0;
+		for (int a = 0; a < states; a++)
+			for (int b = 0; b < states; b++)
+				if (a != b) {
+					indicators[k++] = a;
+					indicators[k++] = b;
+				}
+
+		int length = lineages * states + 1;
+		double[] p = new double[length];
+		for (int i = 0; i < lineages; i++)
+			p[i*states + random.nextInt(states)] = 1;
+		double[] p_ind = p.clone();
+
+		Euler2ndOrder euler2ndOrder = new Euler2ndOrder(migration_rates, coalescent_rates, lineages, states, 0.001, 0.2);
+		euler2ndOrder.calculateValues(1.0, p, new double[length], new double[length], new double[length], length);
+
+		Euler2ndOrder euler2ndOrderInd = new Euler2ndOrder(migration_rates, indicators, coalescent_rates, lineages, states, 0.001, 0.2);
+		euler2ndOrderInd.calculateValues(1.0, p_ind, new double[length], new double[length], new double[length], length);
+
+		for (int i = 0; i < length; i++)
+			Assert.assertEquals(p[i], p_ind[i], 1e-10);
+	}
+
+	@Test
+	public void testTimeVaryingRates(){
+		int states = 3;
+		int lineages = 4;
+		Random random = new Random(19);
+
+		double[] migration_rates = new double[states*states];
+		for (int a = 0; a < states; a++)
+			for (int b = 0; b < states; b++)
+				if (a != b)
+					migration_rates[a*states+b] = random.nextDouble();
+		double[] coalescent_rates = {1, 2, 0.5};
+
+		int length = lineages * states + 1;
+		double[] p = new double[length];
+		for (int i = 0; i < lineages; i++)
+			p[i*states + random.nextInt(states)] = 1;
+
+		// rates that do not change, and exponentially growing rates, against many short intervals
+		// with constant rates
+		for (double growth : new double[] {0.0, 1.5}) {
+			Euler2ndOrder euler2ndOrderTimeVarying = new Euler2ndOrder();
+			euler2ndOrderTimeVarying.setup(length, states, 1e-9, 0.2);
+			euler2ndOrderTimeVarying.init(migration_rates, coalescent_rates, lineages);
+			euler2ndOrderTimeVarying.setTimeVaryingRates((interval, time, rates) -> {
+				for (int j = 0; j < states; j++)
+					rates[j] = coalescent_rates[j] * Math.exp(growth * time);
+			});
+			euler2ndOrderTimeVarying.setTime(0.5);
+			double[] p_tv = p.clone();
+			euler2ndOrderTimeVarying.calculateValues(1.0, p_tv, length);
+
+			int steps = 1000;
+			double[] p_grid = p.clone();
+			double[] grid_rates = new double[states];
+			Euler2ndOrder euler2ndOrderGrid = new Euler2ndOrder();
+			euler2ndOrderGrid.setup(length, states, 1e-9, 0.2);
+			for (int k = 0; k < steps; k++) {
+				for (int j = 0; j < states; j++)
+					grid_rates[j] = coalescent_rates[j] * Math.exp(growth * (0.5 + (k + 0.5) / steps));
+				euler2ndOrderGrid.init(migration_rates, grid_rates, lineages);
+				euler2ndOrderGrid.calculateValues(1.0 / steps, p_grid, length);
+			}
+			for (int i = 0; i < length; i++)
+				Assert.assertEquals(p_grid[i], p_tv[i], 1e-5);
+		}
+	}
+
+	@Test
+	public void testTransitionsTimeVaryingRates(){
+		int states = 3;
+		int lineages = 4;
+		double growth = 1.5;
+		Random random = new Random(37);
+
+		double[] migration_rates = new double[states*states];
+		for (int a = 0; a < states; a++)
+			for (int b = 0; b < states; b++)
+				if (a != b)
+					migration_rates[a*states+b] = random.nextDouble();
+		double[] coalescent_rates = {1, 2, 0.5};
+		TimeVaryingRates timeVaryingRates = (interval, time, rates) -> {
+			for (int j = 0; j < states; j++)
+				rates[j] = coalescent_rates[j] * Math.exp(growth * time);
+		};
+
+		// lineage state probabilities followed by the transition probabilities of every lineage
+		int length = lineages * states + 1;
+		int transitionsLength = lineages * states + lineages * states * states;
+		double[] p = new double[length];
+		double[] p_transitions = new double[transitionsLength];
+		for (int i = 0; i < lineages; i++) {
+			int state = random.nextInt(states);
+			p[i*states + state] = 1;
+			p_transitions[i*states + state] = 1;
+			for (int k = 0; k < states; k++)
+				p_transitions[lineages*states + i*states*states + k*states + k] = 1;
+		}
+
+		Euler2ndOrder euler2ndOrder = new Euler2ndOrder();
+		euler2ndOrder.setup(length, states, 1e-9, 0.2);
+		euler2ndOrder.init(migration_rates, coalescent_rates, lineages);
+		euler2ndOrder.setTimeVaryingRates(timeVaryingRates);
+		euler2ndOrder.setTime(0.5);
+		euler2ndOrder.calculateValues(1.0, p, length);
+
+		Euler2ndOrderTransitions euler2ndOrderTransitions = new Euler2ndOrderTransitions(migration_rates, coalescent_rates, lineages, states, 1e-9, 0.2);
+		euler2ndOrderTransitions.setTimeVaryingRates(timeVaryingRates, 0, 0.5);
+		try {
+			euler2ndOrderTransitions.calculateValues(1.0, p_transitions, new double[transitionsLength], new double[transitionsLength], new double[transitionsLength]);
+		} catch (Exception e) {
+			Assert.fail(e.getMessage());
+		}
+
+		for (int i = 0; i < lineages * states; i++)
+			Assert.assertEquals(p[i], p_transitions[i], 1e-5);
+		// the rates passed to the constructor are left alone
+		Assert.assertEquals(1.0, coalescent_rates[0], 0.0);
+	}
+
+	@Test
+	public void testRosenbrock2(){
+		int states = 3;
+		int lineages = 4;
+		Random random = new Random(17);
+
+		// migration much faster than coalescence
+		double[] migration_rates = new double[states*states];
+		for (int a = 0; a < states; a++)
+			for (int b = 0; b < states; b++)
+				if (a != b)
+					migration_rates[a*states+b] = 500 + 500 * random.nextDouble();
+		double[] coalescent_rates = {1, 2, 0.5};
+
+		int length = lineages * states + 1;
+		double[] p = new double[length];
+		for (int i = 0; i < lineages; i++)
+			p[i*states + random.nextInt(states)] = 1;
+		double[] p_stiff = p.clone();
+		double[] p_short = p.clone();
+		double[] p_again = p.clone();
+
+		// explicit scheme with a small tolerance as reference
+		Euler2ndOrder euler2ndOrder = new Euler2ndOrder(migration_rates, coalescent_rates, lineages, states, 1e-8, 0.2);
+		euler2ndOrder.calculateValues(1.0, p, new double[length], new double[length], new double[length], length);
+
+		Euler2ndOrder euler2ndOrderStiff = new Euler2ndOrder();
+		euler2ndOrderStiff.setup(length, states, 1e-4, 0.2);
+		euler2ndOrderStiff.init(migration_rates, coalescent_rates, lineages);
+		Assert.assertTrue(euler2ndOrderStiff.isStiff(1.0));
+		euler2ndOrderStiff.calculateValues(1.0, p_stiff, length);
+		Assert.assertNotNull(euler2ndOrderStiff.stiffSolver);
+
+		for (int i = 0; i < length; i++)
+			Assert.assertEquals(p[i], p_stiff[i], 1e-3);
+		// the step size is not limited by the migration time scale
+		Assert.assertTrue(euler2ndOrderStiff.stiffSolver.iterations < euler2ndOrder.iterations / 10);
+
+		// the result does not depend on the intervals integrated before
+		euler2ndOrderStiff.calculateValues(0.01, p_short, length);
+		euler2ndOrderStiff.calculateValues(1.0, p_again, length);
+		for (int i = 0; i < length; i++)
+			Assert.assertEquals(p_stiff[i], p_again[i], 0.0);
+	}
+
+	@Test
+	public void testEuler2ndOrderSIMDStiff(){
+		int states = 3;
+		int lineages = 4;
+		Random random = new Random(19);
+
+		// migration much faster than coalescence, with a slower epoch before it
+		double[] migration_rates = new double[states*states];
+		double[] slow_migration_rates = new double[states*states];
+		for (int a = 0; a < states; a++)
+			for (int b = 0; b < states; b++)
+				if (a != b) {
+					migration_rates[a*states+b] = 500 + 500 * random.nextDouble();
+					slow_migration_rates[a*states+b] = random.nextDouble();
+				}
+		double[] coalescent_rates = {1, 2, 0.5};
+
+		int length = lineages * states + 1;
+		double[] p = new double[length];
+		for (int i = 0; i < lineages; i++)
+			p[i*states + random.nextInt(states)] = 1;
+		double[] p_simd = p.clone();
+		double[] p_epochs = p.clone();
+		double[] p_epochs_simd = p.clone();
+
+		Euler2ndOrder euler2ndOrder = new Euler2ndOrder();
+		euler2ndOrder.setup(length, states, 1e-4, 0.2);
+		euler2ndOrder.init(migration_rates, coalescent_rates, lineages);
+		euler2ndOrder.calculateValues(1.0, p, length);
+
+		Euler2ndOrder euler2ndOrderSIMD = new Euler2ndOrderSIMD();
+		euler2ndOrderSIMD.setup(length, states, 1e-4, 0.2);
+		euler2ndOrderSIMD.init(migration_rates, coalescent_rates, lineages);
+		Assert.assertNull(euler2ndOrderSIMD.sparse);
+		euler2ndOrderSIMD.calculateValues(1.0, p_simd, length);
+		Assert.assertNotNull(euler2ndOrderSIMD.stiffSolver);
+
+		for (int i = 0; i < length; i++)
+			Assert.assertEquals(p[i], p_simd[i], 1e-10);
+
+		// the stiff epoch follows one that is not stiff
+		double[][] coalescentRates = {coalescent_rates, coalescent_rates};
+		double[][] migrationRates = {slow_migration_rates, migration_rates};
+		int[][] indicators = {null, null};
+		double[] nextRateShift = {0.5, Double.POSITIVE_INFINITY};
+		euler2ndOrder.setUpDynamics(coalescentRates, migrationRates, indicators, nextRateShift);
+		euler2ndOrder.initAndcalculateValues(0, lineages, 0.5, p_epochs, length);
+		euler2ndOrder.initAndcalculateValues(1, lineages, 1.0, p_epochs, length);
+
+		euler2ndOrderSIMD.setUpDynamics(coalescentRates, migrationRates, indicators, nextRateShift);
+		euler2ndOrderSIMD.initAndcalculateValues(0, lineages, 0.5, p_epochs_simd, length);
+		euler2ndOrderSIMD.initAndcalculateValues(1, lineages, 1.0, p_epochs_simd, length);
+
+		for (int i = 0; i < length; i++)
+			Assert.assertEquals(p_epochs[i], p_epochs_simd[i], 1e-10);
+	}
+
 }